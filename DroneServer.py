@@ -1,10 +1,11 @@
-import socket, cv2, sys, logging, time, struct
+import socket, cv2, sys, logging, time, struct, shutil, subprocess
 from Drone import Drone
 
 # import thread module 
+import threading
 from threading import Thread
 
-#=================Drone Server Version 5==================================
+#=================Drone Server Version 8==================================
 
 #logging
 logging.basicConfig(level=logging.NOTSET)
@@ -31,6 +32,34 @@ except socket.error as e:
     log.debug("Failed to bind sockets: " + str(e))
     sys.exit()
 
+#framed nav message: magic, version, type, payload length, sequence, timestamp ms, 7 doubles
+NAV_MAGIC = 0x41504144
+NAV_VERSION = 2
+NAV_TYPE_STATE = 1
+NAV_TYPE_VIDEO_HINT = 2 #jpeg quality, resolution scale, fps asked for by the app
+NAV_TYPE_TIME_SYNC = 3 #clock probe: app time in, answered with it plus our receive and send times, microseconds
+NAV_FORMAT = "!IBBHiq7d"
+NAV_SIZE = struct.calcsize(NAV_FORMAT)
+NAV_INTERVAL = 0.05 #drone state is streamed at 20 Hz
+NAV_GRACE = 10 #seconds the drone waits for the app to reconnect before resetting
+
+#video hello: magic, version, codecs, the app offers a codec mask and the drone answers with its pick
+VIDEO_HELLO_FORMAT = "!IBB"
+VIDEO_HELLO_SIZE = struct.calcsize(VIDEO_HELLO_FORMAT)
+VIDEO_VERSION = 1
+CODEC_MJPEG = 1
+CODEC_H264 = 2
+FLAG_TIMESTAMPS = 0x40 #app wants capture and send times ahead of each jpeg, echoed when we send them
+VIDEO_HELLO_WAIT = 0.5 #apps older than v7 never say hello, they get jpeg after this
+FFMPEG = shutil.which("ffmpeg") #h264 needs an encoder, without one everyone gets jpeg
+
+#video stream settings, changed by hints from the app when the link is weak
+video_settings = {"quality": 90, "scale": 1.0, "fps": 30}
+
+#drone state sequence carries on across reconnects so the app can resume the session
+nav_sequence = [0]
+reset_timer = [None]
+
 #drone class
 drone = Drone()
 
@@ -39,43 +68,315 @@ time.sleep(10)
 #threaded video connection
 def video_connect():
     
-    encode_param = [int(cv2.IMWRITE_JPEG_QUALITY), 90]
-    
     while True:
         c, vid_addr = video_socket.accept()
     
         log.info("Video connection established.")
+
+        #every new app connection starts from full quality
+        video_settings.update(quality=90, scale=1.0, fps=30)
         
         with c:
-            while True:
+            codec, timestamped = video_hello(c)
+
+            if codec == CODEC_H264:
+                log.info("Streaming h264.")
+                video_h264(c)
+            else:
+                video_mjpeg(c, timestamped)
+
+#read the app hello and answer with the codec to use, old apps don't send one and get jpeg
+#jpeg packets carry our capture and send times if the app asked for them
+def video_hello(c):
+
+    c.settimeout(VIDEO_HELLO_WAIT)
+    try:
+        magic, version, codecs = struct.unpack(VIDEO_HELLO_FORMAT, recv_exact(c, VIDEO_HELLO_SIZE))
+    except (socket.timeout, socket.error, struct.error):
+        return CODEC_MJPEG, False
+    finally:
+        c.settimeout(None)
+
+    if magic != NAV_MAGIC:
+        log.info("Bad video hello, sending jpeg.")
+        return CODEC_MJPEG, False
+
+    codec = CODEC_H264 if codecs & CODEC_H264 and FFMPEG else CODEC_MJPEG
+    timestamped = codec == CODEC_MJPEG and (codecs & FLAG_TIMESTAMPS) != 0
+
+    try:
+        c.sendall(struct.pack(VIDEO_HELLO_FORMAT, NAV_MAGIC, VIDEO_VERSION,
+                              codec | (FLAG_TIMESTAMPS if timestamped else 0)))
+    except socket.error:
+        pass
+
+    return codec, timestamped
+
+#our clock in microseconds, what frame timestamps and clock probe answers are in
+def now_micros():
+    return int(time.time() * 1000000)
+
+#next camera frame at the fps and scale the app asked for
+def video_frame(next_frame):
+
+    #pace to the fps the app asked for
+    now = time.time()
+    if now < next_frame:
+        time.sleep(next_frame - now)
+    next_frame = max(now, next_frame) + 1.0 / video_settings["fps"]
+
+    #read frame
+    frame = drone.getFrame()
+    captured = now_micros()
+
+    scale = video_settings["scale"]
+    if scale < 1.0:
+        frame = cv2.resize(frame, None, fx=scale, fy=scale, interpolation=cv2.INTER_AREA)
+
+    return frame, next_frame, captured
 
-                try:
-                    #read frame
-                    frame = drone.getFrame()
+#int size + jpeg per frame, with capture and send times in between when timestamped
+def video_mjpeg(c, timestamped):
+
+    next_frame = time.time()
+
+    while True:
+
+        try:
+            frame, next_frame, captured = video_frame(next_frame)
                 
-                    #resize and encode to jpg
-                    #frame = imutils.resize(frame, width=320)
-                    result, frame = cv2.imencode('.jpg', frame, encode_param)
+            #encode to jpg
+            encode_param = [int(cv2.IMWRITE_JPEG_QUALITY), int(video_settings["quality"])]
+            result, frame = cv2.imencode('.jpg', frame, encode_param)
 
-                    #convert to bytes and get size
-                    data = bytes(frame)    
-                    size = len(data)
+            #convert to bytes and get size
+            data = bytes(frame)    
+            size = len(data)
                 
-                    #send size of frame in big indian byte order
-                    c.sendall(size.to_bytes(4, byteorder='big'))
+            #send size of frame in big indian byte order
+            if timestamped:
+                c.sendall(struct.pack("!iqq", size, captured, now_micros()))
+            else:
+                c.sendall(size.to_bytes(4, byteorder='big'))
                 
-                    #send frame
-                    c.sendall(frame)
+            #send frame
+            c.sendall(frame)
+
+            #print("sent: " + str(size) + " bytes")
+
+        except socket.error as e:
+            log.debug("Video disconnected or lost connection.")
+            break
+        except OverflowError as e:
+            log.debug("Overflow error: " + str(e))
+            log.info("Frame: " + str(frame))
+            log.info("Size: " + str(size))
+
+#annex-b h264 from an ffmpeg encoder, restarted when the app asks for other settings
+#every key frame repeats sps/pps so the app can pick up a new size mid stream
+def video_h264(c):
+
+    next_frame = time.time()
+    encoder = None
+    key = None
+
+    def pump(proc):
+        #encoder output straight to the socket, whatever chunking ffmpeg uses
+        try:
+            while True:
+                data = proc.stdout.read1(65536)
+                if not data:
+                    break
+                c.sendall(data)
+        except (socket.error, ValueError):
+            #app gone, stop the encoder so the frame writer fails instead of blocking
+            proc.kill()
+
+    try:
+        while True:
+            frame, next_frame, captured = video_frame(next_frame)
+            height, width = frame.shape[:2]
+            fps = int(video_settings["fps"])
+
+            #jpeg quality 90..40 mapped onto x264 crf 18..38
+            crf = int(18 + (90 - video_settings["quality"]) * 0.4)
+            settings = (width, height, fps, crf)
+
+            if settings != key:
+                if encoder:
+                    encoder.stdin.close()
+                    encoder.wait()
+
+                key = settings
+                encoder = subprocess.Popen([FFMPEG, "-loglevel", "error",
+                    "-f", "rawvideo", "-pix_fmt", "bgr24", "-s", "%dx%d" % (width, height), "-r", str(fps), "-i", "-",
+                    "-c:v", "libx264", "-preset", "ultrafast", "-tune", "zerolatency", "-crf", str(crf),
+                    "-g", str(fps), "-x264-params", "aud=1:repeat-headers=1", "-f", "h264", "-"],
+                    stdin=subprocess.PIPE, stdout=subprocess.PIPE)
+                Thread(target=pump, args=(encoder,), daemon=True).start()
+
+            encoder.stdin.write(frame.tobytes())
+            encoder.stdin.flush()
+
+            if encoder.poll() is not None:
+                raise socket.error("encoder stopped")
+
+    except (socket.error, BrokenPipeError, OSError) as e:
+        log.debug("Video disconnected or lost connection.")
+    finally:
+        if encoder:
+            try:
+                encoder.stdin.close()
+            except OSError:
+                pass
+            encoder.kill()
+            encoder.wait()
+
+#original lockstep exchange, one double each way per field
+def nav_legacy(c, recv):
+
+    while True:
+        try:
+
+            #get latest data from drone
+            send = drone.getDroneData()
+
+            #recieve -> send
+            for x in range(0, len(recv)):
+
+                #recive bytes
+                data = recv_exact(c, 8)
+
+                #conver from binary to int and place in recv list
+                integer = struct.unpack("!d", data)[0]
+
+                recv[x]= integer
+
+                #send drone data to app
+                sending = struct.pack("!d",send[x])
+                c.sendall(sending)
+
+            #send app data to drone
+            drone.sendAppData(recv)
+
+        except socket.error as e:
+            log.debug("Nav disconnected or lost connection.")
+            break
+        except OverflowError as e:
+            log.debug("Overflow error: " + str(e))
+            log.info("Send: " + str(send))
+            log.info("Recieved" + str(recv))
+
+        except struct.error as e:
+            log.debug(str(e))
 
-                    #print("sent: " + str(size) + " bytes")
+#framed full duplex link, app state and commands are read on their own thread
+#while drone state streams out at the drone's own rate
+def nav_framed(c):
 
-                except socket.error as e:
-                    log.debug("Video disconnected or lost connection.")
+    alive = [True]
+
+    #state and clock probe answers are written from both threads
+    send_lock = threading.Lock()
+
+    def receive():
+        while alive[0]:
+            try:
+                data = recv_exact(c, NAV_SIZE)
+                fields = struct.unpack(NAV_FORMAT, data)
+
+                if fields[0] != NAV_MAGIC or fields[1] != NAV_VERSION:
+                    log.debug("Bad nav message: " + str(fields[:5]))
                     break
-                except OverflowError as e:
-                    log.debug("Overflow error: " + str(e))
-                    log.info("Frame: " + str(frame))
-                    log.info("Size: " + str(size))
+
+                if fields[2] == NAV_TYPE_VIDEO_HINT:
+                    quality, scale, fps = fields[5:8]
+                    video_settings.update(quality=min(max(int(quality), 10), 95),
+                                          scale=min(max(scale, 0.1), 1.0),
+                                          fps=min(max(int(fps), 1), 30))
+                    log.info("Video hint: " + str(video_settings))
+                    continue
+
+                if fields[2] == NAV_TYPE_TIME_SYNC:
+                    #answer right away, outside the state sequence
+                    received = now_micros()
+                    reply = [fields[5], received, 0, 0, 0, 0, 0]
+                    with send_lock:
+                        reply[2] = now_micros()
+                        c.sendall(struct.pack(NAV_FORMAT, NAV_MAGIC, NAV_VERSION, NAV_TYPE_TIME_SYNC,
+                                              NAV_SIZE - 20, 0, int(time.time() * 1000), *reply))
+                    continue
+
+                if fields[2] != NAV_TYPE_STATE:
+                    log.debug("Unknown nav message type: " + str(fields[2]))
+                    continue
+
+                #send app data to drone
+                drone.sendAppData(list(fields[5:]))
+
+            except socket.error as e:
+                log.debug("Nav disconnected or lost connection.")
+                break
+            except OverflowError as e:
+                log.debug("Overflow error: " + str(e))
+            except struct.error as e:
+                log.debug(str(e))
+                break
+
+        alive[0] = False
+
+    receiver = Thread(target=receive)
+    receiver.start()
+
+    while alive[0]:
+        try:
+            #get latest data from drone
+            send = drone.getDroneData()
+
+            with send_lock:
+                nav_sequence[0] += 1
+                c.sendall(struct.pack(NAV_FORMAT, NAV_MAGIC, NAV_VERSION, NAV_TYPE_STATE,
+                                      NAV_SIZE - 20, nav_sequence[0], int(time.time() * 1000), *send))
+
+            time.sleep(NAV_INTERVAL)
+
+        except socket.error as e:
+            log.debug("Nav disconnected or lost connection.")
+            break
+        except OverflowError as e:
+            log.debug("Overflow error: " + str(e))
+            log.info("Send: " + str(send))
+
+    alive[0] = False
+
+    #wake the receiver if it is still blocked on the socket
+    try:
+        c.shutdown(socket.SHUT_RDWR)
+    except socket.error:
+        pass
+
+    receiver.join()
+
+#reset the drone only if the app has not come back within the grace period
+def schedule_reset():
+    cancel_reset()
+    reset_timer[0] = threading.Timer(NAV_GRACE, drone.resetDrone)
+    reset_timer[0].start()
+
+def cancel_reset():
+    if reset_timer[0] is not None:
+        reset_timer[0].cancel()
+        reset_timer[0] = None
+
+#read exactly n bytes or raise when the socket closes
+def recv_exact(c, n):
+    data = b""
+    while len(data) < n:
+        chunk = c.recv(n - len(data))
+        if not chunk:
+            raise socket.error("connection closed")
+        data += chunk
+    return data
 
 #threaded nav connection
 def nav_connect():
@@ -86,61 +387,30 @@ def nav_connect():
         
         log.info("Navigation connection established.")
 
+        #app came back in time, resume the session
+        cancel_reset()
+
         recv = [0,0,0,0,0,0,0]
 
         with c:
-            
-            while True:
-                try:
-
-                    #get latest data from drone
-                    send = drone.getDroneData()
-
-                    #log.info("passed getDroneData")
-
-                    #recieve -> send
-                    for x in range(0, len(recv)):
-
-                        #recive bytes
-                        data = c.recv(4096)
-                        
-                        #conver from binary to int and place in recv list
-                        if len(data) >= 8:    
-                            integer = struct.unpack("!d", data)[0]
-                            #print(integer)
-                        else:
-                            integer = 0
-
-                        recv[x]= integer        
-
-                        #send drone data to app
-                        #c.sendall(send[x].to_bytes(8, byteorder='big'))
-                        sending = struct.pack("!d",send[x])
-                        c.sendall(sending)
-                    
-                    #log.info("recieved:" + str(recv))
-                    
-                    #log.info("sent:" + str(send))
-                    
-                    #print(recv)
-                    
-                    #send app data to drone    
-                    drone.sendAppData(recv)
-                
-                    #log.info("passed send data to app")
-            
-                except socket.error as e:
-                    log.debug("Nav disconnected or lost connection.")
-                    break
-                except OverflowError as e:
-                    log.debug("Overflow error: " + str(e))
-                    log.info("Send: " + str(send))
-                    log.info("Recieved" + str(recv))
-                
-                except struct.error as e:
-                    log.debug(str(e))
-        
-        drone.resetDrone()
+
+            c.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+
+            #current app sends framed messages that start with the magic, older apps send raw doubles
+            try:
+                head = c.recv(4, socket.MSG_PEEK | socket.MSG_WAITALL)
+            except socket.error as e:
+                log.debug("Nav disconnected or lost connection.")
+                head = b""
+
+            if len(head) == 4 and struct.unpack("!I", head)[0] == NAV_MAGIC:
+                log.info("Using framed nav protocol.")
+                nav_framed(c)
+            elif len(head) > 0:
+                log.info("Using legacy nav protocol.")
+                nav_legacy(c, recv)
+
+        schedule_reset()
                 
 
 #listen for incoming connections
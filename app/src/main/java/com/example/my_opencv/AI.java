@@ -1,147 +1,248 @@
 package com.example.my_opencv;
 
 import android.content.Context;
-import android.content.res.AssetManager;
-import android.graphics.Bitmap;
+import android.content.pm.PackageManager;
+import android.os.Debug;
 import android.util.Log;
 
-import org.opencv.android.Utils;
-import org.opencv.core.Core;
-import org.opencv.core.CvException;
 import org.opencv.core.Mat;
-import org.opencv.core.Point;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
 import org.opencv.dnn.Dnn;
-import org.opencv.dnn.Net;
-import org.opencv.imgproc.Imgproc;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
-public class AI {
+//people detection for the video, the model is picked when loading: every candidate shipped in the
+//assets is loaded on every candidate target and the fastest after warm-up is kept
+public class AI implements DetectionStage.Detector {
+
+    //the model the app was built with
+    public static final ModelSpec MOBILENET_SSD = new ModelSpec("MobileNet-SSD", ModelSpec.CAFFE,
+            "MobileNetSSD_deploy.caffemodel", "MobileNetSSD_deploy.prototxt", 300, 300, 0.007843, 127.5, false,
+            new String[]{"background", "plane", "bicycle", "bird", "boat", "bottle",
+                    "bus", "car", "cat", "chair", "cow", "dinningtable", "dog", "horse", "motorbike", "person",
+                    "pottedplant", "sheep", "sofa", "train", "monitor"});
+
+    //frames handed to detect are scaled to this first, the model scales again if its input differs
+    public static final int IN_WIDTH = 300;
+    public static final int IN_HEIGHT = 300;
+    private static final float THRESHOLD = 0.7f;
+    private static final float NMS_THRESHOLD = 0.45f;
+    private static final int MAX_DETECTIONS = 100;
+    private static final int PROFILE_LAYERS = 10;
+
+    //labels of the loaded model's classes, "person: " per class id, a label copies it and adds the numbers
+    private static class Labels {
+        final char[][] names;
+
+        Labels(String[] classNames) {
+            names = new char[classNames.length][];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = (classNames[i] + ": ").toCharArray();
+            }
+        }
+    }
+
+    //room for the longest label with a 10 digit id, the class name is cut to fit
+    public static final int LABEL_LENGTH = 48;
+
+    private static volatile Labels labels = new Labels(MOBILENET_SSD.classNames);
 
     //DNN
-    private Net net;
+    private final ModelSpec[] candidates;
+    private final int[] targets;
+    private volatile InferenceEngine engine; //set by load on the detection thread, read by metrics
+    private int person;
+    private final ModelCache cache;
     private Context c;
 
+    //reused every run so a run allocates nothing on the java side besides the blob and output
+    //wrappers the dnn api returns
+    private final Detections results;
+
     public AI(Context c){
-        this.c = c;
+        this(c, new ModelSpec[]{MOBILENET_SSD}, new int[]{Dnn.DNN_TARGET_CPU});
     }
 
-    //Load a network.
-    public void createDDNNetwork() {
-        String proto = getPath("MobileNetSSD_deploy.prototxt", c);
-        String weights = getPath("MobileNetSSD_deploy.caffemodel", c);
-        net = Dnn.readNetFromCaffe(proto, weights);
-        Log.i(TAG, "Network loaded successfully");
-        //networkstatus.setText("DDN Network loaded successfully");
+    //candidate models and dnn targets to pick from, all on the opencv backend
+    //boxes are drawn by the VideoRenderer, AI only detects
+    public AI(Context c, ModelSpec[] candidates, int[] targets){
+        this.c = c;
+        this.candidates = candidates;
+        this.targets = targets;
+        cache = new ModelCache(new File(c.getFilesDir(), "models"), buildStamp(c));
+        results = new Detections(MAX_DETECTIONS);
     }
 
-    //identify objects in frame
-    public Bitmap identify(Mat frame) {
-        final int IN_WIDTH = 300;
-        final int IN_HEIGHT = 300;
-        final float WH_RATIO = (float)IN_WIDTH / IN_HEIGHT;
-        final double IN_SCALE_FACTOR = 0.007843;
-        final double MEAN_VAL = 127.5;
-        final double THRESHOLD = 0.7;
+    //Load a network, the fastest of the candidates that are in the assets.
+    public void createDDNNetwork() {
+        //cold start cost, extraction and loading of every candidate included
+        long start = System.nanoTime();
+        Runtime runtime = Runtime.getRuntime();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        long nativeHeap = Debug.getNativeHeapAllocatedSize();
+
+        for (ModelSpec spec : candidates) {
+            if (!hasAsset(spec.model, c) || (spec.config != null && !hasAsset(spec.config, c))) {
+                Log.i(TAG, spec + " not in the assets");
+                continue;
+            }
 
-        // Get a new frame
-        // Mat frame = inputFrame;
-        //Imgproc.cvtColor(frame, frame, Imgproc.COLOR_RGBA2RGB);
+            String model;
+            String config;
+            try {
+                model = getPath(spec.model);
+                config = spec.config == null ? null : getPath(spec.config);
+            } catch (IOException e) {
+                Log.i(TAG, "Failed to extract " + spec + ": " + e.getMessage());
+                continue;
+            }
 
-        // Forward image through network.
-        Mat blob = Dnn.blobFromImage(frame, IN_SCALE_FACTOR,
-                new Size(IN_WIDTH, IN_HEIGHT),
-                new Scalar(MEAN_VAL, MEAN_VAL, MEAN_VAL), /*swapRB*/false, /*crop*/false);
+            for (int target : targets) {
+                InferenceEngine candidate = new InferenceEngine(spec, Dnn.DNN_BACKEND_OPENCV, target,
+                        THRESHOLD, NMS_THRESHOLD);
+                try {
+                    candidate.load(model, config);
+                } catch (RuntimeException e) {
+                    Log.i(TAG, spec + " failed on target " + target + ": " + e.getMessage());
+                    candidate.release();
+                    continue;
+                }
+                Log.i(TAG, candidate.toString());
+
+                if (engine == null || candidate.getBenchmarkNanos() < engine.getBenchmarkNanos()) {
+                    if (engine != null) {
+                        engine.release();
+                    }
+                    engine = candidate;
+                } else {
+                    candidate.release();
+                }
+            }
+        }
 
-        net.setInput(blob);
-        Mat detections = net.forward();
+        if (engine == null) {
+            throw new IllegalStateException("No detection model could be loaded");
+        }
 
-        int cols = frame.cols();
-        int rows = frame.rows();
+        ModelSpec spec = engine.getSpec();
+        person = spec.classId("person");
+        labels = new Labels(spec.classNames);
 
-        detections = detections.reshape(1, (int)detections.total() / 7);
+        Log.i(TAG, "Network loaded successfully, using " + engine);
+        Log.i(TAG, "Cold start " + (System.nanoTime() - start) / 1000000 + "ms java heap "
+                + (runtime.totalMemory() - runtime.freeMemory() - heap) / 1024 + "KB native heap "
+                + (Debug.getNativeHeapAllocatedSize() - nativeHeap) / 1024 + "KB " + cache);
+        Log.i(TAG, engine.profile(PROFILE_LAYERS));
+        //networkstatus.setText("DDN Network loaded successfully");
+    }
 
-        for (int i = 0; i < detections.rows(); ++i) {
+    @Override
+    public void load() {
+        createDDNNetwork();
+    }
 
-            double confidence = detections.get(i, 2)[0];
-            int classId = (int)detections.get(i, 1)[0];
+    //find people in the frame, slow, keep it off the video threads (see DetectionStage)
+    //the result is refilled by the next call, copy it to keep it
+    @Override
+    public Detections detect(Mat frame, long frameTime) {
+        engine.detect(frame, frameTime, person, results);
+        return results;
+    }
 
-            if (confidence > THRESHOLD && classId == 15) {
+    //the engine that was picked and how fast it runs, as ai.*
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("ai.loaded", () -> engine != null ? 1 : 0);
+        metrics.gauge("ai.runs", () -> {
+            InferenceEngine current = engine;
+            return current == null ? 0 : current.getRuns();
+        });
+        metrics.gauge("ai.target", () -> {
+            InferenceEngine current = engine;
+            return current == null ? -1 : current.getTarget();
+        });
+        metrics.gauge("ai.fps.core", () -> {
+            InferenceEngine current = engine;
+            return current == null ? 0 : current.getFramesPerSecondPerCore();
+        });
+    }
 
+    //per layer timings of the last run, to compare models on a device
+    public String profile() {
+        return engine == null ? "no model loaded" : engine.profile(PROFILE_LAYERS);
+    }
 
-                int left   = (int)(detections.get(i, 3)[0] * cols);
-                int top    = (int)(detections.get(i, 4)[0] * rows);
-                int right  = (int)(detections.get(i, 5)[0] * cols);
-                int bottom = (int)(detections.get(i, 6)[0] * rows);
+    //"person: 87%", with the track id in front for tracked objects, written into text from the start
+    //without making a String, returns its length; text holds at least LABEL_LENGTH chars
+    public static int label(Detections detections, int i, char[] text) {
+        int length = 0;
+        if (detections.isTracked()) {
+            text[length++] = '#';
+            length = digits(detections.id(i), text, length);
+            text[length++] = ' ';
+        }
 
-                // Draw rectangle around detected object.
-                Imgproc.rectangle(frame, new Point(left, top), new Point(right, bottom),
-                        new Scalar(0, 255, 0));
+        int classId = detections.classId(i);
+        char[][] names = labels.names;
+        if (classId >= 0 && classId < names.length) {
+            int n = Math.min(names[classId].length, LABEL_LENGTH - 4 - length);
+            System.arraycopy(names[classId], 0, text, length, n);
+            length += n;
+        } else {
+            text[length++] = '?';
+            text[length++] = ' ';
+        }
 
-                String label = classNames[classId] + ": " + confidence;
-                int[] baseLine = new int[1];
-                Size labelSize = Imgproc.getTextSize(label, Core.FONT_HERSHEY_SIMPLEX, 0.5, 1, baseLine);
+        length = digits(percent(detections.score(i)), text, length);
+        text[length++] = '%';
+        return length;
+    }
 
-                // Draw background for label.
-                Imgproc.rectangle(frame, new Point(left, top - labelSize.height),
-                        new Point(left + labelSize.width, top + baseLine[0]),
-                        new Scalar(255, 255, 255));
+    private static int percent(float score) {
+        return Math.max(0, Math.min(100, Math.round(score * 100)));
+    }
 
-                // Write class name and confidence.
-                Imgproc.putText(frame, label, new Point(left, top),
-                        Core.FONT_HERSHEY_SIMPLEX, 0.5, new Scalar(0, 0, 0));
-            }
+    //decimal digits of a value >= 0 written at text[at], returns the index after them
+    private static int digits(int value, char[] text, int at) {
+        int end = at;
+        for (int rest = value; rest >= 10; rest /= 10) {
+            end++;
+        }
+        for (int n = end; n >= at; n--) {
+            text[n] = (char) ('0' + value % 10);
+            value /= 10;
         }
-        return convertMatToBitMap(frame);
+        return end + 1;
     }
 
-    // Upload file to storage and return a path.
-    private static String getPath(String file, Context context) {
-        AssetManager assetManager = context.getAssets();
-        BufferedInputStream inputStream = null;
+    private static boolean hasAsset(String file, Context context) {
         try {
-            // Read data from assets.
-            inputStream = new BufferedInputStream(assetManager.open(file));
-            byte[] data = new byte[inputStream.available()];
-            inputStream.read(data);
-            inputStream.close();
-            // Create copy file in storage.
-            File outFile = new File(context.getFilesDir(), file);
-            FileOutputStream os = new FileOutputStream(outFile);
-            os.write(data);
-            os.close();
-            // Return a path to file which may be read in common way.
-            return outFile.getAbsolutePath();
-        } catch (IOException ex) {
-            Log.i(TAG, "Failed to upload a file");
+            String[] files = context.getAssets().list("");
+            if (files != null) {
+                for (String name : files) {
+                    if (name.equals(file)) {
+                        return true;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Failed to list the assets");
         }
-        return "";
+        return false;
     }
 
-    //convert MAT to bmp
-    private static Bitmap convertMatToBitMap(Mat input) {
-        Bitmap bmp = null;
-        Mat rgb = new Mat();
-        Imgproc.cvtColor(input, rgb, Imgproc.COLOR_BGR2RGB);
+    //plain path of a model asset, extracted once per app build
+    private String getPath(String file) throws IOException {
+        return cache.get(file, c.getAssets()::open).getAbsolutePath();
+    }
 
+    //the models in the assets only change with the apk
+    private static String buildStamp(Context context) {
         try {
-            bmp = Bitmap.createBitmap(rgb.cols(), rgb.rows(), Bitmap.Config.ARGB_8888);
-            Utils.matToBitmap(rgb, bmp);
-        } catch (CvException e) {
-            e.printStackTrace();
-            System.out.println("failed to convert mat to bmp");
+            return Long.toString(context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime);
+        } catch (PackageManager.NameNotFoundException e) {
+            return "0";
         }
-        return bmp;
-
     }
 
     private static final String TAG = "OpenCV/Sample/MobileNet";
-    private static final String[] classNames = {"background","plane","bicycle","bird","boat","bottle",
-            "bus","car","cat","chair","cow","dinningtable","dog","horse","motorbike","person",
-            "pottedplant","sheep","sofa","train","monitor"};
 }
@@ -0,0 +1,360 @@
+package com.example.my_opencv;
+
+import java.util.Arrays;
+
+//splits an h.264 annex-b byte stream into access units (one coded picture each) for the decoder
+//bytes can arrive in any chunking, start codes split across reads are handled
+//no android classes so the framing can be tested on the jvm
+public class AnnexBParser {
+
+    //what to do with each whole access unit, data is only valid during the call
+    public interface AccessUnitSink {
+        void onAccessUnit(byte[] data, int length, int flags);
+    }
+
+    //access unit flags
+    public static final int FLAG_KEY_FRAME = 1; //holds an idr slice, decoding can start here
+    public static final int FLAG_CONFIG = 2;    //sps/pps only, no picture
+
+    //nal unit types used for framing
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final int GROW_STEP = 64 * 1024;
+
+    private final AccessUnitSink sink;
+
+    //nal being collected, without its start code
+    private byte[] nal;
+    private int nalLength;
+    private int zeros;         //zero bytes seen in a row, may be the start of the next start code
+    private boolean synced;    //a start code has been seen, bytes before it are dropped
+
+    //access unit being built, nals with 4 byte start codes
+    private byte[] unit;
+    private int unitLength;
+    private boolean unitHasPicture;
+    private int unitFlags;
+
+    //latest stream parameters
+    private int width;
+    private int height;
+
+    //stats
+    private long units;
+    private long keyFrames;
+    private long skippedBytes;
+
+    public AnnexBParser(AccessUnitSink sink) {
+        this.sink = sink;
+        nal = new byte[GROW_STEP];
+        unit = new byte[GROW_STEP];
+        reset();
+    }
+
+    //drop any partial data, e.g. after a reconnect
+    public void reset() {
+        nalLength = 0;
+        zeros = 0;
+        synced = false;
+        unitLength = 0;
+        unitHasPicture = false;
+        unitFlags = 0;
+    }
+
+    //feed the next bytes of the stream
+    public void feed(byte[] data, int offset, int length) {
+        int end = offset + length;
+
+        for (int x = offset; x < end; x++) {
+            byte b = data[x];
+
+            if (b == 1 && zeros >= 2) {
+                //start code, the zeros before the 1 belong to it and not to the nal
+                if (synced) {
+                    nalLength -= Math.min(zeros, nalLength);
+                    endNal();
+                } else {
+                    skippedBytes += nalLength - Math.min(zeros, nalLength);
+                }
+
+                synced = true;
+                nalLength = 0;
+                zeros = 0;
+                continue;
+            }
+
+            zeros = b == 0 ? zeros + 1 : 0;
+
+            if (nalLength == nal.length) {
+                nal = Arrays.copyOf(nal, nal.length + GROW_STEP);
+            }
+            nal[nalLength++] = b;
+        }
+    }
+
+    //end of a recorded stream, the last access unit has no start code after it to close it
+    public void flush() {
+        if (synced) {
+            nalLength -= Math.min(zeros, nalLength);
+            endNal();
+        }
+
+        endUnit();
+        nalLength = 0;
+        zeros = 0;
+        synced = false;
+    }
+
+    private void endNal() {
+        if (nalLength == 0) {
+            return;
+        }
+
+        int type = nal[0] & 0x1f;
+        boolean picture = type == NAL_SLICE || type == NAL_IDR;
+
+        //a new access unit starts with an aud, sps, pps or sei after a picture,
+        //or with the first slice of the next picture (first_mb_in_slice == 0, a leading 1 bit)
+        if (unitHasPicture) {
+            boolean newUnit = type == NAL_AUD || type == NAL_SPS || type == NAL_PPS || type == NAL_SEI
+                    || (picture && nalLength > 1 && (nal[1] & 0x80) != 0);
+            if (newUnit) {
+                endUnit();
+            }
+        }
+
+        if (type == NAL_SPS) {
+            parseSps(nal, nalLength);
+        }
+
+        if (picture) {
+            unitHasPicture = true;
+        }
+        if (type == NAL_IDR) {
+            unitFlags |= FLAG_KEY_FRAME;
+        }
+
+        int needed = unitLength + START_CODE.length + nalLength;
+        if (needed > unit.length) {
+            unit = Arrays.copyOf(unit, ((needed + GROW_STEP - 1) / GROW_STEP) * GROW_STEP);
+        }
+        System.arraycopy(START_CODE, 0, unit, unitLength, START_CODE.length);
+        System.arraycopy(nal, 0, unit, unitLength + START_CODE.length, nalLength);
+        unitLength = needed;
+    }
+
+    private void endUnit() {
+        if (unitLength == 0) {
+            return;
+        }
+
+        int flags = unitFlags;
+        if (!unitHasPicture) {
+            flags |= FLAG_CONFIG;
+        }
+
+        units++;
+        if ((flags & FLAG_KEY_FRAME) != 0) {
+            keyFrames++;
+        }
+
+        sink.onAccessUnit(unit, unitLength, flags);
+
+        unitLength = 0;
+        unitHasPicture = false;
+        unitFlags = 0;
+    }
+
+    //picture size from a sequence parameter set, the decoder output needs it before the first frame
+    private void parseSps(byte[] data, int length) {
+        BitReader bits = new BitReader(data, length);
+        bits.skip(8); //nal header
+
+        int profile = bits.read(8);
+        bits.skip(16); //constraint flags, level
+        bits.readUe(); //sps id
+
+        int chromaFormat = 1;
+        boolean separateColourPlanes = false;
+
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                || profile == 83 || profile == 86 || profile == 118 || profile == 128
+                || profile == 138 || profile == 139 || profile == 134 || profile == 135) {
+
+            chromaFormat = bits.readUe();
+            if (chromaFormat == 3) {
+                separateColourPlanes = bits.read(1) == 1;
+            }
+            bits.readUe(); //luma bit depth
+            bits.readUe(); //chroma bit depth
+            bits.skip(1);  //transform bypass
+
+            if (bits.read(1) == 1) {
+                for (int x = 0; x < (chromaFormat == 3 ? 12 : 8); x++) {
+                    if (bits.read(1) == 1) {
+                        skipScalingList(bits, x < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        bits.readUe(); //log2 max frame num
+
+        int pocType = bits.readUe();
+        if (pocType == 0) {
+            bits.readUe();
+        } else if (pocType == 1) {
+            bits.skip(1);
+            bits.readSe();
+            bits.readSe();
+            int cycle = bits.readUe();
+            for (int x = 0; x < cycle; x++) {
+                bits.readSe();
+            }
+        }
+
+        bits.readUe(); //max ref frames
+        bits.skip(1);  //gaps allowed
+
+        int widthInMbs = bits.readUe() + 1;
+        int heightInMapUnits = bits.readUe() + 1;
+        int frameMbsOnly = bits.read(1);
+        if (frameMbsOnly == 0) {
+            bits.skip(1); //mb adaptive field/frame
+        }
+        bits.skip(1); //direct 8x8 inference
+
+        int cropLeft = 0;
+        int cropRight = 0;
+        int cropTop = 0;
+        int cropBottom = 0;
+        if (bits.read(1) == 1) {
+            cropLeft = bits.readUe();
+            cropRight = bits.readUe();
+            cropTop = bits.readUe();
+            cropBottom = bits.readUe();
+        }
+
+        //crop offsets are in chroma samples for 4:2:0 and 4:2:2
+        int cropUnitX = 1;
+        int cropUnitY = 2 - frameMbsOnly;
+        if (chromaFormat != 0 && !separateColourPlanes) {
+            cropUnitX = chromaFormat == 3 ? 1 : 2;
+            cropUnitY *= chromaFormat == 1 ? 2 : 1;
+        }
+
+        width = widthInMbs * 16 - cropUnitX * (cropLeft + cropRight);
+        height = (2 - frameMbsOnly) * heightInMapUnits * 16 - cropUnitY * (cropTop + cropBottom);
+    }
+
+    private static void skipScalingList(BitReader bits, int size) {
+        int last = 8;
+        int next = 8;
+
+        for (int x = 0; x < size && next != 0; x++) {
+            next = (last + bits.readSe() + 256) % 256;
+            last = next == 0 ? last : next;
+        }
+    }
+
+    //reads the rbsp of a nal, skipping emulation prevention bytes (00 00 03)
+    private static class BitReader {
+        private final byte[] data;
+        private final int length;
+        private int position; //byte
+        private int bit;      //next bit in the current byte, 7 is the top one
+        private int zeros;
+
+        BitReader(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+            position = 0;
+            bit = 7;
+            zeros = 0;
+        }
+
+        int read(int count) {
+            int value = 0;
+            for (int x = 0; x < count; x++) {
+                value = (value << 1) | nextBit();
+            }
+            return value;
+        }
+
+        void skip(int count) {
+            read(count);
+        }
+
+        //unsigned exp-golomb
+        int readUe() {
+            int leading = 0;
+            while (nextBit() == 0 && leading < 32) {
+                leading++;
+            }
+            return (1 << leading) - 1 + read(leading);
+        }
+
+        //signed exp-golomb
+        int readSe() {
+            int value = readUe();
+            return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+        }
+
+        private int nextBit() {
+            if (position >= length) {
+                return 0;
+            }
+
+            if (bit == 7) {
+                //a 3 after two zeros was inserted by the encoder, not part of the data
+                if (zeros >= 2 && data[position] == 3) {
+                    position++;
+                    zeros = 0;
+                    if (position >= length) {
+                        return 0;
+                    }
+                }
+                zeros = data[position] == 0 ? zeros + 1 : 0;
+            }
+
+            int value = (data[position] >> bit) & 1;
+            if (--bit < 0) {
+                bit = 7;
+                position++;
+            }
+            return value;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getUnits() {
+        return units;
+    }
+
+    public long getKeyFrames() {
+        return keyFrames;
+    }
+
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "AnnexBParser units=" + units + " keyFrames=" + keyFrames + " size=" + width + "x" + height
+                + " skipped=" + skippedBytes + "B";
+    }
+}
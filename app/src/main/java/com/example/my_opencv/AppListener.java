@@ -6,5 +6,5 @@ public interface AppListener {
 
     void onUpdateDrone(double [] data);
 
-    void onRecordUpdate(int status);
+    void onCommand(int button);
 }
@@ -0,0 +1,108 @@
+package com.example.my_opencv;
+
+//offset between the drone's clock and System.nanoTime() on the phone, ntp style over the nav link
+//the app sends its time t1, the drone answers with t1, its receive time t2 and its send time t3, the answer
+//arrives at t4: offset = ((t2 - t1) + (t3 - t4)) / 2, off by at most half the round trip (t4 - t1) - (t3 - t2)
+//the sample with the shortest round trip of the last few is used, a probe held up in a queue on the
+//way out or back only makes its own round trip long, so it is the one with the most error that is skipped
+//times are microseconds, the phone side is System.nanoTime() / 1000 so it never jumps like the wall clock
+public class ClockSync {
+
+    private final long[] offsets;
+    private final long[] rtts;
+    private int next;
+    private int filled;
+
+    //best sample, read per frame from the video thread
+    private volatile long offsetMicros; //drone clock minus phone clock
+    private volatile long rttMicros;
+    private volatile boolean synced;
+
+    //stats
+    private long probes;
+    private long replies;
+    private long rejected;
+
+    //samples is how many recent probes are kept to pick the best from
+    public ClockSync(int samples) {
+        offsets = new long[samples];
+        rtts = new long[samples];
+    }
+
+    public static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    //payload of the next probe, the array is reused by the next call
+    public synchronized double[] probe(double[] payload) {
+        probes++;
+        payload[0] = nowMicros();
+        payload[1] = 0;
+        payload[2] = 0;
+        return payload;
+    }
+
+    //answer to a probe from the drone, received at System.nanoTime() received
+    public synchronized void onReply(double[] payload, long received) {
+        long t1 = (long) payload[0];
+        long t2 = (long) payload[1];
+        long t3 = (long) payload[2];
+        long t4 = received / 1000;
+        replies++;
+
+        long rtt = (t4 - t1) - (t3 - t2);
+        if (t1 <= 0 || t4 < t1 || rtt < 0) {
+            //not one of ours, or from before the phone slept
+            rejected++;
+            return;
+        }
+
+        offsets[next] = ((t2 - t1) + (t3 - t4)) / 2;
+        rtts[next] = rtt;
+        next = (next + 1) % offsets.length;
+        filled = Math.min(filled + 1, offsets.length);
+
+        int best = 0;
+        for (int x = 1; x < filled; x++) {
+            if (rtts[x] < rtts[best]) {
+                best = x;
+            }
+        }
+        offsetMicros = offsets[best];
+        rttMicros = rtts[best];
+        synced = true;
+    }
+
+    //forget the samples, e.g. the drone restarted and its clock may have moved
+    public synchronized void reset() {
+        next = 0;
+        filled = 0;
+        synced = false;
+    }
+
+    //System.nanoTime() on the phone of a time on the drone's clock in microseconds, 0 until synced
+    public long toLocalNanos(long droneMicros) {
+        if (!synced || droneMicros <= 0) {
+            return 0;
+        }
+        return (droneMicros - offsetMicros) * 1000;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    public long getOffsetMicros() {
+        return offsetMicros;
+    }
+
+    public long getRttMicros() {
+        return rttMicros;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ClockSync synced=" + synced + " offset=" + offsetMicros + "us rtt=" + rttMicros + "us probes="
+                + probes + " replies=" + replies + " rejected=" + rejected;
+    }
+}
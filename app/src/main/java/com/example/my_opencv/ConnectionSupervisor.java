@@ -0,0 +1,114 @@
+package com.example.my_opencv;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//decides when a dropped drone link is retried and keeps time to recover stats
+//delays grow 2x per failed attempt up to a cap, with jitter so video and nav don't retry in lockstep
+//outages are timed on System.nanoTime() so a wall clock change can't end or stretch one
+public class ConnectionSupervisor {
+
+    private static final String TAG = "ConnectionSupervisor";
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final long maxOutageMs;
+    private final Random random;
+
+    private volatile boolean enabled;
+    private int attempts;
+    private boolean down;  //in an outage, from the first drop until data comes in again
+    private long lostAt;   //System.nanoTime() when the current outage started
+
+    //stats
+    private long drops;
+    private long recoveries;
+    private long totalRecoverMs;
+    private long maxRecoverMs;
+
+    public ConnectionSupervisor(long baseDelayMs, long maxDelayMs, long maxOutageMs) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxOutageMs = maxOutageMs;
+        random = new Random();
+        enabled = false;
+    }
+
+    //the user asked for a connection, keep it up from now on
+    public synchronized void start() {
+        enabled = true;
+        attempts = 0;
+        down = false;
+    }
+
+    //the user disconnected, stop retrying
+    public synchronized void stop() {
+        enabled = false;
+        attempts = 0;
+        down = false;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //the drone sent data, closes the current outage if there was one
+    //a connect alone doesn't count, a peer that accepts and stays silent has to run out the outage
+    public synchronized void onUp() {
+        if (down) {
+            long recoverMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt);
+            recoveries++;
+            totalRecoverMs += recoverMs;
+            maxRecoverMs = Math.max(maxRecoverMs, recoverMs);
+            Log.i(TAG, "Drone link recovered in " + recoverMs + "ms after " + attempts + " attempts");
+        }
+
+        attempts = 0;
+        down = false;
+    }
+
+    //link went down or a retry failed, returns ms to wait before the next try or -1 to give up
+    public synchronized long onDown() {
+        long now = System.nanoTime();
+
+        if (!down) {
+            down = true;
+            lostAt = now;
+            drops++;
+        }
+
+        if (!enabled || now - lostAt > TimeUnit.MILLISECONDS.toNanos(maxOutageMs)) {
+            return -1;
+        }
+
+        long delay = Math.min(maxDelayMs, baseDelayMs << Math.min(attempts, 20));
+        attempts++;
+
+        //full jitter over the upper half of the delay
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public synchronized long getRecoveries() {
+        return recoveries;
+    }
+
+    public synchronized double getMeanRecoverMs() {
+        return recoveries == 0 ? 0 : (double) totalRecoverMs / recoveries;
+    }
+
+    public synchronized long getMaxRecoverMs() {
+        return maxRecoverMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionSupervisor drops=" + drops + " recoveries=" + recoveries
+                + " meanRecover=" + (int) getMeanRecoverMs() + "ms maxRecover=" + maxRecoverMs + "ms";
+    }
+}
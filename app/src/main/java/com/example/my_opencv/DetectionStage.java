@@ -0,0 +1,247 @@
+package com.example.my_opencv;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+//runs object detection beside the video pipeline on its own thread, the video never waits for it
+//every Nth frame is scaled down to the network input and left in a latest-frame slot, a frame
+//still waiting when the next one comes is replaced, so detection runs as fast as the cpu allows
+//and results are published to the listener whenever a run finishes
+//with a RoiScheduler a run may look at a crop of the frame instead, the crop is scaled from a submat
+//of the frame without a copy and the results are moved back into frame coordinates before publishing
+public class DetectionStage implements Runnable {
+
+    //the model, loaded and run on the stage thread only
+    public interface Detector {
+        void load();
+
+        Detections detect(Mat input, long frameTime);
+    }
+
+    public interface Listener {
+        void onDetections(Detections detections);
+    }
+
+    //network input waiting to be run, copied out of the pooled frame
+    private static class Input {
+        final Mat mat = new Mat();
+        long frameTime;
+        boolean crop;
+        //the crop relative to the frame: left, top, width, height
+        float left;
+        float top;
+        float width;
+        float height;
+    }
+
+    private final Detector detector;
+    private final Listener listener;
+    private final RoiScheduler scheduler; //null runs on whole frames only
+    private final int[] rect;             //crop in pixels, submitting thread only
+    private final Size inputSize;
+    private final LatestSlot<Input> next;
+    private final ArrayBlockingQueue<Input> free;
+
+    private volatile int everyN;
+    private int frames; //frames seen, submitting thread only
+
+    private Thread thread;
+    private volatile boolean running;
+
+    //stats
+    private volatile long runs;
+    private volatile long skipped;
+    private volatile long busy;
+    private volatile long inferenceNanos;
+    private volatile long crops;
+    private final LatencyHistogram inference; //one run of the detector
+    private final LatencyHistogram age;       //frame received to its detections published
+
+    public DetectionStage(Detector detector, Listener listener, int inputWidth, int inputHeight, int everyN) {
+        this(detector, listener, null, inputWidth, inputHeight, everyN);
+    }
+
+    public DetectionStage(Detector detector, Listener listener, RoiScheduler scheduler, int inputWidth,
+                          int inputHeight, int everyN) {
+        this.detector = detector;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        rect = new int[4];
+        inference = new LatencyHistogram();
+        age = new LatencyHistogram();
+        this.everyN = Math.max(1, everyN);
+        inputSize = new Size(inputWidth, inputHeight);
+        next = new LatestSlot<>();
+
+        //one being run, one waiting, and one being filled
+        free = new ArrayBlockingQueue<>(3);
+        for (int x = 0; x < 3; x++) {
+            free.offer(new Input());
+        }
+        running = false;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(this, "video-detect");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+
+        Input input = next.poll();
+        if (input != null) {
+            free.offer(input);
+        }
+
+        if (scheduler != null) {
+            scheduler.clear();
+        }
+    }
+
+    //free the input buffers, the stage can't be started again after this
+    public synchronized void release() {
+        stop();
+
+        Input input;
+        while ((input = free.poll()) != null) {
+            input.mat.release();
+        }
+    }
+
+    //run detection on every Nth frame, 1 runs on all of them (as far as the cpu keeps up)
+    public void setEveryN(int everyN) {
+        this.everyN = Math.max(1, everyN);
+    }
+
+    //called from a video stage, only scales the frame into a free input, the frame is recycled after
+    public void submit(Frame frame) {
+        if (!running || frame.getMat() == null) {
+            return;
+        }
+
+        if (frames++ % everyN != 0) {
+            skipped++;
+            return;
+        }
+
+        Input input = free.poll();
+        if (input == null) {
+            busy++;
+            return;
+        }
+
+        Mat mat = frame.getMat();
+        input.frameTime = frame.getReceived();
+        input.crop = scheduler != null && scheduler.next(input.frameTime, mat.cols(), mat.rows(), rect);
+        if (input.crop) {
+            //a view into the frame, only the scaled crop is written
+            Mat crop = mat.submat(rect[1], rect[1] + rect[3], rect[0], rect[0] + rect[2]);
+            Imgproc.resize(crop, input.mat, inputSize);
+            crop.release();
+
+            input.left = (float) rect[0] / mat.cols();
+            input.top = (float) rect[1] / mat.rows();
+            input.width = (float) rect[2] / mat.cols();
+            input.height = (float) rect[3] / mat.rows();
+            crops++;
+        } else {
+            Imgproc.resize(mat, input.mat, inputSize);
+        }
+
+        //a frame the detector never got to is replaced by this one
+        Input replaced = next.offer(input);
+        if (replaced != null) {
+            busy++;
+            free.offer(replaced);
+        }
+    }
+
+    @Override
+    public void run() {
+        //loading the model takes a while, only the newest frame waits meanwhile
+        try {
+            detector.load();
+        } catch (RuntimeException e) {
+            //no model fits this device, the video carries on without boxes
+            e.printStackTrace();
+            System.out.println("detection model failed to load, stopping");
+            running = false;
+            return;
+        }
+
+        while (running) {
+            Input input;
+            try {
+                input = next.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                Detections detections = detector.detect(input.mat, input.frameTime);
+                runs++;
+                inferenceNanos += detections.getInferenceNanos();
+                inference.record(detections.getInferenceNanos());
+
+                if (input.crop) {
+                    detections.toRegion(input.left, input.top, input.width, input.height);
+                }
+                if (scheduler != null) {
+                    scheduler.onDetections(detections);
+                }
+
+                //the detector refills the same result next run, the listener copies what it keeps
+                listener.onDetections(detections);
+                age.record(System.nanoTime() - input.frameTime);
+            } catch (RuntimeException e) {
+                //the video carries on without boxes
+                e.printStackTrace();
+                System.out.println("detection failed, stopping");
+                running = false;
+            } finally {
+                free.offer(input);
+            }
+        }
+    }
+
+    //runs, frames left out and how long detection takes, as detect.*
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("detect.runs", () -> runs);
+        metrics.gauge("detect.skipped", () -> skipped);
+        metrics.gauge("detect.replaced", () -> busy);
+        metrics.gauge("detect.crops", () -> crops);
+        metrics.gauge("detect.waiting", () -> 3 - free.size());
+        metrics.register("detect.inference", inference);
+        metrics.register("detect.age", age);
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    @Override
+    public String toString() {
+        long average = runs == 0 ? 0 : inferenceNanos / runs / 1000000;
+        return "DetectionStage every=" + everyN + " runs=" + runs + " avg=" + average + "ms skipped="
+                + skipped + " replaced=" + busy + " crops=" + crops + (scheduler == null ? "" : " " + scheduler);
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.my_opencv;
+
+//objects found in one frame, boxes are relative to the frame (0..1) so they can be drawn at any size
+//a reusable buffer of primitives with a fixed capacity, filled again for every frame it is used for,
+//so whoever is handed one and keeps it past the call copies it out with copyFrom
+//results from the Tracker also carry the id of each track
+public class Detections {
+
+    private final int capacity;
+    private final int[] classIds;
+    private final float[] scores;
+    private final float[] boxes;     //left, top, right, bottom per detection
+    private final int[] ids;         //track ids, 0 for raw detections
+    private int count;
+    private boolean tracked;
+    private long frameTime;          //when the frame it was run on arrived, System.nanoTime()
+    private long inferenceNanos;
+
+    public Detections(int capacity) {
+        this.capacity = capacity;
+        classIds = new int[capacity];
+        scores = new float[capacity];
+        boxes = new float[capacity * 4];
+        ids = new int[capacity];
+        count = 0;
+    }
+
+    //empty the buffer for a new frame
+    public void clear(long frameTime, boolean tracked) {
+        this.frameTime = frameTime;
+        this.tracked = tracked;
+        count = 0;
+        inferenceNanos = 0;
+    }
+
+    //add one object, false if the buffer is full
+    public boolean add(int classId, float score, float left, float top, float right, float bottom, int id) {
+        if (count == capacity) {
+            return false;
+        }
+
+        classIds[count] = classId;
+        scores[count] = score;
+        boxes[count * 4] = left;
+        boxes[count * 4 + 1] = top;
+        boxes[count * 4 + 2] = right;
+        boxes[count * 4 + 3] = bottom;
+        ids[count] = id;
+        count++;
+        return true;
+    }
+
+    //take over another buffer's contents, as much as fits
+    public void copyFrom(Detections other) {
+        int n = Math.min(other.count, capacity);
+        System.arraycopy(other.classIds, 0, classIds, 0, n);
+        System.arraycopy(other.scores, 0, scores, 0, n);
+        System.arraycopy(other.boxes, 0, boxes, 0, n * 4);
+        System.arraycopy(other.ids, 0, ids, 0, n);
+        count = n;
+        tracked = other.tracked;
+        frameTime = other.frameTime;
+        inferenceNanos = other.inferenceNanos;
+    }
+
+    //boxes found in a crop are relative to the crop, move them into the frame the crop was cut from
+    //the crop's left, top, width and height are relative to that frame too
+    public void toRegion(float left, float top, float width, float height) {
+        for (int i = 0; i < count * 4; i += 4) {
+            boxes[i] = left + boxes[i] * width;
+            boxes[i + 1] = top + boxes[i + 1] * height;
+            boxes[i + 2] = left + boxes[i + 2] * width;
+            boxes[i + 3] = top + boxes[i + 3] * height;
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int classId(int i) {
+        return classIds[i];
+    }
+
+    public float score(int i) {
+        return scores[i];
+    }
+
+    public int id(int i) {
+        return ids[i];
+    }
+
+    public float left(int i) {
+        return boxes[i * 4];
+    }
+
+    public float top(int i) {
+        return boxes[i * 4 + 1];
+    }
+
+    public float right(int i) {
+        return boxes[i * 4 + 2];
+    }
+
+    public float bottom(int i) {
+        return boxes[i * 4 + 3];
+    }
+
+    //boxes of all objects, 4 floats each
+    public float[] getBoxes() {
+        return boxes;
+    }
+
+    public boolean isTracked() {
+        return tracked;
+    }
+
+    public long getFrameTime() {
+        return frameTime;
+    }
+
+    public long getInferenceNanos() {
+        return inferenceNanos;
+    }
+
+    public void setInferenceNanos(long inferenceNanos) {
+        this.inferenceNanos = inferenceNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "Detections count=" + count + " inference=" + inferenceNanos / 1000000 + "ms";
+    }
+}
@@ -1,79 +1,190 @@
 package com.example.my_opencv;
 
-import android.graphics.Bitmap;
 import android.os.Environment;
+import android.util.Log;
 
-import org.opencv.android.Utils;
-import org.opencv.core.CvException;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
-import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.videoio.VideoWriter;
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-public class DroneConnect implements Runnable {
+public class DroneConnect implements DroneTransport.Handler {
+
+    private static final String TAG = "DroneConnect";
+
+    //biggest video packet accepted, anything larger means the stream is out of sync
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    //no data for this long means the link is dead, nav streams at 20 Hz so it is the heartbeat
+    private static final long VIDEO_READ_TIMEOUT_MS = 3000;
+    private static final long NAV_READ_TIMEOUT_MS = 1500;
+
+    //recordings are cut into segments of this length, a crash loses at most the one being written
+    private static final long RECORD_SEGMENT_MILLIS = 60 * 1000;
+    //oldest segments are deleted past this, or when the phone gets down to the free space floor
+    private static final long RECORD_QUOTA_BYTES = 4L * 1024 * 1024 * 1024;
+    private static final long RECORD_MIN_FREE_BYTES = 512L * 1024 * 1024;
+
+    //the last seconds of jpeg frames kept for a recording started late, capped by bytes not frames
+    private static final int PRE_EVENT_BYTES = 12 * 1024 * 1024;
+    private static final int PRE_EVENT_FRAMES = 512;
+    private static final long PRE_EVENT_MILLIS = 5000;
 
     //network info
     private final String IP;
     private final int PORT;
 
-    //sockets
-    protected Socket socket;
-    protected DataInputStream input;
-    protected DataOutputStream output;
-    protected boolean online;
+    //channel on the shared transport
+    protected DroneTransport transport;
+    protected DroneTransport.Connection connection;
+    protected ConnectionSupervisor supervisor;
+    protected volatile boolean online;
+    private boolean receiving; //the drone sent a whole message or frame on this connection
 
     protected double[] dataToDrone;
     protected double[] dataFromDrone;
     protected DroneListener listener;
     protected MainActivity main;
 
-    protected VideoWriter videoWriter;
-    protected int record; //0 nothing, 1 record, 2 pause, 3 stop (and save)
-    protected Size size;
-
-    public DroneConnect(String IP, int PORT, MainActivity main) {
+    protected Recorder recorder;
+    protected PreEventBuffer preEvent;
+    protected FramePool framePool;
+    protected NavProtocol navProtocol;
+    protected NavSender navSender;
+    protected VideoController videoController;
+    protected volatile FlightLog flightLog;
+    protected volatile LatencyStats latency;
+    protected volatile Metrics metrics;
+    protected final Metrics.Counter hints;
+
+    //video framing state, only touched on the transport thread
+    private VideoPipeline pipeline;
+    private final ByteBuffer sizeBuffer;
+    private final ByteBuffer skipBuffer;
+    private final ByteBuffer helloBuffer;
+    private final ByteBuffer stampBuffer;
+    private Frame frame;
+    private boolean awaitingHello; //the first header may be the drone's codec answer instead of a size
+    private boolean timestamped;   //the drone sends capture and send times ahead of each jpeg
+    private int stampedSize;       //size of the jpeg after the timestamps being read
+
+    //h264 mode, the stream is unframed so it is read in chunks and split by the parser
+    private volatile boolean h264Enabled;
+    private ByteBuffer streamBuffer;
+    private AnnexBParser h264Parser;
+    private H264Decoder h264Decoder;
+
+    //nav framing state, only touched on the transport thread
+    private ByteBuffer navBuffer;
+    private final ByteBuffer navHead; //first bytes of a framed connection, tell a v5 server apart
+    private boolean navAnswered;      //the drone sent something on this session
+    private final byte[] fieldBytes;
+    private final double[] syncReply;
+    private int field;
+    private NavCommand pendingCommand;
+
+    //drone state is handed to a worker so slow listeners never stall the transport
+    private LatestSlot<double[]> navUpdates;
+    private Thread navWorker;
+    private Thread sender;
+
+    public DroneConnect(String IP, int PORT, MainActivity main, DroneTransport transport) {
         this.IP = IP;
         this.PORT = PORT;
         this.main = main;
+        this.transport = transport;
         listener = null;
         dataToDrone = new double[]{0, 0, 0, 0, 0, 0, 0};  //button pressed, flight mode, velocity, lat, long
         dataFromDrone = new double[]{0, 0, 0, 0, 0, 0, 0};  //status, battery, velocity, altitude, error code, long, lat
         online = false;
-        record = 0;
-        size = new Size(640, 360);
+        navProtocol = new NavProtocol(false);
+        navSender = new NavSender(50);
+        supervisor = new ConnectionSupervisor(250, 4000, 30000);
+        hints = new Metrics.Counter();
+        sizeBuffer = ByteBuffer.allocate(4);
+        skipBuffer = ByteBuffer.allocate(1);
+        helloBuffer = ByteBuffer.allocate(VideoProtocol.HELLO_SIZE - 4);
+        stampBuffer = ByteBuffer.allocate(VideoProtocol.TIMESTAMPS_SIZE);
+        h264Enabled = true;
+        navHead = ByteBuffer.allocate(4);
+        fieldBytes = new byte[8];
+        syncReply = new double[NavProtocol.FIELDS];
+
+        //recording, the replay ring and the frame buffers are only needed on the video link, the
+        //pre-event ring alone holds 12MB, they stay null on the nav link
+        if (PORT == 9999) {
+            recorder = new Recorder(32, new SegmentStore(new File(Environment.getExternalStorageDirectory(), "Drone"),
+                    RECORD_QUOTA_BYTES, RECORD_MIN_FREE_BYTES), RECORD_SEGMENT_MILLIS);
+            preEvent = new PreEventBuffer(PRE_EVENT_BYTES, PRE_EVENT_FRAMES, PRE_EVENT_MILLIS);
+            framePool = new FramePool(8);
+            videoController = new VideoController(1000, 40);
+        }
 
-        main.setAppListener(new AppListener() {
+        //app state and commands only go out on the nav link, video registering too would replace it
+        //main is null when the link is driven without the app, e.g. from the tests
+        if (PORT != 9999 && main != null) {
+            main.setAppListener(new AppListener() {
 
-            @Override
-            public void onDisconnectDrone() {
-                online = false;
-            }
+                @Override
+                public void onDisconnectDrone() {
+                    online = false;
+                }
 
-            @Override
-            public void onUpdateDrone(double[] data) {
+                @Override
+                public void onUpdateDrone(double[] data) {
 
-                dataToDrone = data;
-            }
+                    dataToDrone = data;
+                }
 
-            @Override
-            public void onRecordUpdate(int status) {
+                @Override
+                public void onCommand(int button) {
 
-                record = status;
+                    navSender.submit(button);
+                }
+            });
+        }
+    }
 
-            }
-        });
+    //log every packet and nav exchange on this link, shared by the video and nav connections, null to stop
+    public void setFlightLog(FlightLog flightLog) {
+        this.flightLog = flightLog;
+        navSender.setLog(flightLog);
+    }
+
+    //glass to glass latency, shared by the video and nav connections: nav keeps its clock synced with
+    //the drone, video stamps frames with the drone's capture times, null to stop
+    public void setLatencyStats(LatencyStats latency) {
+        this.latency = latency;
+        navSender.setClockSync(latency != null ? latency.getClock() : null);
+    }
+
+    //stats of this link as video.* or nav.*, the video pipeline of each new connection registers again
+    public void registerMetrics(Metrics metrics) {
+        this.metrics = metrics;
+
+        if (PORT == 9999) {
+            metrics.gauge("video.fps", videoController::getMeasuredFps);
+            metrics.gauge("video.fps.asked", videoController::getFps);
+            metrics.gauge("video.quality", videoController::getQuality);
+            metrics.gauge("video.jitter.ms", videoController::getJitterMs);
+            metrics.gauge("video.decode.ms", videoController::getDecodeMs);
+            metrics.gauge("video.pool.misses", framePool::getMisses);
+            metrics.gauge("video.pool.mats", framePool::getLiveMats);
+            metrics.gauge("video.preevent.frames", preEvent::getCount);
+            metrics.gauge("video.link.attempts", supervisor::getAttempts);
+            recorder.registerMetrics(metrics);
+        } else {
+            metrics.gauge("nav.online", () -> online ? 1 : 0);
+            metrics.gauge("nav.states.sent", () -> navSender.getSent(0));
+            metrics.gauge("nav.states.received", () -> navProtocol.getRemoteSequence());
+            metrics.gauge("nav.states.missed", () -> navProtocol.getMissed());
+            metrics.gauge("nav.commands.queued", navSender::getQueued);
+            metrics.register("nav.hints", hints);
+            metrics.gauge("nav.link.attempts", supervisor::getAttempts);
+            metrics.gauge("nav.link.recoveries", supervisor::getRecoveries);
+        }
     }
 
     //listener setter
@@ -81,225 +192,551 @@ public class DroneConnect implements Runnable {
         this.listener = listener;
     }
 
-    @Override
-    public void run() {
-        connect();
+    //adaptive stream control for the video link, its hints go out through the nav link, null on nav
+    public VideoController getVideoController() {
+        return videoController;
+    }
+
+    //ask the drone for a different video stream, old servers can't take hints
+    public void sendVideoHint(int quality, double scale, int fps) {
+        if (!navProtocol.isLegacy()) {
+            hints.increment();
+            navSender.submitHint(quality, scale, fps);
+        }
+    }
+
+    //recording of the video feed, start with startRecording, then pause/resume/stop on the recorder
+    //null on the nav link
+    public Recorder getRecorder() {
+        return recorder;
+    }
+
+    //record into a new folder of segments, frames are timed by arrival on a grid of the fps the drone is asked for
+    //the recording starts with the last few seconds before it was asked for
+    public void startRecording() {
+        recorder.start("KLI_" + getDateTime(), videoController.getFps(), preEvent);
+    }
+
+    //instant replay of the jpeg feed, only filled while the drone sends mjpeg, null on the nav link
+    public PreEventBuffer getPreEventBuffer() {
+        return preEvent;
     }
 
-    //try to establish a connection
-    private void connect() {
-        // establish a connection
+    //offer h264 to the drone on the next connect, used only if the phone has a decoder
+    public void setH264Enabled(boolean enabled) {
+        h264Enabled = enabled;
+    }
+
+    //start connecting on the shared transport, returns right away
+    //the link is kept up with retries until disconnect is called
+    public void connect() {
+        if (connection != null && connection.isConnected()) {
+            return;
+        }
+
+        //the exchange found on an earlier session is kept, a session that gets no answer switches it
+        supervisor.start();
+        open();
+    }
+
+    private void open() {
         try {
-            socket = new Socket(IP, PORT);
-            System.out.println("Connected to " + socket.toString());
+            connection = transport.open(IP, PORT, this, PORT == 9999 ? VIDEO_READ_TIMEOUT_MS : NAV_READ_TIMEOUT_MS);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to establish a connection to drone.");
+            supervisor.stop();
+            if (listener != null) {
+                listener.onOnlineStatus(false);
+            }
+        }
+    }
 
-            online = true;
-            input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
+    //try again after a backoff delay, returns false once the supervisor gives up
+    private boolean reconnect() {
+        long delay = supervisor.onDown();
 
-        } catch (UnknownHostException u) {
-            u.printStackTrace();
-            online = false;
-        } catch (IOException i) {
-            online = false;
-            i.printStackTrace();
+        if (delay < 0) {
+            return false;
         }
 
-        listener.onOnlineStatus(online);
+        Log.i(TAG, "Reconnecting to " + IP + ":" + PORT + " in " + delay + "ms");
 
-        //if online continue to update gui and start communication
-        if (online) {
+        if (listener != null) {
+            listener.onReconnecting(supervisor.getAttempts());
+        }
 
-            if (PORT == 9999) {
-                video_comms();
+        try {
+            transport.schedule(() -> {
+                if (supervisor.isEnabled()) {
+                    open();
+                }
+            }, delay);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
 
-            } else {
+        return true;
+    }
 
-                nav_comms();
-            }
+    @Override
+    public ByteBuffer onConnected(DroneTransport.Connection connection) throws IOException {
+        Log.i(TAG, "Connected to " + IP + ":" + PORT);
 
+        receiving = false;
+        online = true;
+        if (listener != null) {
+            listener.onOnlineStatus(online);
+        }
+
+        if (PORT == 9999) {
+            return video_start(connection);
+        } else {
+            return nav_start(connection);
+        }
+    }
+
+    @Override
+    public ByteBuffer onRead(DroneTransport.Connection connection, ByteBuffer full) throws IOException {
+        if (PORT == 9999) {
+            return video_read(connection, full);
         } else {
+            return nav_read(connection, full);
+        }
+    }
+
+    @Override
+    public void onClosed(DroneTransport.Connection connection, IOException cause) {
+        if (cause != null) {
+            cause.printStackTrace();
+        }
+
+        boolean wasOnline = pipeline != null || navWorker != null;
+        online = false;
+
+        //DroneServer v5 fails to unpack a framed message and never answers it, and a framed server
+        //won't answer a lone field either, so silence until the read timeout means try the other one
+        if (PORT != 9999 && navWorker != null && !navAnswered && cause instanceof SocketTimeoutException) {
+            navProtocol.setLegacy(!navProtocol.isLegacy());
+            Log.w(TAG, "No answer from the nav server, trying the "
+                    + (navProtocol.isLegacy() ? "lockstep" : "framed") + " exchange");
+        }
+
+        if (!wasOnline) {
             System.out.println("Failed to establish a connection to drone.");
+        } else if (PORT == 9999) {
+            video_stop();
+        } else {
+            nav_stop();
+        }
+
+        //dropped without the user asking, keep the session and retry
+        if (cause != null && supervisor.isEnabled() && reconnect()) {
+            return;
+        }
+
+        supervisor.stop();
+        Log.d(TAG, supervisor.toString());
+
+        if (listener != null) {
+            listener.onOnlineStatus(false);
         }
     }
 
-    protected void nav_comms() {
+    //the outage only ends on data, a peer that accepts and never answers is given up on in time
+    private void onReceiving() {
+        if (!receiving) {
+            receiving = true;
+            supervisor.onUp();
+        }
+    }
 
-        System.out.println("Established nav comms.");
+    //================================ nav ======================================================
 
-        //String reply = "";
+    private ByteBuffer nav_start(DroneTransport.Connection connection) throws IOException {
 
-        double intData; // int
-        byte[] intDataBytes; // int in bytes
+        Log.i(TAG, "Established nav comms.");
 
-        while (online) {
+        //the drone may have restarted with another clock, probes start again once the sender runs
+        LatencyStats stats = latency;
+        if (stats != null) {
+            stats.getClock().reset();
+        }
 
+        navAnswered = false;
+        navUpdates = new LatestSlot<>();
+        navWorker = new Thread(() -> {
             try {
+                while (online) {
+                    double[] data = navUpdates.take();
+
+                    //set latest data from drone to app
+                    if (listener != null) {
+                        listener.onSetAppData(data);
+                    }
+                }
+            } catch (InterruptedException e) {
+                //stopping
+            }
+        }, "nav-worker");
+        navWorker.start();
+
+        if (navProtocol.isLegacy()) {
+            navBuffer = ByteBuffer.allocate(8);
+            field = 0;
+            nav_nextUpdate();
+            nav_sendField(connection);
+
+        } else {
+            navBuffer = ByteBuffer.allocate(NavProtocol.MESSAGE_SIZE);
 
-                //get latest data from app
+            //commands and app state go out on their own thread, drone state streams in at the drone's rate
+            navSender.start(navProtocol, connection, () -> {
                 if (listener != null) {
                     listener.onGetAppData();
                 }
+                return dataToDrone;
+            });
 
-                //System.out.printf("sent: %s %s %s", dataToDrone[0], dataToDrone[1], dataToDrone[2]);
+            sender = new Thread(navSender, "nav-send");
+            sender.start();
 
-                //get drone info
-                for (int x = 0; x < dataFromDrone.length; x++) {
+            //a framed server answers with its magic, a v5 one with a single field
+            navHead.clear();
+            return navHead;
+        }
 
-                    //send app info
-                    output.writeDouble(dataToDrone[x]);
+        return navBuffer;
+    }
 
-                    //get 4 new bytes from drone and convert to int
-                    intDataBytes = new byte[8];
-                    input.read(intDataBytes);
-                    intData = ByteBuffer.wrap(intDataBytes).asDoubleBuffer().get();
+    private ByteBuffer nav_read(DroneTransport.Connection connection, ByteBuffer full) throws IOException {
 
-                    //update drone info
-                    dataFromDrone[x] = intData;
+        navAnswered = true;
 
-                    // reply += String.valueOf(intData);
+        if (full == navHead) {
+            if (navHead.getInt(0) != NavProtocol.MAGIC) {
+                //DroneServer v5 and older took our message as fields, the stream is out of step
+                //the supervisor reconnects and the next session talks lockstep
+                navProtocol.setLegacy(true);
+                throw new IOException("Nav server is v5 or older, reconnecting with the lockstep exchange");
+            }
 
-                }
+            //the magic was the start of the first message, read the rest of it
+            navBuffer.clear();
+            navBuffer.put(navHead.array(), 0, navHead.capacity());
+            return navBuffer;
+        }
 
-                //set latest data from drone to app
-                if (listener != null) {
-                    listener.onSetAppData(dataFromDrone);
+        if (navProtocol.isLegacy()) {
+
+            //old servers answer one field at a time
+            dataFromDrone[field] = full.getDouble(0);
+            field++;
+
+            if (field == dataFromDrone.length) {
+                onReceiving();
+                nav_log(FlightLog.NAV_FROM_DRONE, dataFromDrone);
+                if (pendingCommand != null) {
+                    navSender.record(pendingCommand.getButton(), System.nanoTime() - pendingCommand.enqueued);
                 }
 
+                nav_publish();
+                field = 0;
+                nav_nextUpdate();
+            }
+
+            nav_sendField(connection);
 
-            } catch (IOException e) {
-                e.printStackTrace();
-                online = false;
+        } else if (NavProtocol.type(full) == NavProtocol.TYPE_TIME_SYNC) {
+            //answer to a clock probe, timed as soon as it is read
+            long received = System.nanoTime();
+            navProtocol.decode(full, syncReply);
+            onReceiving();
+            LatencyStats stats = latency;
+            if (stats != null) {
+                stats.getClock().onReply(syncReply, received);
             }
+
+        } else {
+            navProtocol.decode(full, dataFromDrone);
+            onReceiving();
+            nav_log(FlightLog.NAV_FROM_DRONE, dataFromDrone);
+            nav_publish();
         }
 
+        full.clear();
+        return full;
+    }
 
+    //get latest data from app, the most urgent queued command rides along in the lockstep update
+    private void nav_nextUpdate() {
         if (listener != null) {
-            listener.onOnlineStatus(false);
+            listener.onGetAppData();
         }
 
-        try {
+        pendingCommand = navSender.poll();
+        dataToDrone[0] = pendingCommand != null ? pendingCommand.getButton() : 0;
+        nav_log(FlightLog.NAV_TO_DRONE, dataToDrone);
+    }
 
-            input.close();
-            output.close();
-            socket.close();
-            System.out.println("successfully closed nav socket");
+    private void nav_log(byte type, double[] values) {
+        FlightLog log = flightLog;
+        if (log != null) {
+            log.nav(type, System.nanoTime(), values);
+        }
+    }
 
-        } catch (
-                IOException i) {
-            i.printStackTrace();
+    private void nav_sendField(DroneTransport.Connection connection) throws IOException {
+        long bits = Double.doubleToLongBits(dataToDrone[field]);
+        for (int x = 0; x < 8; x++) {
+            fieldBytes[x] = (byte) (bits >>> (56 - 8 * x));
         }
+        connection.send(fieldBytes, 0, 8);
+    }
 
+    //hand a copy of the drone state to the worker, reusing a copy it never picked up
+    private void nav_publish() {
+        double[] copy = navUpdates.poll();
+        if (copy == null) {
+            copy = new double[dataFromDrone.length];
+        }
+        System.arraycopy(dataFromDrone, 0, copy, 0, copy.length);
+        navUpdates.offer(copy);
     }
 
-    protected void video_comms() {
+    //the threads are interrupted and finish on their own, the transport thread serves the other link
+    //meanwhile, a reconnect comes at least a backoff delay later
+    private void nav_stop() {
+        navSender.stop();
 
-        System.out.println("Established video comms.");
+        for (Thread thread : new Thread[]{sender, navWorker}) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
 
-        new Mat();
-        Mat myFrame;       //frame converted from bytes
-        byte[] fr;         //frame in bytes
-        int bytesToRead;   //size of packet
-        byte[] size_buff;  //size of packet in bytes
+        sender = null;
+        navWorker = null;
 
-        while (online) {
-            try {
+        Log.d(TAG, navSender.toString());
+        LatencyStats stats = latency;
+        if (stats != null) {
+            Log.d(TAG, stats.getClock().toString());
+        }
+        Log.d(TAG, "nav sequence sent=" + navProtocol.getSequence()
+                + " received=" + navProtocol.getRemoteSequence() + " missed=" + navProtocol.getMissed());
+        Log.i(TAG, "successfully closed nav socket");
+    }
 
-                // Get size of packet
-                size_buff = new byte[4];
-                input.read(size_buff);
-                bytesToRead = ByteBuffer.wrap(size_buff).asIntBuffer().get();
+    //================================ video ====================================================
 
-                if (bytesToRead > 0) {
+    private ByteBuffer video_start(DroneTransport.Connection connection) throws IOException {
 
-                    //byte frame
-                    fr = new byte[bytesToRead];
+        Log.i(TAG, "Established video comms.");
 
+        //decode, record and display run on their own threads so the transport is never stalled
+        pipeline = new VideoPipeline(framePool, this::processFrame, f -> {
+            if (listener != null) {
+                listener.onUpdateImageView(f);
+            }
+        });
+        pipeline.start();
+        videoController.reset();
 
-                    //get frame
-                    input.readFully(fr);
+        Metrics registry = metrics;
+        if (registry != null) {
+            pipeline.registerMetrics(registry);
+        }
 
-                    //convert binary to MAT
-                    myFrame = Imgcodecs.imdecode(new MatOfByte(fr), Imgcodecs.IMREAD_COLOR);
+        //say which codecs we can take, jpeg always works, and ask for the drone's frame times
+        int codecs = VideoProtocol.CODEC_MJPEG | VideoProtocol.FLAG_TIMESTAMPS;
+        if (h264Enabled && H264Decoder.isSupported()) {
+            codecs |= VideoProtocol.CODEC_H264;
+        }
+        byte[] hello = VideoProtocol.hello(codecs);
+        connection.send(hello, 0, hello.length);
+        awaitingHello = true;
+        timestamped = false;
 
-                    if (record == 1 ){
-                       if(videoWriter == null){
-                           videoWriter = new VideoWriter(recordFilePath(),VideoWriter.fourcc('M', 'J', 'P', 'G'),30.0, size);
+        sizeBuffer.clear();
+        return sizeBuffer;
+    }
 
-                       }
+    //packets are a big endian int size followed by the jpeg bytes, unless the drone picked h264
+    //a drone that agreed to timestamps puts its capture and send times between the two
+    private ByteBuffer video_read(DroneTransport.Connection connection, ByteBuffer full) throws IOException {
 
-                       if(!videoWriter.isOpened()){
+        if (full == streamBuffer) {
+            FlightLog log = flightLog;
+            if (log != null) {
+                log.video(FlightLog.VIDEO_H264, System.nanoTime(), streamBuffer.array(), streamBuffer.position());
+            }
+            h264Parser.feed(streamBuffer.array(), 0, streamBuffer.position());
+            onReceiving();
+            streamBuffer.clear();
+            return streamBuffer;
+        }
 
-                           videoWriter.open(recordFilePath(),VideoWriter.fourcc('M', 'J', 'P', 'G'),30.0, size);
-                       }
+        if (full == helloBuffer) {
+            byte codec = VideoProtocol.chosen(helloBuffer);
+            timestamped = VideoProtocol.timestamped(helloBuffer);
+            Log.i(TAG, "Video codec " + VideoProtocol.name(codec) + (timestamped ? " timestamped" : ""));
 
-                        System.out.println("Writing "+ myFrame.toString());
-                        videoWriter.write(myFrame);
+            if (codec == VideoProtocol.CODEC_H264) {
+                return h264_start(connection);
+            }
 
-                    } else if (record == 3) {
-                        System.out.println("released");
-                        videoWriter.release();
-                    }
+            sizeBuffer.clear();
+            return sizeBuffer;
+        }
 
-                    //convert and update image view
-                    //Bitmap bmp = convertMatToBitMap();
+        if (full == sizeBuffer) {
 
-                    //update image view
-                    if (listener != null) {
-                        listener.onUpdateImageView(myFrame);
-                    }
+            // Get size of packet
+            int bytesToRead = sizeBuffer.getInt(0);
+
+            //v7 servers answer the hello first, older ones go straight to jpeg
+            if (awaitingHello) {
+                awaitingHello = false;
 
-                } else {
-                    fr = new byte[1];
-                    //get frame
-                    input.readFully(fr);
+                if (bytesToRead == VideoProtocol.MAGIC) {
+                    helloBuffer.clear();
+                    return helloBuffer;
                 }
+            }
 
+            if (bytesToRead > MAX_FRAME_SIZE) {
+                throw new IOException("Bad video packet size " + bytesToRead);
+            }
+
+            if (bytesToRead > 0 && timestamped) {
+                stampedSize = bytesToRead;
+                stampBuffer.clear();
+                return stampBuffer;
+            }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (bytesToRead > 0) {
+                //reuse a pooled buffer for the frame
+                frame = framePool.acquire(bytesToRead);
+                return frame.readBuffer();
             }
 
+            //skip the filler byte
+            skipBuffer.clear();
+            return skipBuffer;
         }
 
-        if (listener != null) {
-            listener.onOnlineStatus(false);
+        if (full == stampBuffer) {
+            frame = framePool.acquire(stampedSize);
+
+            //drone times onto the phone's clock, left at 0 until the nav link has synced it
+            LatencyStats stats = latency;
+            if (stats != null) {
+                frame.captured = stats.getClock().toLocalNanos(stampBuffer.getLong(0));
+                frame.sent = stats.getClock().toLocalNanos(stampBuffer.getLong(8));
+            }
+            return frame.readBuffer();
         }
 
-        try {
+        if (frame != null && full == frame.buffer) {
+            frame.received = System.nanoTime();
+            onReceiving();
+            videoController.onArrival(frame.received, frame.length);
 
-            input.close();
-            output.close();
-            socket.close();
-            System.out.println("successfully closed video socket");
+            //the jpeg goes into the replay buffer, flight log and recording as received, before decode can drop it
+            preEvent.add(frame.data, frame.length, frame.received);
+            FlightLog log = flightLog;
+            if (log != null) {
+                log.video(FlightLog.VIDEO_JPEG, frame.received, frame.data, frame.length);
+            }
+            recorder.submit(frame);
 
-        } catch (
-                IOException i) {
-            i.printStackTrace();
+            //hand off to decode, an undecoded older frame is dropped
+            pipeline.submit(frame);
+            frame = null;
         }
 
+        sizeBuffer.clear();
+        return sizeBuffer;
     }
 
-    //convert MAT to bmp
-    private static Bitmap convertMatToBitMap(Mat input) {
-        Bitmap bmp = null;
-        Mat rgb = new Mat();
-        Imgproc.cvtColor(input, rgb, Imgproc.COLOR_BGR2RGB);
+    //switch the channel to an unframed h264 stream feeding the hardware decoder
+    private ByteBuffer h264_start(DroneTransport.Connection connection) {
 
-        try {
-            bmp = Bitmap.createBitmap(rgb.cols(), rgb.rows(), Bitmap.Config.ARGB_8888);
-            Utils.matToBitmap(rgb, bmp);
-        } catch (CvException e) {
-            e.printStackTrace();
-            System.out.println("failed to convert mat to bmp");
+        h264Parser = new AnnexBParser((data, length, flags) -> {
+            //config units carry no picture, everything else is one frame for the controller
+            if ((flags & AnnexBParser.FLAG_CONFIG) == 0) {
+                videoController.onArrival(System.nanoTime(), length);
+            }
+            h264Decoder.onAccessUnit(data, length, flags);
+        });
+        h264Decoder = new H264Decoder(h264Parser, framePool, pipeline);
+
+        if (streamBuffer == null) {
+            streamBuffer = ByteBuffer.allocate(64 * 1024);
         }
-        return bmp;
+        streamBuffer.clear();
 
+        connection.setPartialReads(true);
+        return streamBuffer;
+    }
+
+    private void video_stop() {
+        if (h264Decoder != null) {
+            h264Decoder.stop();
+            Log.d(TAG, h264Decoder.toString());
+            h264Decoder = null;
+            h264Parser = null;
+        }
+
+        //the stages finish on their own threads, the last one empties the pool
+        if (pipeline != null) {
+            pipeline.stop(framePool::clear);
+            Log.d(TAG, pipeline.toString());
+            Log.d(TAG, videoController.toString());
+            pipeline = null;
+        }
+
+        framePool.release(frame);
+        frame = null;
+
+        Log.d(TAG, framePool.toString());
+
+        //a reconnect starts a new stream, don't replay frames from before the gap
+        Log.d(TAG, preEvent.toString());
+        preEvent.clear();
+        Log.i(TAG, "successfully closed video socket");
+    }
+
+    //process stage, frames without jpeg bytes (hardware h264) are recorded from the decoded mat
+    private void processFrame(Frame frame) {
+
+        videoController.onDecoded(frame.decodeNanos);
+
+        if (frame.length == 0) {
+            recorder.submit(frame);
+        }
+
+        if (listener != null) {
+            listener.onProcessFrame(frame);
+        }
     }
 
     public void disconnect() {
+        supervisor.stop();
+        if (recorder != null) {
+            recorder.stop();
+        }
         online = false;
 
+        if (connection != null && !connection.isClosed()) {
+            connection.close();
+        } else if (listener != null) {
+            //nothing open, e.g. waiting to retry
+            listener.onOnlineStatus(false);
+        }
+
     }
 
     //return current date and time
@@ -308,15 +745,4 @@ public class DroneConnect implements Runnable {
         return new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
 
     }
-
-    private String recordFilePath() {
-        File sddir = Environment.getExternalStorageDirectory();
-        File vrdir = new File(sddir, "Drone");
-        String mTimeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        File file = new File(vrdir, "KLI_" + mTimeStamp + ".avi");
-        String filepath = file.getAbsolutePath();
-
-        return filepath;
-
-    }
 }
@@ -1,15 +1,20 @@
 package com.example.my_opencv;
 
-import android.graphics.Bitmap;
-
-import org.opencv.core.Mat;
-
 public interface DroneListener {
 
-    void onUpdateImageView(Mat mat);
+    //process stage, the frame is drawn after this returns, work that follows every frame without
+    //drawing it (detection input, tracking) goes here so the render stage only draws
+    //frame belongs to DroneConnect and is recycled once drawn
+    void onProcessFrame(Frame frame);
+
+    //render stage, frame belongs to DroneConnect and is recycled after this returns
+    void onUpdateImageView(Frame frame);
 
     void onOnlineStatus(boolean online);
 
+    //link dropped and a retry is scheduled, onOnlineStatus(false) only comes if retries give up
+    void onReconnecting(int attempt);
+
     void onSetAppData(double [] data);
 
     void onGetAppData();
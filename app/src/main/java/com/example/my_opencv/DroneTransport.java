@@ -0,0 +1,408 @@
+package com.example.my_opencv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+//non blocking transport, every drone channel (video, nav, ...) is served by one selector thread
+//handlers say which buffer to read into next, so framing is just a chain of buffers
+public class DroneTransport implements Runnable {
+
+    //how a channel turns bytes into frames, called on the transport thread only
+    public interface Handler {
+
+        //channel connected, return the first buffer to read into
+        ByteBuffer onConnected(Connection connection) throws IOException;
+
+        //buffer was filled (or got any bytes, with partial reads on), return the next one to read into
+        ByteBuffer onRead(Connection connection, ByteBuffer full) throws IOException;
+
+        //channel closed or failed to connect, cause is null when closed on purpose
+        void onClosed(Connection connection, IOException cause);
+    }
+
+    //one socket channel registered with the transport
+    public class Connection {
+
+        private final String host;
+        private final int port;
+        private final Handler handler;
+        private final ByteBuffer writeBuffer;
+        private final long readTimeoutMs;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        private long connectDeadline; //nanoTime
+        private long lastRead;        //nanoTime
+        private boolean partialReads;
+        private volatile boolean connected;
+        private volatile boolean closed;
+
+        private Connection(String host, int port, Handler handler, long readTimeoutMs) {
+            this.host = host;
+            this.port = port;
+            this.handler = handler;
+            this.readTimeoutMs = readTimeoutMs;
+            writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            connected = false;
+            closed = false;
+        }
+
+        //queue bytes to send, safe from any thread
+        public void send(byte[] data, int offset, int length) throws IOException {
+            if (!offer(data, offset, length)) {
+                throw new IOException("Send buffer full for " + host + ":" + port);
+            }
+        }
+
+        //queue bytes to send if they fit, false when the send buffer is full because the peer stopped reading
+        //for messages that can be skipped, e.g. a periodic state the next one replaces
+        public boolean offer(byte[] data, int offset, int length) throws IOException {
+            if (closed) {
+                throw new IOException("Connection to " + host + ":" + port + " is closed");
+            }
+
+            synchronized (writeBuffer) {
+                if (writeBuffer.remaining() < length) {
+                    return false;
+                }
+                writeBuffer.put(data, offset, length);
+            }
+
+            post(() -> {
+                if (key != null && key.isValid() && connected) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+            return true;
+        }
+
+        //close from any thread, the handler gets onClosed with a null cause
+        public void close() {
+            post(() -> closeConnection(this, null));
+        }
+
+        //close from any thread because the link failed outside the transport, the handler gets the cause
+        public void close(IOException cause) {
+            post(() -> closeConnection(this, cause));
+        }
+
+        //hand every read to the handler instead of waiting for a full buffer, for unframed streams
+        //the handler has to return an empty buffer each time, only call it from the handler itself
+        public void setPartialReads(boolean partialReads) {
+            this.partialReads = partialReads;
+        }
+
+        public boolean isConnected() {
+            return connected && !closed;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+    }
+
+    //a task waiting to run on the transport thread
+    private static class Timer implements Comparable<Timer> {
+        final long due; //nanoTime, compared by difference so it can wrap
+        final Runnable task;
+
+        Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.signum(due - other.due);
+        }
+    }
+
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final long SELECT_MS = 100;
+
+    private final long connectTimeoutMs;
+    private final long readTimeoutMs;
+
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final ArrayList<Connection> connections;
+    private final PriorityQueue<Timer> timers;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    public DroneTransport(long connectTimeoutMs, long readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        tasks = new ConcurrentLinkedQueue<>();
+        connections = new ArrayList<>();
+        timers = new PriorityQueue<>();
+        running = false;
+    }
+
+    //start connecting to host:port, the result is reported to the handler
+    public Connection open(String host, int port, Handler handler) throws IOException {
+        return open(host, port, handler, readTimeoutMs);
+    }
+
+    //same as open but with its own read timeout, for channels that stream faster than the default
+    public Connection open(String host, int port, Handler handler, long readTimeoutMs) throws IOException {
+        start();
+
+        Connection connection = new Connection(host, port, handler, readTimeoutMs);
+
+        post(() -> {
+            try {
+                connection.channel = SocketChannel.open();
+                connection.channel.configureBlocking(false);
+                connection.channel.socket().setTcpNoDelay(true);
+                connection.connectDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMs);
+                connections.add(connection);
+
+                if (connection.channel.connect(new InetSocketAddress(host, port))) {
+                    connection.key = connection.channel.register(selector, 0, connection);
+                    finishConnect(connection);
+                } else {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                }
+
+            } catch (IOException e) {
+                closeConnection(connection, e);
+            } catch (RuntimeException e) {
+                //e.g. an unresolved host, or the handler failing in onConnected
+                closeConnection(connection, failed(connection, e));
+            }
+        });
+
+        return connection;
+    }
+
+    private synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+
+        selector = Selector.open();
+        running = true;
+        thread = new Thread(this, "drone-io");
+        thread.start();
+    }
+
+    //close every connection and stop the transport thread
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        selector.wakeup();
+
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //run a task on the transport thread after delayMs, with select round granularity
+    public void schedule(Runnable task, long delayMs) throws IOException {
+        start();
+
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        post(() -> timers.add(new Timer(due, task)));
+    }
+
+    //run a task on the transport thread
+    private void post(Runnable task) {
+        tasks.offer(task);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+
+        while (running) {
+            try {
+                selector.select(SELECT_MS);
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runTask(task);
+                }
+
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().due - now <= 0) {
+                    runTask(timers.poll().task);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            if (connection.channel.finishConnect()) {
+                                finishConnect(connection);
+                            }
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (IOException e) {
+                        closeConnection(connection, e);
+                    } catch (RuntimeException e) {
+                        //a handler failing, e.g. a codec error while decoding, only takes its own link down
+                        closeConnection(connection, failed(connection, e));
+                    }
+                }
+
+                checkTimeouts();
+
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (Connection connection : new ArrayList<>(connections)) {
+            closeConnection(connection, null);
+        }
+        timers.clear();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void finishConnect(Connection connection) throws IOException {
+        connection.connected = true;
+        connection.lastRead = System.nanoTime();
+        connection.readBuffer = connection.handler.onConnected(connection);
+
+        int ops = SelectionKey.OP_READ;
+        synchronized (connection.writeBuffer) {
+            if (connection.writeBuffer.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+        }
+        connection.key.interestOps(ops);
+    }
+
+    //read as much as is available, handing each filled buffer to the handler
+    private void read(Connection connection) throws IOException {
+        int count;
+
+        while ((count = connection.channel.read(connection.readBuffer)) > 0) {
+            connection.lastRead = System.nanoTime();
+
+            while (!connection.readBuffer.hasRemaining()
+                    || (connection.partialReads && connection.readBuffer.position() > 0)) {
+                connection.readBuffer = connection.handler.onRead(connection, connection.readBuffer);
+            }
+        }
+
+        if (count < 0) {
+            throw new EOFException("Connection to " + connection.host + ":" + connection.port + " closed by drone");
+        }
+    }
+
+    private void write(Connection connection) throws IOException {
+        synchronized (connection.writeBuffer) {
+            connection.writeBuffer.flip();
+            connection.channel.write(connection.writeBuffer);
+            connection.writeBuffer.compact();
+
+            if (connection.writeBuffer.position() == 0) {
+                connection.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    //connect and read timeouts, checked every select round on the monotonic clock
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (!connection.connected && now - connection.connectDeadline > 0) {
+                closeConnection(connection, new SocketTimeoutException(
+                        "Connect to " + connection.host + ":" + connection.port + " timed out"));
+
+            } else if (connection.connected && connection.readTimeoutMs > 0
+                    && now - connection.lastRead > TimeUnit.MILLISECONDS.toNanos(connection.readTimeoutMs)) {
+                closeConnection(connection, new SocketTimeoutException("No data from " + connection.host
+                        + ":" + connection.port + " for " + connection.readTimeoutMs + "ms"));
+            }
+        }
+    }
+
+    private void closeConnection(Connection connection, IOException cause) {
+        if (connection.closed) {
+            return;
+        }
+
+        connection.closed = true;
+        connection.connected = false;
+        connections.remove(connection);
+
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+
+        try {
+            if (connection.channel != null) {
+                connection.channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        try {
+            connection.handler.onClosed(connection, cause);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //tasks and timers come from the handlers, one failing must not stop the thread every link runs on
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static IOException failed(Connection connection, RuntimeException cause) {
+        return new IOException("Handler failed on " + connection.host + ":" + connection.port, cause);
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+//append-only flight data recorder: every received video packet and every nav exchange with the time it happened
+//records are copied into a memory-mapped window of the file, so logging is a memcpy and no syscall; a
+//new window is mapped every few MB, and what is in the mapped pages survives the app crashing
+//the file is cut at maxBytes, records past it are counted as dropped, and so are records once the
+//device gets down to minFreeBytes, checked whenever a new window is mapped
+//layout, big endian:
+//  header: magic(4) version(4) wall clock ms(8) System.nanoTime() at open(8)
+//  record: type(1) payload length(4) System.nanoTime()(8) payload
+//a type of 0 is the end, the file past the last record is zero filled until close trims it
+//see FlightReplay for reading it back
+public class FlightLog {
+
+    public static final int MAGIC = 0x464c4f47; //"FLOG"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 24;
+    public static final int RECORD_HEADER_SIZE = 13;
+
+    //record types
+    public static final byte END = 0;
+    public static final byte VIDEO_JPEG = 1;     //one jpeg as framed by the drone
+    public static final byte VIDEO_H264 = 2;     //a chunk of the annex-b stream as read from the socket
+    public static final byte NAV_FROM_DRONE = 3; //drone state, NavProtocol.FIELDS doubles
+    public static final byte NAV_TO_DRONE = 4;   //app state and commands as sent
+    public static final byte NAV_HINT = 5;       //video hint as sent
+
+    private static final int WINDOW = 4 * 1024 * 1024;
+
+    private final File file;
+    private final long maxBytes;
+    private final long minFreeBytes;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long written;
+
+    //stats
+    private long records;
+    private long dropped;
+    private long remaps;
+
+    private FlightLog(File file, long maxBytes, long minFreeBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    //start a new log, an existing file is overwritten
+    public static FlightLog open(File file, long maxBytes) throws IOException {
+        return open(file, maxBytes, 0);
+    }
+
+    //same, but logging stops before the device has less than minFreeBytes left
+    public static FlightLog open(File file, long maxBytes, long minFreeBytes) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        FlightLog log = new FlightLog(file, maxBytes, minFreeBytes);
+        log.raf = new RandomAccessFile(file, "rw");
+        log.raf.setLength(0);
+        log.channel = log.raf.getChannel();
+        log.map(0, HEADER_SIZE);
+
+        log.window.putInt(MAGIC);
+        log.window.putInt(VERSION);
+        log.window.putLong(System.currentTimeMillis());
+        log.window.putLong(System.nanoTime());
+        log.written = HEADER_SIZE;
+        return log;
+    }
+
+    //log a video packet or stream chunk, false if the log is full or closed
+    public synchronized boolean video(byte type, long time, byte[] data, int length) {
+        if (!begin(type, time, length)) {
+            return false;
+        }
+
+        window.put(data, 0, length);
+        written += RECORD_HEADER_SIZE + length;
+        return true;
+    }
+
+    //log one nav message, false if the log is full or closed
+    public synchronized boolean nav(byte type, long time, double[] values) {
+        int length = NavProtocol.FIELDS * 8;
+        if (!begin(type, time, length)) {
+            return false;
+        }
+
+        for (int x = 0; x < NavProtocol.FIELDS; x++) {
+            window.putDouble(x < values.length ? values[x] : 0);
+        }
+        written += RECORD_HEADER_SIZE + length;
+        return true;
+    }
+
+    //room for the record in the window, mapping the next one if needed, and its header
+    private boolean begin(byte type, long time, int length) {
+        int size = RECORD_HEADER_SIZE + length;
+        if (channel == null || written + size > maxBytes) {
+            dropped++;
+            return false;
+        }
+
+        if (window.position() + size > window.capacity()) {
+            //the window is about to be filled in, leave the space recordings and the phone need
+            if (minFreeBytes > 0 && file.getUsableSpace() < minFreeBytes + Math.max(WINDOW, size)) {
+                dropped++;
+                return false;
+            }
+
+            try {
+                map(written, Math.max(WINDOW, size));
+            } catch (IOException e) {
+                //out of space most likely, the log so far stays readable
+                e.printStackTrace();
+                dropped++;
+                return false;
+            }
+        }
+
+        window.put(type);
+        window.putInt(length);
+        window.putLong(time);
+        records++;
+        return true;
+    }
+
+    private void map(long start, long size) throws IOException {
+        //the old window is unmapped once it is collected, its pages are already in the file
+        window = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(size, maxBytes - start));
+        windowStart = start;
+        remaps++;
+    }
+
+    //write the mapped pages out, e.g. after landing, without closing
+    public synchronized void flush() {
+        if (window != null) {
+            window.force();
+        }
+    }
+
+    //flush and trim the zero filled tail, nothing is logged after this
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            window.force();
+            window = null;
+            channel.truncate(written);
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+    }
+
+    //keep only the newest logs in a folder, by name which starts with the date
+    public static void prune(File dir, String suffix, int keep) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+        if (files == null || files.length <= keep) {
+            return;
+        }
+
+        Arrays.sort(files);
+        for (int x = 0; x < files.length - keep; x++) {
+            if (!files[x].delete()) {
+                System.out.println("Failed to delete " + files[x]);
+            }
+        }
+    }
+
+    //make room for the next log in a folder, the same policy as recordings: the oldest logs are deleted
+    //until at most keep - 1 are left, and the next one can grow to maxBytes with all of them within
+    //quotaBytes and minFreeBytes left on the device; returns how big the next one may grow, which is
+    //less than maxBytes when even deleting every log doesn't make that much room
+    public static long makeRoom(File dir, String suffix, int keep, long maxBytes, long quotaBytes,
+                                long minFreeBytes) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(suffix));
+        if (files == null) {
+            files = new File[0];
+        }
+
+        long used = 0;
+        for (File file : files) {
+            used += file.length();
+        }
+        long limit = Math.min(quotaBytes, used + dir.getUsableSpace() - minFreeBytes);
+
+        Arrays.sort(files);
+        for (int x = 0; x < files.length; x++) {
+            if (files.length - x < keep && limit - used >= maxBytes) {
+                break;
+            }
+
+            long length = files[x].length();
+            if (files[x].delete()) {
+                used -= length;
+            } else {
+                System.out.println("Failed to delete " + files[x]);
+            }
+        }
+
+        return Math.max(0, Math.min(maxBytes, limit - used));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getWritten() {
+        return written;
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FlightLog " + file.getName() + " records=" + records + " bytes=" + written / 1024 + "KB dropped="
+                + dropped + " windows=" + remaps + " at=" + windowStart / 1024 + "KB";
+    }
+}
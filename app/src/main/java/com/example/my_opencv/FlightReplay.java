@@ -0,0 +1,289 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//plays a FlightLog back into a DroneListener as if the drone was connected: jpegs go through the same
+//decode/process/render pipeline as live video (h264 through the parser and hardware decoder) and drone
+//states come to onSetAppData, each at its original time divided by the speed
+//speed 0 plays everything as fast as it can be handed over, for repeatable performance runs
+public class FlightReplay implements Runnable {
+
+    //walks the records of a log, the data array is reused by the next record
+    public static class Reader {
+
+        private final MappedByteBuffer log;
+        private final long wallMillis;
+        private final long startNanos;
+
+        private byte type;
+        private long time;
+        private int length;
+        private byte[] data;
+
+        public Reader(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                log = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+
+            if (log.limit() < FlightLog.HEADER_SIZE || log.getInt() != FlightLog.MAGIC) {
+                throw new IOException("Not a flight log: " + file);
+            }
+
+            int version = log.getInt();
+            if (version != FlightLog.VERSION) {
+                throw new IOException("Unknown flight log version " + version);
+            }
+
+            wallMillis = log.getLong();
+            startNanos = log.getLong();
+            data = new byte[64 * 1024];
+        }
+
+        //move to the next record, false at the end of the log
+        //a record cut short by a crash while logging ends the log too
+        public boolean next() {
+            if (log.remaining() < FlightLog.RECORD_HEADER_SIZE) {
+                return false;
+            }
+
+            type = log.get();
+            if (type == FlightLog.END) {
+                return false;
+            }
+
+            length = log.getInt();
+            time = log.getLong();
+            if (length < 0 || length > log.remaining()) {
+                return false;
+            }
+
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            log.get(data, 0, length);
+            return true;
+        }
+
+        //the payload of a nav record
+        public void doubles(double[] values) {
+            for (int x = 0; x < values.length && (x + 1) * 8 <= length; x++) {
+                values[x] = getDouble(x * 8);
+            }
+        }
+
+        private double getDouble(int offset) {
+            long bits = 0;
+            for (int x = 0; x < 8; x++) {
+                bits = (bits << 8) | (data[offset + x] & 0xff);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        //System.nanoTime() on the phone that logged it
+        public long getTime() {
+            return time;
+        }
+
+        //wall clock of a record, ms
+        public long getWallMillis() {
+            return wallMillis + (time - startNanos) / 1000000;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private final File file;
+    private final DroneListener listener;
+    private final double speed;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    //video, made on the first frame
+    private FramePool pool;
+    private VideoPipeline pipeline;
+    private AnnexBParser h264Parser;
+    private H264Decoder h264Decoder;
+
+    //stats
+    private volatile long records;
+    private volatile long frames;
+    private volatile long states;
+    private volatile long maxLateNanos; //furthest behind the log's timing
+
+    public FlightReplay(File file, DroneListener listener, double speed) {
+        this.file = file;
+        this.listener = listener;
+        this.speed = speed;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(this, "flight-replay");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+
+        if (thread != null) {
+            thread.interrupt();
+            join(2000);
+            thread = null;
+        }
+    }
+
+    //wait for the replay to finish, false on timeout
+    public boolean join(long timeoutMs) {
+        Thread current = thread;
+        if (current == null) {
+            return true;
+        }
+
+        try {
+            current.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !current.isAlive();
+    }
+
+    @Override
+    public void run() {
+        Reader reader;
+        try {
+            reader = new Reader(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            running = false;
+            listener.onOnlineStatus(false);
+            return;
+        }
+
+        listener.onOnlineStatus(true);
+
+        long first = -1;
+        long start = System.nanoTime();
+
+        try {
+            while (running && reader.next()) {
+                if (first < 0) {
+                    first = reader.getTime();
+                }
+
+                //same spacing as in flight, scaled
+                if (speed > 0) {
+                    long due = start + (long) ((reader.getTime() - first) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        maxLateNanos = Math.max(maxLateNanos, -wait);
+                    }
+                }
+
+                play(reader);
+                records++;
+            }
+        } catch (InterruptedException e) {
+            //stopping
+        } finally {
+            if (h264Decoder != null) {
+                h264Decoder.stop();
+            }
+            if (pipeline != null) {
+                pipeline.stop();
+                System.out.println(pipeline.toString());
+            }
+
+            running = false;
+            System.out.println(toString());
+            listener.onOnlineStatus(false);
+        }
+    }
+
+    private void play(Reader reader) {
+        switch (reader.getType()) {
+            case FlightLog.VIDEO_JPEG: {
+                startVideo();
+                Frame frame = pool.acquire(reader.getLength());
+                System.arraycopy(reader.getData(), 0, frame.data, 0, reader.getLength());
+                frame.received = System.nanoTime();
+                pipeline.submit(frame);
+                frames++;
+                break;
+            }
+
+            case FlightLog.VIDEO_H264:
+                startVideo();
+                if (h264Parser == null && H264Decoder.isSupported()) {
+                    h264Parser = new AnnexBParser((data, length, flags) -> h264Decoder.onAccessUnit(data, length, flags));
+                    h264Decoder = new H264Decoder(h264Parser, pool, pipeline);
+                }
+                if (h264Parser != null) {
+                    h264Parser.feed(reader.getData(), 0, reader.getLength());
+                }
+                break;
+
+            case FlightLog.NAV_FROM_DRONE: {
+                //a new array each time, listeners may keep it like the live nav worker's copies
+                double[] state = new double[NavProtocol.FIELDS];
+                reader.doubles(state);
+                listener.onSetAppData(state);
+                states++;
+                break;
+            }
+
+            case FlightLog.NAV_TO_DRONE:
+                //the app was asked for its state at this point
+                listener.onGetAppData();
+                break;
+
+            default:
+                //hints and anything newer are not played
+                break;
+        }
+    }
+
+    private void startVideo() {
+        if (pipeline != null) {
+            return;
+        }
+
+        pool = new FramePool(8);
+        pipeline = new VideoPipeline(pool, listener::onProcessFrame, listener::onUpdateImageView);
+        pipeline.start();
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getStates() {
+        return states;
+    }
+
+    @Override
+    public String toString() {
+        return "FlightReplay " + file.getName() + " speed=" + speed + " records=" + records + " frames=" + frames
+                + " states=" + states + " maxLate=" + maxLateNanos / 1000000 + "ms";
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.view.SurfaceView;
 import android.view.View;
 import android.widget.ImageView;
 
@@ -56,9 +57,15 @@ public class FragmentView extends Fragment {
     @Override
     public void onViewCreated(@NotNull View view, @Nullable Bundle savedInstanceState) {
         ImageView imageView = (ImageView) getView().findViewById(R.id.imageView);
+        SurfaceView videoView = (SurfaceView) getView().findViewById(R.id.videoView);
 
         viewModel = new ViewModelProvider(requireActivity()).get(ItemViewModel.class);
 
+        //frames are drawn on the surface by the renderer's own thread, not through this fragment
+        videoView.getHolder().addCallback(viewModel.getRenderer());
+
+        imageView.setImageBitmap(raulito);
+
         viewModel.getStatus().observe(getViewLifecycleOwner(), item -> {
             // Perform an action with the latest item data
             if (item != null) {
@@ -66,21 +73,11 @@ public class FragmentView extends Fragment {
 
                     status = item;
 
-                    if(! status){
-                        imageView.setImageBitmap(raulito);
-                    }
+                    //logo on top while offline, live feed underneath once online
+                    imageView.setVisibility(status ? View.GONE : View.VISIBLE);
                 }
             }
         });
 
-        viewModel.getImageViewBitMap().observe(getViewLifecycleOwner(), item -> {
-            // Perform an action with the latest item data
-            if (item != null && status) {
-
-                imageView.setImageBitmap(item);
-
-            }
-        });
-
     }
 }
@@ -0,0 +1,75 @@
+package com.example.my_opencv;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+
+//one video frame as it moves through the pipeline, owned by a FramePool
+public class Frame {
+
+    protected byte[] data;   //encoded jpeg bytes, may be larger than length
+    protected int length;    //valid bytes in data
+    protected long received; //System.nanoTime() when the last byte arrived
+    protected long decodeNanos; //time spent decoding the jpeg
+    //System.nanoTime() of each step for the latency stats, 0 where unknown
+    //capture and send come from the drone's clock through ClockSync, only when the drone stamps its frames
+    protected long captured; //camera read on the drone
+    protected long sent;     //first byte written to the socket on the drone
+    protected long decoded;  //decode stage done
+    protected long processed; //process stage done
+    protected Mat mat;       //decoded BGR frame, null until decoded
+    protected Mat spare;     //mat this frame was converted into last time outside the pool, kept for the next
+    protected boolean attached; //mat came in through FramePool.attach
+    protected ByteBuffer buffer; //view over data the transport reads into
+
+    public Frame(int capacity) {
+        resize(capacity);
+        length = 0;
+        mat = null;
+    }
+
+    //replace the byte buffer with a bigger one
+    protected void resize(int capacity) {
+        data = new byte[capacity];
+        buffer = ByteBuffer.wrap(data);
+    }
+
+    //buffer positioned to receive exactly length bytes
+    protected ByteBuffer readBuffer() {
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getCaptured() {
+        return captured;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getDecoded() {
+        return decoded;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public Mat getMat() {
+        return mat;
+    }
+}
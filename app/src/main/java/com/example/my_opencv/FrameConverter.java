@@ -0,0 +1,122 @@
+package com.example.my_opencv;
+
+import android.graphics.Bitmap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+//turns decoded BGR frames into bitmaps for the screen without allocating per frame
+//one color pass into a reused RGBA mat, then a straight copy into one of two bitmaps that take turns:
+//one is on screen while the other is filled, a bitmap is only written again once the screen let go of it
+public class FrameConverter {
+
+    private final Bitmap[] buffers;
+    private Mat rgba;
+
+    private Bitmap pending; //handed to the ui, not on screen yet
+    private Bitmap shown;   //on screen
+
+    //stats
+    private long converted;
+    private long dropped;   //frames skipped because the ui hadn't shown the last one yet
+    private long allocated; //bitmaps created, only on the first frames or a resolution change
+
+    public FrameConverter() {
+        buffers = new Bitmap[2];
+        rgba = null;
+    }
+
+    //convert a BGR frame, returns the bitmap to display or null when the ui hasn't caught up yet
+    //the bitmap stays valid until it has been passed to onShown and replaced by the next one
+    public synchronized Bitmap convert(Mat bgr) {
+        int index = free();
+
+        if (index < 0) {
+            //showing a frame late is worse than skipping one, the next frame will do
+            dropped++;
+            return null;
+        }
+
+        if (rgba == null) {
+            rgba = new Mat();
+        }
+
+        //RGBA matches the bitmap layout, so matToBitmap is a plain copy instead of another conversion
+        Imgproc.cvtColor(bgr, rgba, Imgproc.COLOR_BGR2RGBA);
+
+        Bitmap bmp = buffers[index];
+        if (bmp == null || bmp.getWidth() != rgba.cols() || bmp.getHeight() != rgba.rows()) {
+            //first frame or the drone changed resolution
+            if (bmp != null) {
+                bmp.recycle();
+            }
+            bmp = Bitmap.createBitmap(rgba.cols(), rgba.rows(), Bitmap.Config.ARGB_8888);
+            buffers[index] = bmp;
+            allocated++;
+        }
+
+        try {
+            Utils.matToBitmap(rgba, bmp);
+        } catch (CvException e) {
+            e.printStackTrace();
+            System.out.println("failed to convert mat to bmp");
+            return null;
+        }
+
+        pending = bmp;
+        converted++;
+        return bmp;
+    }
+
+    //the ui put bmp on screen, the bitmap it replaced can be written again
+    public synchronized void onShown(Bitmap bmp) {
+        shown = bmp;
+
+        if (pending == bmp) {
+            pending = null;
+        }
+    }
+
+    //the buffer that isn't on screen, -1 while the last one handed out hasn't been shown yet
+    private int free() {
+        if (pending != null) {
+            return -1;
+        }
+
+        for (int x = 0; x < buffers.length; x++) {
+            Bitmap bmp = buffers[x];
+            if (bmp == null || bmp != shown) {
+                return x;
+            }
+        }
+
+        return -1;
+    }
+
+    //free the native rgba mat, the bitmaps are left to the ui that may still show one
+    public synchronized void release() {
+        if (rgba != null) {
+            rgba.release();
+            rgba = null;
+        }
+    }
+
+    public synchronized long getConverted() {
+        return converted;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameConverter converted=" + converted + " dropped=" + dropped + " bitmaps=" + allocated;
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.my_opencv;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+//reusable buffers for the video receive path so frames stop churning the heap and native memory
+public class FramePool {
+
+    //buffers grow in steps so small changes in jpeg size don't force a new array
+    private static final int GROW_STEP = 64 * 1024;
+
+    private final ArrayDeque<Frame> frames;
+    private final int maxPooled;
+
+    //encoded jpeg bytes handed to imdecode, grown only when a bigger frame arrives
+    private MatOfByte encoded;
+
+    //stats
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong bytesAllocated;
+    private final AtomicLong liveMats;
+
+    public FramePool(int maxPooled) {
+        this.maxPooled = maxPooled;
+        frames = new ArrayDeque<>();
+        encoded = null;
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        bytesAllocated = new AtomicLong();
+        liveMats = new AtomicLong();
+    }
+
+    //get a frame with room for at least size encoded bytes
+    public Frame acquire(int size) {
+        Frame frame;
+
+        synchronized (frames) {
+            frame = frames.pollFirst();
+        }
+
+        if (frame != null && frame.data.length >= size) {
+            hits.incrementAndGet();
+        } else {
+            //too small or empty pool, grow the buffer
+            misses.incrementAndGet();
+            int capacity = roundUp(size);
+            bytesAllocated.addAndGet(capacity);
+
+            if (frame == null) {
+                frame = new Frame(capacity);
+            } else {
+                frame.resize(capacity);
+            }
+        }
+
+        frame.length = size;
+        frame.captured = 0;
+        frame.sent = 0;
+        frame.decoded = 0;
+        frame.processed = 0;
+        return frame;
+    }
+
+    //give a frame back once no stage uses it anymore, also frees its decoded mat
+    public void release(Frame frame) {
+        if (frame == null) {
+            return;
+        }
+
+        //a mat converted into outside the pool stays with the frame, the next conversion of the same
+        //size reuses its memory, jpeg decode always gets a new one from imdecode so it is freed
+        if (frame.attached && frame.spare == null) {
+            frame.spare = frame.mat;
+            liveMats.decrementAndGet();
+        } else {
+            recycle(frame.mat);
+        }
+        frame.mat = null;
+        frame.attached = false;
+        frame.length = 0;
+
+        boolean pooled;
+        synchronized (frames) {
+            pooled = frames.size() < maxPooled;
+            if (pooled) {
+                frames.offerFirst(frame);
+            }
+        }
+
+        if (!pooled && frame.spare != null) {
+            frame.spare.release();
+            frame.spare = null;
+        }
+    }
+
+    //decode the encoded bytes of a frame into its BGR mat, one pipeline at a time, the lock only
+    //matters while a stopped pipeline's last decode overlaps the next one's first
+    public synchronized void decode(Frame frame) {
+        int length = frame.length;
+
+        if (encoded == null) {
+            encoded = new MatOfByte();
+        }
+
+        if (encoded.cols() < length) {
+            int capacity = roundUp(length);
+            encoded.release();
+            encoded.create(1, capacity, CvType.CV_8UC1);
+            bytesAllocated.addAndGet(capacity);
+        }
+
+        encoded.put(0, 0, frame.data, 0, length);
+
+        //header only view of the valid bytes, no pixel data is copied
+        Mat view = encoded.colRange(0, length);
+        recycle(frame.mat);
+        frame.mat = Imgcodecs.imdecode(view, Imgcodecs.IMREAD_COLOR);
+        view.release();
+
+        liveMats.incrementAndGet();
+    }
+
+    //mat to convert a frame into outside the pool, the one it had last time if any, hand it back with attach
+    public Mat mat(Frame frame) {
+        Mat mat = frame.spare;
+        frame.spare = null;
+        return mat != null ? mat : new Mat();
+    }
+
+    //give a frame a mat decoded outside the pool, the pool frees it on release like its own
+    public void attach(Frame frame, Mat mat) {
+        recycle(frame.mat);
+        frame.mat = mat;
+        frame.attached = true;
+        liveMats.incrementAndGet();
+    }
+
+    //free the native memory of a decoded frame now instead of waiting on the finalizer
+    private void recycle(Mat mat) {
+        if (mat != null) {
+            mat.release();
+            liveMats.decrementAndGet();
+        }
+    }
+
+    //drop everything held by the pool
+    public void clear() {
+        synchronized (frames) {
+            for (Frame frame : frames) {
+                if (frame.spare != null) {
+                    frame.spare.release();
+                    frame.spare = null;
+                }
+            }
+            frames.clear();
+        }
+
+        synchronized (this) {
+            if (encoded != null) {
+                encoded.release();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getBytesAllocated() {
+        return bytesAllocated.get();
+    }
+
+    public long getLiveMats() {
+        return liveMats.get();
+    }
+
+    private static int roundUp(int size) {
+        return ((size + GROW_STEP - 1) / GROW_STEP) * GROW_STEP;
+    }
+
+    @Override
+    public String toString() {
+        return "FramePool hits=" + hits.get() + " misses=" + misses.get()
+                + " allocated=" + bytesAllocated.get() + "B liveMats=" + liveMats.get();
+    }
+}
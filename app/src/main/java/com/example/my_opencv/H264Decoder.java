@@ -0,0 +1,305 @@
+package com.example.my_opencv;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.MediaCodec;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+
+//hardware h.264 decode for the annex-b video mode
+//the codec renders into an ImageReader whose frames go to opencv like decoded jpegs, detection,
+//tracking and recording need every frame as a mat so there is no straight to display path
+public class H264Decoder implements AnnexBParser.AccessUnitSink {
+
+    private static final String MIME = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final long INPUT_TIMEOUT_US = 10000;
+
+    private final AnnexBParser parser;
+    private final FramePool pool;
+    private final VideoPipeline pipeline;
+
+    private MediaCodec codec;
+    private int width;
+    private int height;
+    private Tap tap;
+    private final MediaCodec.BufferInfo info;
+
+    //stats
+    private long queued;
+    private long rendered;
+    private long dropped; //access units the codec had no input buffer for
+
+    public H264Decoder(AnnexBParser parser, FramePool pool, VideoPipeline pipeline) {
+        this.parser = parser;
+        this.pool = pool;
+        this.pipeline = pipeline;
+        info = new MediaCodec.BufferInfo();
+    }
+
+    //true if the phone has an avc decoder
+    public static boolean isSupported() {
+        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        return list.findDecoderForFormat(MediaFormat.createVideoFormat(MIME, 640, 360)) != null;
+    }
+
+    //called on the transport thread for every access unit the parser finds
+    @Override
+    public void onAccessUnit(byte[] data, int length, int flags) {
+
+        //the drone changed resolution, its next key frame starts a decoder of the new size
+        if (codec != null && (flags & AnnexBParser.FLAG_KEY_FRAME) != 0
+                && (parser.getWidth() != width || parser.getHeight() != height)) {
+            stop();
+        }
+
+        if (codec == null) {
+            //the output size comes from the sps, nothing to decode before the first key frame
+            if ((flags & AnnexBParser.FLAG_KEY_FRAME) == 0 || parser.getWidth() == 0) {
+                return;
+            }
+
+            try {
+                start(parser.getWidth(), parser.getHeight());
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.out.println("failed to start h264 decoder");
+                return;
+            }
+        }
+
+        int index = codec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (index < 0) {
+            //codec is behind, the next key frame resyncs it
+            dropped++;
+        } else {
+            ByteBuffer input = codec.getInputBuffer(index);
+            input.clear();
+            input.put(data, 0, length);
+
+            int codecFlags = 0;
+            if ((flags & AnnexBParser.FLAG_CONFIG) != 0) {
+                codecFlags |= MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            }
+            if ((flags & AnnexBParser.FLAG_KEY_FRAME) != 0) {
+                codecFlags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
+
+            codec.queueInputBuffer(index, 0, length, System.nanoTime() / 1000, codecFlags);
+            queued++;
+        }
+
+        drain();
+    }
+
+    private void start(int width, int height) throws Exception {
+        tap = new Tap(width, height);
+
+        MediaFormat format = MediaFormat.createVideoFormat(MIME, width, height);
+        codec = MediaCodec.createDecoderByType(MIME);
+        codec.configure(format, tap.reader.getSurface(), null, 0);
+        codec.start();
+        this.width = width;
+        this.height = height;
+
+        System.out.println("h264 decoder " + codec.getName() + " " + width + "x" + height);
+    }
+
+    //release every finished frame to its surface, latest wins so nothing waits for vsync here
+    private void drain() {
+        int index;
+
+        while ((index = codec.dequeueOutputBuffer(info, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            if (index >= 0) {
+                codec.releaseOutputBuffer(index, true);
+                rendered++;
+            }
+        }
+    }
+
+    public void stop() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+            }
+            codec.release();
+            codec = null;
+        }
+
+        if (tap != null) {
+            tap.stop();
+            tap = null;
+        }
+    }
+
+    //opencv side of one decoder session, its buffers are only touched on its own thread
+    //a resolution change starts the next session right away, so nothing here is shared with it
+    private class Tap {
+
+        private final HandlerThread thread;
+        private final ImageReader reader;
+
+        private byte[] packed; //yuv planes without their strides
+        private Mat yuv;
+        private int conversion; //opencv code for the decoder's chroma layout, found on the first image
+
+        //two images so the codec can fill one while the other is converted
+        Tap(int width, int height) {
+            thread = new HandlerThread("video-tap");
+            thread.start();
+            reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, 2);
+            reader.setOnImageAvailableListener(this::onImage, new Handler(thread.getLooper()));
+        }
+
+        //copy the decoded yuv into a pooled frame and send it down the pipeline past the jpeg decoder
+        private void onImage(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+
+            try {
+                int width = image.getWidth();
+                int height = image.getHeight();
+                int size = width * height * 3 / 2;
+
+                if (packed == null || packed.length != size) {
+                    packed = new byte[size];
+                    if (yuv != null) {
+                        yuv.release();
+                    }
+                    yuv = new Mat(height + height / 2, width, CvType.CV_8UC1);
+                    conversion = layout(image);
+                }
+
+                copyPlanes(image, packed, conversion);
+                yuv.put(0, 0, packed);
+
+                //the image carries the presentation time queued above, System.nanoTime() at arrival
+                Frame frame = pool.acquire(0);
+                frame.received = image.getTimestamp();
+                frame.decodeNanos = 0;
+
+                //the frame's mat from its last trip is reused, same size so nothing is allocated
+                Mat bgr = pool.mat(frame);
+                Imgproc.cvtColor(yuv, bgr, conversion);
+                pool.attach(frame, bgr);
+
+                pipeline.submitDecoded(frame);
+
+            } finally {
+                image.close();
+            }
+        }
+
+        void stop() {
+            reader.close();
+
+            //free the mat on the tap thread once the last image is done
+            new Handler(thread.getLooper()).post(() -> {
+                if (yuv != null) {
+                    yuv.release();
+                    yuv = null;
+                }
+                packed = null;
+            });
+            thread.quitSafely();
+        }
+    }
+
+    //YUV_420_888 chroma is either planar or, on most decoders, one interleaved buffer the u and v planes
+    //both point into, one byte apart: NV12 when u comes first, NV21 when v does
+    private static int layout(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        if (planes[1].getPixelStride() != 2) {
+            return Imgproc.COLOR_YUV2BGR_I420;
+        }
+
+        //header only mats just to see where the planes start
+        Mat u = new Mat(1, 1, CvType.CV_8UC1, planes[1].getBuffer());
+        Mat v = new Mat(1, 1, CvType.CV_8UC1, planes[2].getBuffer());
+        long apart = v.dataAddr() - u.dataAddr();
+        u.release();
+        v.release();
+
+        if (apart == 1) {
+            return Imgproc.COLOR_YUV2BGR_NV12;
+        } else if (apart == -1) {
+            return Imgproc.COLOR_YUV2BGR_NV21;
+        }
+        //strided but not interleaved, picked apart into I420 below
+        return Imgproc.COLOR_YUV2BGR_I420;
+    }
+
+    //pack the planes without their row strides, as I420 or keeping the interleaved chroma as it is
+    private static void copyPlanes(Image image, byte[] out, int conversion) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+
+        int offset = copyRows(planes[0].getBuffer(), planes[0].getRowStride(), width, height, out, 0);
+
+        if (conversion == Imgproc.COLOR_YUV2BGR_I420) {
+            for (int p = 1; p < 3; p++) {
+                ByteBuffer buffer = planes[p].getBuffer();
+                int rowStride = planes[p].getRowStride();
+                int pixelStride = planes[p].getPixelStride();
+
+                if (pixelStride == 1) {
+                    offset = copyRows(buffer, rowStride, width / 2, height / 2, out, offset);
+                    continue;
+                }
+                for (int row = 0; row < height / 2; row++) {
+                    for (int col = 0; col < width / 2; col++) {
+                        out[offset++] = buffer.get(row * rowStride + col * pixelStride);
+                    }
+                }
+            }
+            return;
+        }
+
+        //the plane that comes first holds whole interleaved rows, except that its buffer ends one byte
+        //short of the last row, that byte is the other plane's last sample
+        Image.Plane first = planes[conversion == Imgproc.COLOR_YUV2BGR_NV12 ? 1 : 2];
+        Image.Plane second = planes[conversion == Imgproc.COLOR_YUV2BGR_NV12 ? 2 : 1];
+        ByteBuffer buffer = first.getBuffer();
+        int rowStride = first.getRowStride();
+
+        for (int row = 0; row < height / 2; row++) {
+            int start = row * rowStride;
+            int length = Math.min(width, buffer.limit() - start);
+
+            buffer.position(start);
+            buffer.get(out, offset, length);
+            if (length < width) {
+                out[offset + width - 1] = second.getBuffer().get(start + width - 2);
+            }
+            offset += width;
+        }
+    }
+
+    private static int copyRows(ByteBuffer buffer, int rowStride, int width, int height, byte[] out, int offset) {
+        for (int row = 0; row < height; row++) {
+            buffer.position(row * rowStride);
+            buffer.get(out, offset, width);
+            offset += width;
+        }
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return "H264Decoder queued=" + queued + " rendered=" + rendered + " dropped=" + dropped
+                + " " + parser.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.my_opencv;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+import androidx.lifecycle.ViewModelProvider;
+
+import org.jetbrains.annotations.NotNull;
+
+//performance overlay shown over the feed with the hud button: fps, drops, queues, latency, memory and gc
+//it only formats metrics the components keep anyway, twice a second on the main thread, nothing is
+//measured here and hiding it costs nothing
+public class HudFragment extends Fragment {
+
+    private static final long REFRESH_MS = 500;
+
+    //what is shown, in this order, metrics not registered (yet) are left out
+    private static final String[] SHOWN = {
+            "video.fps", "video.received", "video.drops.decode", "video.drops.process", "video.drops.render",
+            "render.drawn", "render.late", "render.convert.dropped",
+            "latency.glass", "latency.network", "detect.inference", "detect.age",
+            "detect.waiting", "record.queued", "nav.commands.queued", "nav.states.missed",
+            "mem.java.kb", "mem.native.kb", "gc.count", "gc.time.ms"};
+
+    private final Handler handler;
+    private final Runnable refresh;
+    private final StringBuilder text;
+    private TextView view;
+    private Metrics metrics;
+
+    public HudFragment() {
+        super(R.layout.hud_fragment);
+
+        handler = new Handler(Looper.getMainLooper());
+        text = new StringBuilder();
+        refresh = new Runnable() {
+            @Override
+            public void run() {
+                update();
+                handler.postDelayed(this, REFRESH_MS);
+            }
+        };
+    }
+
+    @Override
+    public void onViewCreated(@NotNull View view, @Nullable Bundle savedInstanceState) {
+        this.view = (TextView) view.findViewById(R.id.hud_text);
+        metrics = new ViewModelProvider(requireActivity()).get(ItemViewModel.class).getMetrics();
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+
+    private void update() {
+        text.setLength(0);
+        for (String name : SHOWN) {
+            String value = metrics.format(name);
+            if (value != null) {
+                if (text.length() > 0) {
+                    text.append('\n');
+                }
+                text.append(name).append(' ').append(value);
+            }
+        }
+        view.setText(text);
+    }
+}
@@ -0,0 +1,289 @@
+package com.example.my_opencv;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfRect2d;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.dnn.Dnn;
+import org.opencv.dnn.Net;
+
+import java.util.List;
+
+//one detection model loaded on one dnn backend and target
+//load() reads the model through Dnn.readNet, so caffe, onnx and tensorflow files all work, and then
+//runs a few warm-up forwards: the first ones allocate and compile, timing them says nothing
+//detect() runs the net, keeps the rows above the score threshold and removes overlapping boxes
+//with Dnn.NMSBoxes, all into reused buffers
+public class InferenceEngine {
+
+    private static final int ROW = 7;
+    private static final int WARM_UP_RUNS = 3;
+    //index of the first element of an output with 2, 3 or 4 dimensions, for the bulk get
+    private static final int[][] ORIGINS = {null, null, new int[2], new int[3], new int[4]};
+
+    private final ModelSpec spec;
+    private final int backend;
+    private final int target;
+    private final float scoreThreshold;
+    private final float nmsThreshold;
+
+    private final Size inputSize;
+    private final Scalar mean;
+    private Net net;
+
+    //post-processing buffers
+    private float[] output;
+    private float[] candidateScores;
+    private int[] candidateClasses;
+    private double[] candidateBoxes; //x, y, width, height as NMSBoxes takes them
+    private int[] kept;
+    private final MatOfRect2d boxesMat;
+    private final MatOfFloat scoresMat;
+    private final MatOfInt indicesMat;
+
+    //stats
+    private long warmUpNanos;    //the first forward, load cost included
+    private long benchmarkNanos; //average of the warm-up runs after the first
+    private long runs;
+    private long totalNanos;
+
+    public InferenceEngine(ModelSpec spec, int backend, int target, float scoreThreshold, float nmsThreshold) {
+        this.spec = spec;
+        this.backend = backend;
+        this.target = target;
+        this.scoreThreshold = scoreThreshold;
+        this.nmsThreshold = nmsThreshold;
+        inputSize = new Size(spec.inputWidth, spec.inputHeight);
+        mean = new Scalar(spec.mean, spec.mean, spec.mean);
+
+        output = new float[100 * ROW];
+        candidateScores = new float[100];
+        candidateClasses = new int[100];
+        candidateBoxes = new double[100 * 4];
+        kept = new int[100];
+        boxesMat = new MatOfRect2d();
+        scoresMat = new MatOfFloat();
+        indicesMat = new MatOfInt();
+    }
+
+    //read the model files (plain paths, see AI.getPath) and warm it up
+    public void load(String modelPath, String configPath) {
+        net = Dnn.readNet(modelPath, configPath == null ? "" : configPath, spec.framework);
+        net.setPreferableBackend(backend);
+        net.setPreferableTarget(target);
+
+        Mat blank = Mat.zeros(spec.inputHeight, spec.inputWidth, CvType.CV_8UC3);
+        Mat blob = Dnn.blobFromImage(blank, spec.scale, inputSize, mean, spec.swapRB, false);
+        try {
+            for (int x = 0; x < WARM_UP_RUNS; x++) {
+                long start = System.nanoTime();
+                net.setInput(blob);
+                net.forward().release();
+                long elapsed = System.nanoTime() - start;
+
+                if (x == 0) {
+                    warmUpNanos = elapsed;
+                } else {
+                    benchmarkNanos += elapsed;
+                }
+            }
+            benchmarkNanos /= Math.max(1, WARM_UP_RUNS - 1);
+        } finally {
+            blob.release();
+            blank.release();
+        }
+    }
+
+    //run the net on a frame, the objects of classId (-1 for all) go into out
+    public void detect(Mat frame, long frameTime, int classId, Detections out) {
+        long start = System.nanoTime();
+
+        Mat blob = Dnn.blobFromImage(frame, spec.scale, inputSize, mean, spec.swapRB, false);
+        int rows = forward(blob);
+        decode(rows, 0, frameTime, classId, out);
+
+        long elapsed = System.nanoTime() - start;
+        out.setInferenceNanos(elapsed);
+        runs++;
+        totalNanos += elapsed;
+    }
+
+    //forward the blob and copy the output rows out, the blob is released
+    private int forward(Mat blob) {
+        Mat detections;
+        try {
+            net.setInput(blob);
+            detections = net.forward();
+        } finally {
+            blob.release();
+        }
+
+        //all rows in one copy, ssd outputs are [1, 1, N, 7] but some exports drop the leading ones
+        //the first value of a row is the image in the blob, always 0 here
+        try {
+            int total = (int) detections.total();
+            if (output.length < total) {
+                output = new float[total];
+            }
+            detections.get(ORIGINS[Math.min(detections.dims(), 4)], output);
+
+            int rows = total / ROW;
+            if (candidateScores.length < rows) {
+                candidateScores = new float[rows];
+                candidateClasses = new int[rows];
+                candidateBoxes = new double[rows * 4];
+                kept = new int[rows];
+            }
+            return rows;
+        } finally {
+            detections.release();
+        }
+    }
+
+    //the rows of one image of the last forward into out
+    private void decode(int rows, int image, long frameTime, int classId, Detections out) {
+        int candidates = candidates(output, rows, image, scoreThreshold, classId, candidateScores, candidateClasses,
+                candidateBoxes);
+
+        out.clear(frameTime, false);
+
+        int count = nms(candidates);
+        for (int x = 0; x < count; x++) {
+            int i = kept[x];
+            double left = candidateBoxes[i * 4];
+            double top = candidateBoxes[i * 4 + 1];
+            if (!out.add(candidateClasses[i], candidateScores[i], (float) left, (float) top,
+                    (float) (left + candidateBoxes[i * 4 + 2]), (float) (top + candidateBoxes[i * 4 + 3]), 0)) {
+                break;
+            }
+        }
+    }
+
+    //rows of one image above the threshold, of classId (-1 for all), with boxes as x, y, width, height
+    //returns how many were copied into scores, classes and boxes
+    static int candidates(float[] output, int rows, int image, float scoreThreshold, int classId, float[] scores,
+                          int[] classes, double[] boxes) {
+        int candidates = 0;
+        for (int i = 0; i < rows; ++i) {
+            int row = i * ROW;
+            float confidence = output[row + 2];
+            int rowClass = (int) output[row + 1];
+
+            if ((int) output[row] == image && confidence > scoreThreshold && (classId < 0 || rowClass == classId)) {
+                scores[candidates] = confidence;
+                classes[candidates] = rowClass;
+                boxes[candidates * 4] = output[row + 3];
+                boxes[candidates * 4 + 1] = output[row + 4];
+                boxes[candidates * 4 + 2] = output[row + 5] - output[row + 3];
+                boxes[candidates * 4 + 3] = output[row + 6] - output[row + 4];
+                candidates++;
+            }
+        }
+        return candidates;
+    }
+
+    //indices of the candidates left after non maximum suppression, best first, into kept
+    private int nms(int candidates) {
+        if (candidates <= 1) {
+            kept[0] = 0;
+            return candidates;
+        }
+
+        boxesMat.create(candidates, 1, CvType.CV_64FC4);
+        boxesMat.put(0, 0, candidateBoxes);
+        scoresMat.create(candidates, 1, CvType.CV_32FC1);
+        scoresMat.put(0, 0, candidateScores);
+
+        Dnn.NMSBoxes(boxesMat, scoresMat, scoreThreshold, nmsThreshold, indicesMat);
+
+        int count = (int) indicesMat.total();
+        if (count > 0) {
+            indicesMat.get(0, 0, kept);
+        }
+        return count;
+    }
+
+    //slowest layers of the last forward, from the net's own per layer timings
+    public String profile(int top) {
+        if (net == null) {
+            return spec + " not loaded";
+        }
+
+        MatOfDouble timings = new MatOfDouble();
+        double frequency = Core.getTickFrequency() / 1000;
+        long total = net.getPerfProfile(timings);
+        double[] times = timings.toArray();
+        List<String> names = net.getLayerNames();
+        timings.release();
+
+        StringBuilder profile = new StringBuilder();
+        profile.append(spec).append(" forward ").append(String.format("%.1f", total / frequency)).append("ms");
+
+        //pick the slowest layers one by one, there are only a few hundred
+        boolean[] listed = new boolean[times.length];
+        for (int n = 0; n < Math.min(top, times.length); n++) {
+            int slowest = -1;
+            for (int x = 0; x < times.length; x++) {
+                if (!listed[x] && (slowest < 0 || times[x] > times[slowest])) {
+                    slowest = x;
+                }
+            }
+            listed[slowest] = true;
+
+            String name = slowest < names.size() ? names.get(slowest) : "#" + slowest;
+            profile.append("\n  ").append(name).append(' ').append(String.format("%.2f", times[slowest] / frequency))
+                    .append("ms");
+        }
+
+        return profile.toString();
+    }
+
+    public void release() {
+        boxesMat.release();
+        scoresMat.release();
+        indicesMat.release();
+        net = null;
+    }
+
+    public ModelSpec getSpec() {
+        return spec;
+    }
+
+    public int getBackend() {
+        return backend;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public long getRuns() {
+        return runs;
+    }
+
+    public long getWarmUpNanos() {
+        return warmUpNanos;
+    }
+
+    public long getBenchmarkNanos() {
+        return benchmarkNanos;
+    }
+
+    //frames per second per opencv thread
+    public double getFramesPerSecondPerCore() {
+        return totalNanos == 0 ? 0 : runs * 1e9 / totalNanos / Math.max(1, Core.getNumThreads());
+    }
+
+    @Override
+    public String toString() {
+        long average = runs == 0 ? 0 : totalNanos / runs / 1000000;
+        return "InferenceEngine " + spec + " backend=" + backend + " target=" + target + " warmup="
+                + warmUpNanos / 1000000 + "ms bench=" + benchmarkNanos / 1000000 + "ms runs=" + runs + " avg=" + average
+                + "ms" + String.format(" fps/core=%.2f", getFramesPerSecondPerCore());
+    }
+}
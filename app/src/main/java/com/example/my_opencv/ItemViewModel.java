@@ -1,30 +1,43 @@
 package com.example.my_opencv;
 
-import android.graphics.Bitmap;
-
-import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
 public class ItemViewModel extends ViewModel {
 
-    private final MutableLiveData<Bitmap> imageViewBitMap = new MutableLiveData<>();
     private final MutableLiveData<Boolean> status = new MutableLiveData<>();
 
-    public void selectBitmap(Bitmap item) {
-        imageViewBitMap.setValue(item);
-    }
+    //live feed drawing, outlives the fragment so switching to the map and back keeps the buffers
+    private final FrameConverter frameConverter = new FrameConverter();
+    private final VideoRenderer renderer = new VideoRenderer(frameConverter);
+
+    //diagnostics registry, shown by the HudFragment and snapshotted to disk by the activity
+    private final Metrics metrics = new Metrics();
 
     public void selectStatus(boolean item) {
         status.setValue(item);
     }
 
-    public LiveData<Bitmap> getImageViewBitMap() {
-        return imageViewBitMap;
-    }
-
     public MutableLiveData<Boolean> getStatus() {
         return status;
     }
-}
 
+    public VideoRenderer getRenderer() {
+        return renderer;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public FrameConverter getFrameConverter() {
+        return frameConverter;
+    }
+
+    @Override
+    protected void onCleared() {
+        renderer.stop();
+        System.out.println(renderer.toString());
+        frameConverter.release();
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.my_opencv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//fixed size histogram of latencies in microseconds, recording is a few atomic increments, no lock or allocation
+//buckets are exact below 16us, above that every power of two is split into 16, so any percentile is
+//within about 6% of the true value, up to MAX_MICROS where everything longer is counted
+//reads while another thread records may be a record behind, which is fine for stats
+public class LatencyHistogram {
+
+    public static final long MAX_MICROS = 60L * 1000 * 1000;
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong totalMicros;
+    private final AtomicLong maxMicros;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(index(MAX_MICROS) + 1);
+        count = new AtomicLong();
+        totalMicros = new AtomicLong();
+        maxMicros = new AtomicLong();
+    }
+
+    //bucket of a value: the top five bits of it and how far they were shifted
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        return shift * SUB_BUCKETS + (int) (micros >> shift);
+    }
+
+    //smallest value counted in a bucket
+    static long lowest(int index) {
+        int shift = Math.max(0, index / SUB_BUCKETS - 1);
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+
+    public void record(long nanos) {
+        long micros = Math.min(Math.max(0, nanos / 1000), MAX_MICROS);
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            //another thread moved the max, look again
+        }
+    }
+
+    //value at or below which the given fraction of the recorded latencies are, in the middle of its bucket
+    public long percentileMicros(double fraction) {
+        long total = count.get();
+        long max = maxMicros.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int x = 0; x < counts.length(); x++) {
+            seen += counts.get(x);
+            if (seen >= rank) {
+                long width = lowest(x + 1) - lowest(x);
+                return Math.min(lowest(x) + (width - 1) / 2, max);
+            }
+        }
+        return max;
+    }
+
+    public void clear() {
+        for (int x = 0; x < counts.length(); x++) {
+            counts.set(x, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMeanMicros() {
+        long total = count.get();
+        return total == 0 ? 0 : totalMicros.get() / total;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+}
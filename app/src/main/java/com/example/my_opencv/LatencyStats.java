@@ -0,0 +1,127 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Locale;
+
+//glass to glass latency of the video feed, split into the stages a frame goes through:
+//  capture  camera read to sent on the drone, its jpeg encode and pacing
+//  network  sent on the drone to the last byte received on the phone
+//  decode   received to decoded, including the wait for the decode thread
+//  process  decoded to processed, the recording stage
+//  display  processed to posted on the surface, bitmap conversion and drawing
+//  glass    camera read to posted on the surface
+//each displayed frame is recorded once it is drawn, dropped frames never count
+//capture, network and glass need drone timestamps and a synced clock, the rest are all phone side
+public class LatencyStats {
+
+    public static final int CAPTURE = 0;
+    public static final int NETWORK = 1;
+    public static final int DECODE = 2;
+    public static final int PROCESS = 3;
+    public static final int DISPLAY = 4;
+    public static final int GLASS = 5;
+    public static final String[] STAGES = {"capture", "network", "decode", "process", "display", "glass"};
+
+    //stages shown on the overlay, the most telling first
+    private static final int[] OVERLAY = {GLASS, NETWORK, DECODE, PROCESS, DISPLAY};
+
+    private final ClockSync clock;
+    private final LatencyHistogram[] stages;
+
+    public LatencyStats(ClockSync clock) {
+        this.clock = clock;
+        stages = new LatencyHistogram[STAGES.length];
+        for (int x = 0; x < stages.length; x++) {
+            stages[x] = new LatencyHistogram();
+        }
+    }
+
+    //maps the drone's frame timestamps onto the phone's clock, fed by the nav link
+    public ClockSync getClock() {
+        return clock;
+    }
+
+    //a frame with the given step times was posted to the surface at shown, all System.nanoTime()
+    public void onShown(long captured, long sent, long received, long decoded, long processed, long shown) {
+        record(CAPTURE, captured, sent);
+        record(NETWORK, sent, received);
+        record(DECODE, received, decoded);
+        record(PROCESS, decoded, processed);
+        record(DISPLAY, processed, shown);
+        record(GLASS, captured, shown);
+    }
+
+    private void record(int stage, long from, long to) {
+        if (from > 0 && to > 0) {
+            stages[stage].record(to - from);
+        }
+    }
+
+    //stages as latency.<stage> and the clock sync they rely on
+    public void registerMetrics(Metrics metrics) {
+        for (int stage = 0; stage < stages.length; stage++) {
+            metrics.register("latency." + STAGES[stage], stages[stage]);
+        }
+        metrics.gauge("latency.clock.synced", () -> clock.isSynced() ? 1 : 0);
+        metrics.gauge("latency.clock.offset.us", clock::getOffsetMicros);
+        metrics.gauge("latency.clock.rtt.us", clock::getRttMicros);
+    }
+
+    public LatencyHistogram get(int stage) {
+        return stages[stage];
+    }
+
+    //start over, e.g. for a new connection
+    public void clear() {
+        for (LatencyHistogram stage : stages) {
+            stage.clear();
+        }
+    }
+
+    //one line of p50/p99 per stage in ms for the overlay, stages with nothing recorded are left out
+    public String summary() {
+        StringBuilder builder = new StringBuilder("p50/p99 ms");
+        for (int stage : OVERLAY) {
+            LatencyHistogram histogram = stages[stage];
+            if (histogram.getCount() > 0) {
+                builder.append("  ").append(STAGES[stage]).append(' ')
+                        .append(histogram.percentileMicros(0.5) / 1000).append('/')
+                        .append(histogram.percentileMicros(0.99) / 1000);
+            }
+        }
+        return builder.toString();
+    }
+
+    //write every stage as count, percentiles, max and mean in ms, plus the clock sync they relied on
+    public void export(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        StringBuilder text = new StringBuilder();
+        text.append("# video latency per stage, ").append(new Date()).append('\n');
+        text.append("# ").append(clock).append('\n');
+        text.append("# stage count p50 p90 p99 max mean, ms\n");
+        for (int stage = 0; stage < stages.length; stage++) {
+            LatencyHistogram histogram = stages[stage];
+            text.append(String.format(Locale.US, "%s %d %.1f %.1f %.1f %.1f %.1f\n", STAGES[stage],
+                    histogram.getCount(), histogram.percentileMicros(0.5) / 1000.0,
+                    histogram.percentileMicros(0.9) / 1000.0, histogram.percentileMicros(0.99) / 1000.0,
+                    histogram.getMaxMicros() / 1000.0, histogram.getMeanMicros() / 1000.0));
+        }
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyStats " + summary() + " " + clock;
+    }
+}
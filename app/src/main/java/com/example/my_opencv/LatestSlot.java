@@ -0,0 +1,55 @@
+package com.example.my_opencv;
+
+//single item handoff between two threads where a newer item replaces one that was never taken
+public class LatestSlot<T> {
+
+    private T item;
+    private long offered;
+    private long drops;
+
+    public LatestSlot() {
+        item = null;
+        offered = 0;
+        drops = 0;
+    }
+
+    //put the newest item in the slot, returns the item it replaced so the caller can recycle it
+    public synchronized T offer(T next) {
+        T old = item;
+        item = next;
+        offered++;
+
+        if (old != null) {
+            drops++;
+        }
+
+        notifyAll();
+        return old;
+    }
+
+    //wait for an item and empty the slot
+    public synchronized T take() throws InterruptedException {
+        while (item == null) {
+            wait();
+        }
+
+        T next = item;
+        item = null;
+        return next;
+    }
+
+    //empty the slot without waiting, returns null if it was empty
+    public synchronized T poll() {
+        T next = item;
+        item = null;
+        return next;
+    }
+
+    public synchronized long getOffered() {
+        return offered;
+    }
+
+    public synchronized long getDrops() {
+        return drops;
+    }
+}
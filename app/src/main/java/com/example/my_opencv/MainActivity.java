@@ -4,6 +4,7 @@ import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.multidex.MultiDex;
 
@@ -18,6 +19,7 @@ import android.media.MediaPlayer;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
 
 import android.graphics.Bitmap;
 import android.os.Environment;
@@ -28,10 +30,7 @@ import org.opencv.android.BaseLoaderCallback;
 
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
-import org.opencv.android.Utils;
-import org.opencv.core.CvException;
-import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
+import org.opencv.dnn.Dnn;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -76,8 +75,31 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
 
     private DroneConnect droneVideo;
     private DroneConnect droneNav;
+    private DroneTransport transport;
     private static final String TAG = "MainActivity";
 
+    //every packet and nav exchange of a connection session, the newest few sessions are kept
+    //within a disk quota and above the same free space floor as recordings
+    private static final long FLIGHT_LOG_MAX_BYTES = 1024L * 1024 * 1024;
+    private static final long FLIGHT_LOG_QUOTA_BYTES = 2L * 1024 * 1024 * 1024;
+    private static final long FLIGHT_LOG_MIN_FREE_BYTES = 512L * 1024 * 1024;
+    private static final long FLIGHT_LOG_MIN_BYTES = 16L * 1024 * 1024;
+    private static final int FLIGHT_LOGS_KEPT = 10;
+    private FlightLog flightLog;
+
+    //glass to glass latency of a connection session, shown over the feed and written out when it ends
+    private static final int CLOCK_SYNC_SAMPLES = 8;
+    private static final int LATENCY_REPORTS_KEPT = 10;
+    private LatencyStats latency;
+
+    //diagnostics of every component, shown on the hud and written out every few seconds
+    private static final long METRICS_SNAPSHOT_MS = 10000;
+    private static final int METRICS_LOGS_KEPT = 10;
+    private static final String HUD_TAG = "hud";
+    private Metrics metrics;
+    private Metrics.Counter buttonPresses;
+    private Metrics.Counter soundsPlayed;
+
     //gui
     private Button[] nav_buttons;
     private Switch connectSwitch;
@@ -102,7 +124,6 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
     private boolean online;
     private int savedFlyingMode;
     private boolean flying;
-    private int button;
     private LocationRequest mLocationRequest;
     private boolean recording;
     private boolean paused;
@@ -117,7 +138,17 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
 
     private Intent settingIntent;
 
-    //private AI ai;
+    //people detection beside the video, the tracker moves its boxes every frame in between
+    //and the renderer draws them over the live feed
+    private static final int DETECT_EVERY_N = 3;
+    //one run in this many looks at the whole frame, the others at a crop around the followed person
+    private static final int DETECT_FULL_FRAME_EVERY = 4;
+    //models and dnn targets tried at load, the fastest pair after warm-up is used
+    private static final ModelSpec[] DETECT_MODELS = {AI.MOBILENET_SSD};
+    private static final int[] DETECT_TARGETS = {Dnn.DNN_TARGET_CPU, Dnn.DNN_TARGET_OPENCL};
+    private AI ai;
+    private DetectionStage detectionStage;
+    private Tracker tracker;
 
     private SpeechRecognizer recognizer;
     //private static final String KEYPHRASE = "apad";
@@ -172,6 +203,9 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
         }
 
         viewModel = new ViewModelProvider(this).get(ItemViewModel.class);
+        metrics = viewModel.getMetrics();
+        buttonPresses = metrics.counter("app.buttons");
+        soundsPlayed = metrics.counter("app.sounds");
 
         //launch opencv manager or static link
         // OpenCVLoader.initAsync(OpenCVLoader.OPENCV_VERSION, this, mLoaderCallback);
@@ -203,7 +237,6 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
         errorCode = 0;
 
         //app
-        button = 0;
         savedFlyingMode = 4;
         online = false;
         flying = false;
@@ -213,9 +246,14 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
         run = false;
         settingIntent = new Intent(this, SettingsActivity.class);
 
-        //AI
-        // ai = new AI(getApplicationContext());
-        //ai.createDDNNetwork();
+        //AI, the network is loaded on the detection thread
+        ai = new AI(getApplicationContext(), DETECT_MODELS, DETECT_TARGETS);
+        tracker = new Tracker(true);
+        detectionStage = new DetectionStage(ai, tracker::onDetections,
+                new RoiScheduler(DETECT_FULL_FRAME_EVERY, AI.IN_WIDTH), AI.IN_WIDTH, AI.IN_HEIGHT, DETECT_EVERY_N);
+        detectionStage.start();
+        ai.registerMetrics(metrics);
+        detectionStage.registerMetrics(metrics);
 
         //setup image view and text
         //imageView = findViewById(R.id.opencvImageView);
@@ -289,15 +327,24 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
         //app listener
         appListener = null;
 
+        //one io thread for all drone sockets, 5s connect and read timeouts
+        transport = new DroneTransport(5000, 5000);
+
         //make drone video class and listener
         int V_PORT = 9999;
-        droneVideo = new DroneConnect(IP, V_PORT, this);
+        droneVideo = new DroneConnect(IP, V_PORT, this, transport);
         droneVideo.setDroneListener(new DroneListener() {
 
+            //detection and tracking, before the frame is drawn
+            @Override
+            public void onProcessFrame(Frame frame) {
+                processFrame(frame);
+            }
+
             //update image view
             @Override
-            public void onUpdateImageView(Mat mat) {
-                updateImageView(mat);
+            public void onUpdateImageView(Frame frame) {
+                updateImageView(frame);
             }
 
             //update gui based on online status
@@ -306,6 +353,11 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
 
             }
 
+            @Override
+            public void onReconnecting(int attempt) {
+
+            }
+
             @Override
             public void onSetAppData(double[] data) {
 
@@ -320,11 +372,16 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
 
         //make drone nav and listener
         int NAV_PORT = 9998;
-        droneNav = new DroneConnect(IP, NAV_PORT, this);
+        droneNav = new DroneConnect(IP, NAV_PORT, this, transport);
         droneNav.setDroneListener(new DroneListener() {
 
             @Override
-            public void onUpdateImageView(Mat mat) {
+            public void onProcessFrame(Frame frame) {
+
+            }
+
+            @Override
+            public void onUpdateImageView(Frame frame) {
 
             }
 
@@ -334,6 +391,15 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
                 handleOnlineChange(online);
             }
 
+            //link dropped, drone connect is retrying on its own
+            @Override
+            public void onReconnecting(int attempt) {
+                runOnUiThread(() -> {
+                    networkStatusText.setText("Reconnecting (" + attempt + ")");
+                    networkStatusText.setTextColor(Color.YELLOW);
+                });
+            }
+
             //set new drone info from drone to app
             @Override
             public void onSetAppData(double[] data) {
@@ -358,24 +424,41 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
                 if (appListener != null) {
                     appListener.onUpdateDrone(getAppInfo());
                 }
-
-                //reset
-                button = 0;
             }
 
         });
 
+        //nav keeps the drone's clock synced, video stamps frames with it and the renderer records them drawn
+        latency = new LatencyStats(new ClockSync(CLOCK_SYNC_SAMPLES));
+        droneVideo.setLatencyStats(latency);
+        droneNav.setLatencyStats(latency);
+        viewModel.getRenderer().setLatencyStats(latency);
+
+        droneVideo.registerMetrics(metrics);
+        droneNav.registerMetrics(metrics);
+        latency.registerMetrics(metrics);
+        viewModel.getRenderer().registerMetrics(metrics);
+        registerRuntimeMetrics();
+        startMetricsLog();
+
+        //video quality hints measured on the video link are sent to the drone over nav
+        droneVideo.getVideoController().setHintSink(droneNav::sendVideoHint);
+
         //setup switch button and listener
         connectSwitch = findViewById(R.id.connect_s);
         connectSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
 
             if (isChecked) {
-                new Thread(droneVideo).start();
-                new Thread(droneNav).start();
+                startFlightLog();
+                latency.clear();
+                droneVideo.connect();
+                droneNav.connect();
 
             } else {
                 droneVideo.disconnect();
                 droneNav.disconnect();
+                stopFlightLog();
+                exportLatency();
                 //appListener.onDisconnectDrone();
             }
         });
@@ -401,8 +484,6 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
             updateNavButtons(controls);
             updateStatusText();
 
-            System.out.println("switched: " + flyMode);
-
         });
 
         playSound(2);
@@ -508,7 +589,7 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
                 break;
         }
 
-        System.out.println("Played: "+ sound);
+        soundsPlayed.increment();
 
         runOnUiThread(new Runnable() {
             @Override
@@ -607,6 +688,25 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
             recognizer.cancel();
             recognizer.shutdown();
         }
+
+        //the writer closes the last segment on its own thread, stopping doesn't wait for it
+        if (droneVideo != null && droneVideo.getRecorder() != null) {
+            droneVideo.getRecorder().stop();
+        }
+
+        if (transport != null) {
+            transport.shutdown();
+        }
+
+        stopFlightLog();
+        exportLatency();
+        metrics.stopSnapshots();
+
+        if (detectionStage != null) {
+            detectionStage.release();
+            System.out.println(detectionStage.toString());
+            System.out.println(tracker.toString());
+        }
     }
 
     private void setupRecognizer(File assetsDir) throws IOException {
@@ -683,15 +783,26 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
                 case "land":
                 case "take off":
                 case "launch":
-                    button = 1;
+                    sendCommand(1);
                     break;
                 case "take photo":
                     saveImage(imageView, getDateTime());
                     break;
                 case "take video":
+                    //the recording begins with the seconds before the command was heard
+                    if (!recording) {
+                        onRecordButton(findViewById(R.id.record_button));
+                    }
+                    break;
                 case "stop video":
+                    if (recording) {
+                        onRecordButton(findViewById(R.id.record_button));
+                    }
+                    break;
                 case "pause video":
-                    onRecordButton(findViewById(R.id.record_button));
+                    if (recording) {
+                        onPauseRecButton(findViewById(R.id.pauserec_b));
+                    }
                     break;
                 default:
                     System.out.println("Other voice text:" + text);
@@ -809,17 +920,22 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
         });
     }
 
-    //=========================function to update image view with latest video feed
-    public void updateImageView(Mat mat) {
+    //=========================function to follow people in the latest video feed
+    //runs on the pipeline's process stage, so tracking is done while the frame before is still drawn
+    public void processFrame(Frame frame) {
 
-        //Bitmap bmp = ai.identify(mat);
+        //only scaled into the detector's input here, detection runs on its own thread
+        detectionStage.submit(frame);
 
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                viewModel.selectBitmap(convertMatToBitMap(mat));
-            }
-        });
+        //tracked boxes follow every frame, detections correct them when they come
+        viewModel.getRenderer().setDetections(tracker.onFrame(frame));
+    }
+
+    //=========================function to update image view with latest video feed
+    public void updateImageView(Frame frame) {
+
+        //converted here and drawn by the renderer's thread, the main thread never sees the frame
+        viewModel.getRenderer().post(frame);
     }
 
 
@@ -833,9 +949,8 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
 
                 if (view.getId() == nav_buttons[x].getId()) {
 
-                    button = x + 1;
-
-                    System.out.println(button);
+                    sendCommand(x + 1);
+                    buttonPresses.increment();
                     break;
 
                 }
@@ -844,6 +959,14 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
 
     }
 
+    //queue a button press for the drone, goes out ahead of the periodic app state
+    private void sendCommand(int button) {
+
+        if (appListener != null) {
+            appListener.onCommand(button);
+        }
+    }
+
     //==================================update status text====================================
     private void updateStatusText() {
         String statusText;
@@ -899,23 +1022,6 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
 
     }
 
-    //==========================convert MAT to bmp=========================================
-    private static Bitmap convertMatToBitMap(Mat input) {
-        Bitmap bmp = null;
-        Mat rgb = new Mat();
-        Imgproc.cvtColor(input, rgb, Imgproc.COLOR_BGR2RGB);
-
-        try {
-            bmp = Bitmap.createBitmap(rgb.cols(), rgb.rows(), Bitmap.Config.ARGB_8888);
-            Utils.matToBitmap(rgb, bmp);
-        } catch (CvException e) {
-            e.printStackTrace();
-            System.out.println("failed to convert mat to bmp");
-        }
-        return bmp;
-
-    }
-
     //==============================update status mode text====================================
     private String getFlightModeString() {
 
@@ -1000,7 +1106,8 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
     //=================================return app data for drone
     private double[] getAppInfo() {
 
-        return new double[]{button, flyMode, velocity, latitude, longitude, 0, 0};
+        //button presses are sent separately as commands
+        return new double[]{0, flyMode, velocity, latitude, longitude, 0, 0};
 
     }
 
@@ -1011,6 +1118,114 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
         System.out.println(getDateTime());
     }
 
+    //=================================flight log
+    //new flight log for a connection session
+    private void startFlightLog() {
+        stopFlightLog();
+
+        File dir = getExternalFilesDir("flights");
+        if (dir == null) {
+            return;
+        }
+
+        long room = FlightLog.makeRoom(dir, ".log", FLIGHT_LOGS_KEPT, FLIGHT_LOG_MAX_BYTES, FLIGHT_LOG_QUOTA_BYTES,
+                FLIGHT_LOG_MIN_FREE_BYTES);
+        if (room < FLIGHT_LOG_MIN_BYTES) {
+            System.out.println("No room for a flight log, " + room / 1024 + "KB");
+            return;
+        }
+
+        try {
+            flightLog = FlightLog.open(new File(dir, "FLT_" + getDateTime() + ".log"), room,
+                    FLIGHT_LOG_MIN_FREE_BYTES);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        droneVideo.setFlightLog(flightLog);
+        droneNav.setFlightLog(flightLog);
+    }
+
+    private void stopFlightLog() {
+        if (flightLog == null) {
+            return;
+        }
+
+        droneVideo.setFlightLog(null);
+        droneNav.setFlightLog(null);
+        flightLog.close();
+        System.out.println(flightLog.toString());
+        flightLog = null;
+    }
+
+    //=================================latency report
+    //latency per stage of the session that just ended, the newest few reports are kept
+    private void exportLatency() {
+        if (latency == null || latency.get(LatencyStats.DISPLAY).getCount() == 0) {
+            return;
+        }
+
+        System.out.println(latency.toString());
+
+        File dir = getExternalFilesDir("latency");
+        if (dir != null) {
+            FlightLog.prune(dir, ".txt", LATENCY_REPORTS_KEPT - 1);
+            try {
+                latency.export(new File(dir, "LAT_" + getDateTime() + ".txt"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        latency.clear();
+    }
+
+    //=================================metrics
+    //memory and gc of the whole app, read only when the hud or a snapshot asks
+    private void registerRuntimeMetrics() {
+        Runtime runtime = Runtime.getRuntime();
+        metrics.gauge("mem.java.kb", () -> (runtime.totalMemory() - runtime.freeMemory()) / 1024);
+        metrics.gauge("mem.native.kb", () -> Debug.getNativeHeapAllocatedSize() / 1024);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            metrics.gauge("gc.count", () -> runtimeStat("art.gc.gc-count"));
+            metrics.gauge("gc.time.ms", () -> runtimeStat("art.gc.gc-time"));
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static double runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        return value == null ? 0 : Double.parseDouble(value);
+    }
+
+    //snapshots of every metric for the app's run, the newest few runs are kept
+    private void startMetricsLog() {
+        File dir = getExternalFilesDir("metrics");
+        if (dir == null) {
+            return;
+        }
+
+        FlightLog.prune(dir, ".txt", METRICS_LOGS_KEPT - 1);
+        metrics.startSnapshots(new File(dir, "MET_" + getDateTime() + ".txt"), METRICS_SNAPSHOT_MS);
+    }
+
+    //==============================show or hide the performance hud====================================
+    public void onHudToggle(View view) {
+        Fragment hud = getSupportFragmentManager().findFragmentByTag(HUD_TAG);
+
+        if (hud != null) {
+            getSupportFragmentManager().beginTransaction()
+                    .remove(hud)
+                    .commit();
+        } else {
+            getSupportFragmentManager().beginTransaction()
+                    .setReorderingAllowed(true)
+                    .add(R.id.hud_container, HudFragment.class, null, HUD_TAG)
+                    .commit();
+        }
+    }
+
     //================================return current date and time
     private static String getDateTime() {
         //SimpleDateFormat day = new SimpleDateFormat("yyyy MM dd hh-mm-ss", Locale.getDefault());
@@ -1128,25 +1343,23 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
     public void onRecordButton(View view) {
 
         if (online) {
-            int id;
             String status;
 
             //switch recording and text status
             if (!recording) {
-                id = 1;
+                droneVideo.startRecording();
                 recording = true;
                 status = "Stop";
                 playSound(9);
             } else {
-                id = 3;
+                //stop and save, the recorder finishes writing on its own thread
+                droneVideo.getRecorder().stop();
                 recording = false;
                 status = "Rec";
                 playSound(11);
             }
 
-            //notify drone connect and update button text
-            appListener.onRecordUpdate(id);
-
+            //update button text
             ((Button) view).setText(status);
         }
 
@@ -1156,22 +1369,20 @@ public class MainActivity extends AppCompatActivity implements RecognitionListen
     public void onPauseRecButton(View view) {
 
         if (online) {
-            int id;
             String status;
 
             //switch recording and text status
             if (paused) {
-                id = 1;
+                droneVideo.getRecorder().resume();
                 paused = false;
                 status = "pause";
             } else {
-                id = 2;
+                droneVideo.getRecorder().pause();
                 paused = true;
                 status = "play";
             }
 
-            //notify drone connect and update button text
-            appListener.onRecordUpdate(id);
+            //update button text
             ((Button) view).setText(status);
         }
 
@@ -0,0 +1,194 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//one place to read the app's diagnostics instead of println on the per frame paths
+//three kinds of metric by dotted name, grouped by what they measure (video., nav., detect., record., render., mem.):
+//  counters    lock free increments for events
+//  gauges      read only when a snapshot is taken, mostly the stats the components already keep
+//  histograms  fixed bucket latencies, see LatencyHistogram
+//components register theirs once with registerMetrics(Metrics), a name registered again replaces the
+//old metric so a new connection's stats take over; nothing here allocates while recording
+public class Metrics {
+
+    //a value read at snapshot time, from any thread
+    public interface Gauge {
+        double get();
+    }
+
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Object> metrics;
+
+    //periodic snapshots to a file
+    private Thread snapshots;
+    private volatile boolean snapshotting;
+    private volatile long written;
+
+    public Metrics() {
+        metrics = new ConcurrentSkipListMap<>();
+    }
+
+    //the counter of that name, made on first use, keep it instead of looking it up per event
+    public Counter counter(String name) {
+        Object metric = metrics.get(name);
+        if (metric instanceof Counter) {
+            return (Counter) metric;
+        }
+
+        Counter counter = new Counter();
+        Object raced = metrics.putIfAbsent(name, counter);
+        return raced instanceof Counter ? (Counter) raced : counter;
+    }
+
+    //the histogram of that name, made on first use
+    public LatencyHistogram histogram(String name) {
+        Object metric = metrics.get(name);
+        if (metric instanceof LatencyHistogram) {
+            return (LatencyHistogram) metric;
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        Object raced = metrics.putIfAbsent(name, histogram);
+        return raced instanceof LatencyHistogram ? (LatencyHistogram) raced : histogram;
+    }
+
+    //show a counter kept elsewhere, e.g. one that counts from before the registry was set
+    public void register(String name, Counter counter) {
+        metrics.put(name, counter);
+    }
+
+    //show a histogram kept elsewhere, e.g. the latency stages
+    public void register(String name, LatencyHistogram histogram) {
+        metrics.put(name, histogram);
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        metrics.put(name, gauge);
+    }
+
+    public void remove(String name) {
+        metrics.remove(name);
+    }
+
+    //current value of a metric as text, null if there is none of that name
+    //histograms show their count and p50/p99/max in ms
+    public String format(String name) {
+        Object metric = metrics.get(name);
+        if (metric == null) {
+            return null;
+        }
+
+        if (metric instanceof Counter) {
+            return Long.toString(((Counter) metric).get());
+        }
+
+        if (metric instanceof LatencyHistogram) {
+            LatencyHistogram histogram = (LatencyHistogram) metric;
+            return String.format(Locale.US, "n=%d p50=%.1f p99=%.1f max=%.1fms", histogram.getCount(),
+                    histogram.percentileMicros(0.5) / 1000.0, histogram.percentileMicros(0.99) / 1000.0,
+                    histogram.getMaxMicros() / 1000.0);
+        }
+
+        double value;
+        try {
+            value = ((Gauge) metric).get();
+        } catch (RuntimeException e) {
+            //a gauge reading something that is going away, skip it this time
+            return "?";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value) : String.format(Locale.US, "%.2f", value);
+    }
+
+    //every metric as name and value, one per line, by name
+    public String snapshot() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            text.append(entry.getKey()).append(' ').append(format(entry.getKey())).append('\n');
+        }
+        return text.toString();
+    }
+
+    //append a snapshot to the file every intervalMs until stopSnapshots, which writes a last one
+    public synchronized void startSnapshots(File file, long intervalMs) {
+        stopSnapshots();
+
+        snapshotting = true;
+        snapshots = new Thread(() -> {
+            try {
+                while (snapshotting) {
+                    Thread.sleep(intervalMs);
+                    write(file);
+                }
+            } catch (InterruptedException e) {
+                //stopping
+            }
+            write(file);
+        }, "metrics-snapshot");
+        snapshots.setDaemon(true);
+        snapshots.start();
+    }
+
+    public synchronized void stopSnapshots() {
+        snapshotting = false;
+
+        if (snapshots != null) {
+            snapshots.interrupt();
+            try {
+                snapshots.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            snapshots = null;
+        }
+    }
+
+    //append one snapshot under a line with the time it was taken
+    public void write(File file) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            System.out.println("Failed to create " + dir);
+            return;
+        }
+
+        String text = "# " + new Date() + "\n" + snapshot();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            written++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int size() {
+        return metrics.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics " + metrics.size() + " registered, " + written + " snapshots written";
+    }
+}
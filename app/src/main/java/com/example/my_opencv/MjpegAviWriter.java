@@ -0,0 +1,282 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+//muxes jpeg frames as they came from the drone into an mjpeg avi, no decode or re-encode
+//frames are placed on a fixed tick grid by their timestamps, gaps get empty chunks which
+//players show as a repeat of the previous frame, so playback runs at the real speed
+//layout: RIFF AVI { LIST hdrl { avih, LIST strl { strh, strf } }, LIST movi { 00dc... }, idx1 }
+public class MjpegAviWriter {
+
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    //file offsets of the fields patched on close
+    private static final int RIFF_SIZE = 4;
+    private static final int AVIH_TOTAL_FRAMES = 48;
+    private static final int STRH_LENGTH = 140;
+    private static final int MOVI_SIZE = 216;
+    private static final int HEADER_SIZE = 224; //up to and including the 'movi' fourcc
+
+    private final FileChannel channel;
+    private final FileOutputStream out;
+    private final int fps;
+    private final ByteBuffer chunkHeader;
+
+    private int width;
+    private int height;
+    private boolean started;
+    private long firstTime;     //timestamp of the first frame, ns
+    private long nextTick;      //tick the next chunk goes on
+    private long position;      //end of the file so far
+    private int maxChunk;
+
+    //idx1 entries: offset from the 'movi' fourcc, size, flags
+    private int[] index;
+    private int entries;
+
+    //stats
+    private long frames;
+    private long repeats;
+
+    public MjpegAviWriter(File file, int fps) throws IOException {
+        this.fps = fps;
+        out = new FileOutputStream(file);
+        channel = out.getChannel();
+        chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        index = new int[3 * 1024];
+        entries = 0;
+        started = false;
+    }
+
+    //add one jpeg, timeNanos is when it was captured or received, on any monotonic clock
+    public void write(byte[] jpeg, int length, long timeNanos) throws IOException {
+        if (!started) {
+            int[] size = jpegSize(jpeg, length);
+            if (size == null) {
+                throw new IOException("Not a jpeg frame");
+            }
+            width = size[0];
+            height = size[1];
+            writeHeader();
+            firstTime = timeNanos;
+            nextTick = 0;
+            started = true;
+        }
+
+        //frames that arrive late keep their slot, early or duplicate ones go on the next free tick
+        long tick = Math.round((timeNanos - firstTime) * fps / 1e9);
+        while (nextTick < tick) {
+            chunk(null, 0);
+            repeats++;
+        }
+
+        chunk(jpeg, length);
+        frames++;
+    }
+
+    private void chunk(byte[] data, int length) throws IOException {
+        addIndex((int) (position - (HEADER_SIZE - 4)), length);
+
+        chunkHeader.clear();
+        chunkHeader.put((byte) '0').put((byte) '0').put((byte) 'd').put((byte) 'c');
+        chunkHeader.putInt(length);
+        chunkHeader.flip();
+        writeFully(chunkHeader);
+
+        if (length > 0) {
+            writeFully(ByteBuffer.wrap(data, 0, length));
+            //chunks are word aligned
+            if ((length & 1) == 1) {
+                writeFully(ByteBuffer.wrap(new byte[1]));
+            }
+        }
+
+        position += 8 + length + (length & 1);
+        maxChunk = Math.max(maxChunk, length);
+        nextTick++;
+    }
+
+    private void addIndex(int offset, int size) {
+        if (entries * 3 + 3 > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[entries * 3] = offset;
+        index[entries * 3 + 1] = size;
+        index[entries * 3 + 2] = AVIIF_KEYFRAME;
+        entries++;
+    }
+
+    //write the index and fill in the sizes and counts, the file is unplayable until this runs
+    public void close() throws IOException {
+        try {
+            if (!started) {
+                return;
+            }
+
+            long moviEnd = position;
+
+            ByteBuffer idx = ByteBuffer.allocate(8 + entries * 16).order(ByteOrder.LITTLE_ENDIAN);
+            fourcc(idx, "idx1");
+            idx.putInt(entries * 16);
+            for (int x = 0; x < entries; x++) {
+                fourcc(idx, "00dc");
+                idx.putInt(index[x * 3 + 2]);
+                idx.putInt(index[x * 3]);
+                idx.putInt(index[x * 3 + 1]);
+            }
+            idx.flip();
+            writeFully(idx);
+            position += 8 + entries * 16;
+
+            patch(RIFF_SIZE, (int) (position - 8));
+            patch(AVIH_TOTAL_FRAMES, entries);
+            patch(STRH_LENGTH, entries);
+            patch(MOVI_SIZE, (int) (moviEnd - (HEADER_SIZE - 4)));
+
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        fourcc(header, "RIFF");
+        header.putInt(0); //patched
+        fourcc(header, "AVI ");
+
+        fourcc(header, "LIST");
+        header.putInt(192);
+        fourcc(header, "hdrl");
+
+        fourcc(header, "avih");
+        header.putInt(56);
+        header.putInt(1000000 / fps);    //us per frame
+        header.putInt(0);                //max bytes per second
+        header.putInt(0);                //padding
+        header.putInt(AVIF_HASINDEX);
+        header.putInt(0);                //total frames, patched
+        header.putInt(0);                //initial frames
+        header.putInt(1);                //streams
+        header.putInt(0);                //suggested buffer size
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        fourcc(header, "LIST");
+        header.putInt(116);
+        fourcc(header, "strl");
+
+        fourcc(header, "strh");
+        header.putInt(56);
+        fourcc(header, "vids");
+        fourcc(header, "MJPG");
+        header.putInt(0);                //flags
+        header.putShort((short) 0);      //priority
+        header.putShort((short) 0);      //language
+        header.putInt(0);                //initial frames
+        header.putInt(1);                //scale
+        header.putInt(fps);              //rate, fps = rate / scale
+        header.putInt(0);                //start
+        header.putInt(0);                //length, patched
+        header.putInt(0);                //suggested buffer size
+        header.putInt(-1);               //quality
+        header.putInt(0);                //sample size
+        header.putShort((short) 0).putShort((short) 0);
+        header.putShort((short) width).putShort((short) height);
+
+        fourcc(header, "strf");
+        header.putInt(40);
+        header.putInt(40);
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1);      //planes
+        header.putShort((short) 24);     //bits per pixel
+        fourcc(header, "MJPG");
+        header.putInt(width * height * 3);
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        fourcc(header, "LIST");
+        header.putInt(0); //movi size, patched
+        fourcc(header, "movi");
+
+        header.flip();
+        writeFully(header);
+        position = HEADER_SIZE;
+    }
+
+    private void patch(long offset, int value) throws IOException {
+        ByteBuffer field = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        field.putInt(value);
+        field.flip();
+        while (field.hasRemaining()) {
+            channel.write(field, offset + field.position());
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void fourcc(ByteBuffer buffer, String code) {
+        for (int x = 0; x < 4; x++) {
+            buffer.put((byte) code.charAt(x));
+        }
+    }
+
+    //width and height from the jpeg's start of frame marker, null if there is none
+    public static int[] jpegSize(byte[] jpeg, int length) {
+        if (length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != 0xd8) {
+            return null;
+        }
+
+        int x = 2;
+        while (x + 4 <= length) {
+            if ((jpeg[x] & 0xff) != 0xff) {
+                return null;
+            }
+
+            int marker = jpeg[x + 1] & 0xff;
+            int segment = ((jpeg[x + 2] & 0xff) << 8) | (jpeg[x + 3] & 0xff);
+
+            //SOF0..SOF15 except DHT (c4), JPG (c8) and DAC (cc)
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (x + 9 > length) {
+                    return null;
+                }
+                int height = ((jpeg[x + 5] & 0xff) << 8) | (jpeg[x + 6] & 0xff);
+                int width = ((jpeg[x + 7] & 0xff) << 8) | (jpeg[x + 8] & 0xff);
+                return new int[]{width, height};
+            }
+
+            x += 2 + segment;
+        }
+
+        return null;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getRepeats() {
+        return repeats;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
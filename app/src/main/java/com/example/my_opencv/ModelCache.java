@@ -0,0 +1,174 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+//model files copied out of the apk once, so the dnn loaders can read them from a plain path
+//a file is streamed through one small buffer into <name>.part, synced and renamed, and a <name>.sum
+//next to it records the build it came from, its length and crc32; the next start reuses the file as
+//long as the build is the same and the file still matches its checksum, anything else extracts again
+public class ModelCache {
+
+    //where a model comes from, the assets in the app
+    public interface Source {
+        InputStream open(String name) throws IOException;
+    }
+
+    private static final int CHUNK = 64 * 1024;
+    private static final String SUM = ".sum";
+    private static final String PART = ".part";
+
+    private final File dir;
+    private final String stamp; //the app build, a new apk may ship new models under the same name
+    private final byte[] buffer;
+    private final CRC32 crc;
+
+    //stats
+    private int hits;
+    private int extractions;
+    private long extractedBytes;
+    private long verifiedBytes;
+    private long nanos;
+
+    public ModelCache(File dir, String stamp) {
+        this.dir = dir;
+        this.stamp = stamp;
+        buffer = new byte[CHUNK];
+        crc = new CRC32();
+    }
+
+    //path of the model, extracted if the cached copy is missing, stale or damaged
+    public synchronized File get(String name, Source source) throws IOException {
+        long start = System.nanoTime();
+        try {
+            File file = new File(dir, name);
+            File sum = new File(dir, name + SUM);
+
+            if (isValid(file, sum)) {
+                hits++;
+                return file;
+            }
+
+            extract(name, source, file, sum);
+            extractions++;
+            return file;
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    private boolean isValid(File file, File sum) throws IOException {
+        if (!file.isFile() || !sum.isFile()) {
+            return false;
+        }
+
+        //stamp length crc
+        String[] fields = new String(read(sum), StandardCharsets.UTF_8).trim().split(" ");
+        if (fields.length != 3 || !fields[0].equals(stamp)) {
+            return false;
+        }
+
+        long length;
+        long expected;
+        try {
+            length = Long.parseLong(fields[1]);
+            expected = Long.parseLong(fields[2]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (file.length() != length) {
+            return false;
+        }
+
+        //the dnn loader reads the whole file next anyway, one more pass is cheap next to a copy
+        crc.reset();
+        try (FileInputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+                verifiedBytes += n;
+            }
+        }
+        return crc.getValue() == expected;
+    }
+
+    private void extract(String name, Source source, File file, File sum) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        //the old checksum goes first, a crash half way leaves no valid looking pair behind
+        sum.delete();
+
+        File part = new File(dir, name + PART);
+        long length = 0;
+        crc.reset();
+        try (InputStream in = source.open(name); FileOutputStream out = new FileOutputStream(part)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                length += n;
+            }
+            out.getFD().sync();
+        }
+
+        if (!part.renameTo(file)) {
+            file.delete();
+            if (!part.renameTo(file)) {
+                part.delete();
+                throw new IOException("Failed to move " + part + " to " + file);
+            }
+        }
+
+        try (FileOutputStream out = new FileOutputStream(sum)) {
+            out.write((stamp + " " + length + " " + crc.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        extractedBytes += length;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        }
+        return data;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getExtractions() {
+        return extractions;
+    }
+
+    public long getExtractedBytes() {
+        return extractedBytes;
+    }
+
+    //the java heap the cache needs, whatever the model size
+    public int getBufferBytes() {
+        return buffer.length;
+    }
+
+    @Override
+    public String toString() {
+        return "ModelCache hits=" + hits + " extractions=" + extractions + " extracted=" + extractedBytes / 1024
+                + "KB verified=" + verifiedBytes / 1024 + "KB buffer=" + buffer.length / 1024 + "KB time="
+                + nanos / 1000000 + "ms";
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.my_opencv;
+
+//a detection model shipped in the assets and how to feed it
+//any ssd style model works whatever it was trained in, as long as its output is the usual
+//[1, 1, N, 7] rows of image, class, confidence, left, top, right, bottom
+public class ModelSpec {
+
+    //framework names as Dnn.readNet takes them
+    public static final String CAFFE = "caffe";
+    public static final String ONNX = "onnx";
+    public static final String TENSORFLOW = "tensorflow";
+
+    public final String name;
+    public final String framework;
+    public final String model;       //asset with the weights
+    public final String config;      //asset with the graph, null if the model file has it
+    public final int inputWidth;
+    public final int inputHeight;
+    public final double scale;
+    public final double mean;
+    public final boolean swapRB;
+    public final String[] classNames;
+
+    public ModelSpec(String name, String framework, String model, String config, int inputWidth, int inputHeight,
+                     double scale, double mean, boolean swapRB, String[] classNames) {
+        this.name = name;
+        this.framework = framework;
+        this.model = model;
+        this.config = config;
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.scale = scale;
+        this.mean = mean;
+        this.swapRB = swapRB;
+        this.classNames = classNames;
+    }
+
+    //index of a class by name, -1 if the model doesn't know it
+    public int classId(String className) {
+        for (int x = 0; x < classNames.length; x++) {
+            if (classNames[x].equals(className)) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + framework + " " + inputWidth + "x" + inputHeight + ")";
+    }
+}
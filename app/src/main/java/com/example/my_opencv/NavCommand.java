@@ -0,0 +1,42 @@
+package com.example.my_opencv;
+
+//a button press waiting to go out on the nav link, emergency land jumps the queue
+public class NavCommand implements Comparable<NavCommand> {
+
+    //button ids, same order as MainActivity.nav_buttons
+    public static final int LAUNCH_LAND = 1;
+    public static final int EMERGENCY = 2;
+    public static final int BUTTONS = 10;
+
+    protected final int button;
+    protected final long enqueued; //System.nanoTime() when the command was made
+    protected final long order;    //keeps commands of the same priority in arrival order
+
+    public NavCommand(int button, long order) {
+        this.button = button;
+        this.order = order;
+        enqueued = System.nanoTime();
+    }
+
+    public int getButton() {
+        return button;
+    }
+
+    //lower goes first
+    private int priority() {
+        switch (button) {
+            case EMERGENCY:
+                return 0;
+            case LAUNCH_LAND:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    @Override
+    public int compareTo(NavCommand other) {
+        int diff = Integer.compare(priority(), other.priority());
+        return diff != 0 ? diff : Long.compare(order, other.order);
+    }
+}
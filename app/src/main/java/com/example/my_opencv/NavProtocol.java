@@ -0,0 +1,132 @@
+package com.example.my_opencv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//nav link encoding, one framed message per update instead of one round trip per field
+//the drone streams its state at its own rate, the app sends its state and commands whenever it has them
+//message layout, big endian:
+//  magic(4) version(1) type(1) payload length(2) sequence(4) timestamp ms(8) | 7 doubles
+public class NavProtocol {
+
+    public static final int MAGIC = 0x41504144; //"APAD"
+    public static final byte VERSION = 2;
+    public static final byte TYPE_STATE = 1;
+    public static final byte TYPE_VIDEO_HINT = 2; //app to drone: jpeg quality, resolution scale, fps
+    //clock offset probe, app to drone: app send time, drone to app: that time echoed plus drone receive
+    //and send times, all microseconds on the sender's own clock, see ClockSync
+    public static final byte TYPE_TIME_SYNC = 3;
+
+    public static final int FIELDS = 7;
+    public static final int HEADER_SIZE = 20;
+    public static final int PAYLOAD_SIZE = FIELDS * 8;
+    public static final int MESSAGE_SIZE = HEADER_SIZE + PAYLOAD_SIZE;
+
+    //true to talk to DroneServer v5 and older, one double each way per field, see DroneConnect.nav_read
+    //can change between connections, the sequence counters carry on either way
+    private volatile boolean legacy;
+
+    private final byte[] outBytes;
+    private final ByteBuffer outBuffer;
+
+    private int sequence;           //last sequence sent
+    private int remoteSequence;     //last sequence received
+    private long missed;            //drone messages skipped in the sequence, e.g. during a reconnect
+    private long remoteTimestamp;   //drone clock of the last message received, ms
+
+    public NavProtocol(boolean legacy) {
+        this.legacy = legacy;
+        outBytes = new byte[MESSAGE_SIZE];
+        outBuffer = ByteBuffer.wrap(outBytes);
+        sequence = 0;
+        remoteSequence = -1;
+        remoteTimestamp = 0;
+    }
+
+    //encode the app state as the next message, the returned array is reused by the next call
+    public byte[] encode(double[] toDrone) {
+        return encode(TYPE_STATE, toDrone);
+    }
+
+    //encode a message of any type, missing payload fields are sent as 0
+    public byte[] encode(byte type, double[] toDrone) {
+        sequence++;
+
+        outBuffer.clear();
+        outBuffer.putInt(MAGIC);
+        outBuffer.put(VERSION);
+        outBuffer.put(type);
+        outBuffer.putShort((short) PAYLOAD_SIZE);
+        outBuffer.putInt(sequence);
+        outBuffer.putLong(System.currentTimeMillis());
+
+        for (int x = 0; x < FIELDS; x++) {
+            outBuffer.putDouble(x < toDrone.length ? toDrone[x] : 0);
+        }
+
+        return outBytes;
+    }
+
+    //type of the message held in the first MESSAGE_SIZE bytes, to pick where to decode it before decoding
+    public static byte type(ByteBuffer message) {
+        return message.get(5);
+    }
+
+    //decode one whole drone state or time sync message held in the first MESSAGE_SIZE bytes of message
+    //only state messages count in the sequence, time sync answers are sent outside of it
+    public byte decode(ByteBuffer message, double[] fromDrone) throws IOException {
+        message.clear();
+        int magic = message.getInt();
+        byte version = message.get();
+        byte type = message.get();
+        int length = message.getShort();
+
+        if (magic != MAGIC || version != VERSION || (type != TYPE_STATE && type != TYPE_TIME_SYNC)
+                || length != PAYLOAD_SIZE) {
+            throw new IOException("Bad nav message: magic " + Integer.toHexString(magic)
+                    + " version " + version + " type " + type + " length " + length);
+        }
+
+        int next = message.getInt();
+        long timestamp = message.getLong();
+        if (type == TYPE_STATE) {
+            if (remoteSequence >= 0 && next > remoteSequence + 1) {
+                missed += next - remoteSequence - 1;
+            }
+            remoteSequence = next;
+            remoteTimestamp = timestamp;
+        }
+
+        for (int x = 0; x < FIELDS; x++) {
+            double value = message.getDouble();
+            if (x < fromDrone.length) {
+                fromDrone[x] = value;
+            }
+        }
+        return type;
+    }
+
+    public void setLegacy(boolean legacy) {
+        this.legacy = legacy;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public int getRemoteSequence() {
+        return remoteSequence;
+    }
+
+    public long getMissed() {
+        return missed;
+    }
+
+    public long getRemoteTimestamp() {
+        return remoteTimestamp;
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.my_opencv;
+
+import java.io.IOException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+//send side of the full duplex nav link
+//commands are written as soon as they are queued, the app state is refreshed at a fixed pace in between
+public class NavSender implements Runnable {
+
+    //a clock offset probe goes out this often while a ClockSync is set
+    private static final long SYNC_INTERVAL_NANOS = 1000 * 1000000L;
+
+    //where the periodic app state comes from
+    public interface StateSource {
+        double[] nextState();
+    }
+
+    private final PriorityBlockingQueue<NavCommand> commands;
+    private final AtomicLong order;
+    private final long intervalMs;
+
+    private NavProtocol protocol;
+    private DroneTransport.Connection connection;
+    private StateSource source;
+    private volatile FlightLog log;
+    private volatile ClockSync clock;
+    private volatile boolean running;
+    private volatile long skipped; //periodic states not sent because the link was backed up
+
+    //command to socket latency per button id, index 0 is the periodic state
+    //measured up to the message being queued on the transport
+    private final long[] sent;
+    private final long[] totalNanos;
+    private final long[] maxNanos;
+
+    private final double[] commandState;
+
+    //latest video hint not sent yet, only the newest one matters
+    private final AtomicReference<double[]> pendingHint;
+    private final double[] syncPayload;
+
+    public NavSender(long intervalMs) {
+        this.intervalMs = intervalMs;
+        commands = new PriorityBlockingQueue<>();
+        order = new AtomicLong();
+        sent = new long[NavCommand.BUTTONS + 1];
+        totalNanos = new long[NavCommand.BUTTONS + 1];
+        maxNanos = new long[NavCommand.BUTTONS + 1];
+        commandState = new double[NavProtocol.FIELDS];
+        pendingHint = new AtomicReference<>();
+        syncPayload = new double[NavProtocol.FIELDS];
+        running = false;
+    }
+
+    //queue a button press, safe from any thread
+    public void submit(int button) {
+        if (button > 0 && button <= NavCommand.BUTTONS) {
+            commands.offer(new NavCommand(button, order.getAndIncrement()));
+        }
+    }
+
+    //ask the drone for a different video stream, goes out on the next pass of the send loop
+    public void submitHint(int quality, double scale, int fps) {
+        pendingHint.set(new double[]{quality, scale, fps});
+    }
+
+    //next queued command without waiting, used by the lockstep loop
+    public NavCommand poll() {
+        return commands.poll();
+    }
+
+    public void start(NavProtocol protocol, DroneTransport.Connection connection, StateSource source) {
+        this.protocol = protocol;
+        this.connection = connection;
+        this.source = source;
+        running = true;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    //everything sent is also written to the flight log, null to stop
+    public void setLog(FlightLog log) {
+        this.log = log;
+    }
+
+    //probe the drone's clock for the video latency stats, null to stop
+    public void setClockSync(ClockSync clock) {
+        this.clock = clock;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        long nextState = System.nanoTime();
+        long nextSync = nextState;
+
+        try {
+            while (running) {
+                long wait = nextState - System.nanoTime();
+                NavCommand command = wait > 0 ? commands.poll(wait, TimeUnit.NANOSECONDS) : commands.poll();
+
+                double[] hint = pendingHint.getAndSet(null);
+                if (hint != null) {
+                    if (connection.offer(protocol.encode(NavProtocol.TYPE_VIDEO_HINT, hint), 0,
+                            NavProtocol.MESSAGE_SIZE)) {
+                        FlightLog log = this.log;
+                        if (log != null) {
+                            log.nav(FlightLog.NAV_HINT, System.nanoTime(), hint);
+                        }
+                    } else {
+                        //backed up, try again on the next pass unless a newer hint came in
+                        pendingHint.compareAndSet(null, hint);
+                    }
+                }
+
+                ClockSync clock = this.clock;
+                if (clock != null && System.nanoTime() - nextSync >= 0) {
+                    //a probe that doesn't fit is just skipped, its answer would be slow anyway
+                    connection.offer(protocol.encode(NavProtocol.TYPE_TIME_SYNC, clock.probe(syncPayload)), 0,
+                            NavProtocol.MESSAGE_SIZE);
+                    nextSync = System.nanoTime() + SYNC_INTERVAL_NANOS;
+                }
+
+                double[] state = source.nextState();
+
+                if (command != null) {
+                    //same state as the last update with the button filled in
+                    System.arraycopy(state, 0, commandState, 0, Math.min(state.length, commandState.length));
+                    commandState[0] = command.button;
+                    send(commandState);
+                    record(command.button, System.nanoTime() - command.enqueued);
+
+                } else {
+                    if (offer(state)) {
+                        record(0, 0);
+                    } else {
+                        //stale by the time there is room, the next one goes out instead
+                        skipped++;
+                    }
+                    nextState = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMs);
+                }
+            }
+        } catch (IOException e) {
+            //commands can't go out any more, emergency included, drop the link so it is reconnected
+            e.printStackTrace();
+            connection.close(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        running = false;
+    }
+
+    //queue the message on the transport, it goes out on the next select round
+    private void send(double[] state) throws IOException {
+        connection.send(protocol.encode(state), 0, NavProtocol.MESSAGE_SIZE);
+        log(state);
+    }
+
+    //same for a periodic state, false if the transport had no room for it
+    private boolean offer(double[] state) throws IOException {
+        if (!connection.offer(protocol.encode(state), 0, NavProtocol.MESSAGE_SIZE)) {
+            return false;
+        }
+        log(state);
+        return true;
+    }
+
+    private void log(double[] state) {
+        FlightLog log = this.log;
+        if (log != null) {
+            log.nav(FlightLog.NAV_TO_DRONE, System.nanoTime(), state);
+        }
+    }
+
+    //commands can also be merged into the state of the lockstep loop
+    public synchronized void record(int button, long nanos) {
+        sent[button]++;
+        totalNanos[button] += nanos;
+        maxNanos[button] = Math.max(maxNanos[button], nanos);
+    }
+
+    //commands waiting for the send loop
+    public int getQueued() {
+        return commands.size();
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getSent(int button) {
+        return sent[button];
+    }
+
+    //mean command to socket latency in microseconds for a button id
+    public synchronized double getMeanLatencyMicros(int button) {
+        return sent[button] == 0 ? 0 : totalNanos[button] / 1000.0 / sent[button];
+    }
+
+    public synchronized double getMaxLatencyMicros(int button) {
+        return maxNanos[button] / 1000.0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("NavSender states=" + sent[0] + " skipped=" + skipped);
+
+        for (int button = 1; button < sent.length; button++) {
+            if (sent[button] > 0) {
+                builder.append(" button").append(button)
+                        .append(" n=").append(sent[button])
+                        .append(" mean=").append((int) getMeanLatencyMicros(button)).append("us")
+                        .append(" max=").append((int) getMaxLatencyMicros(button)).append("us");
+            }
+        }
+
+        return builder.toString();
+    }
+}
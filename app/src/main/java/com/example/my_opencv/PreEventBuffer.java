@@ -0,0 +1,160 @@
+package com.example.my_opencv;
+
+//instant replay: the last few seconds of jpeg frames as they were received, so a recording can
+//start before the record button was pressed
+//frames are packed back to back into one preallocated byte ring, memory is capped by bytes
+//whatever the frame size, the oldest frames are dropped to make room or once they are too old
+public class PreEventBuffer {
+
+    //one frame copied out, reused by the reader so replaying doesn't allocate per frame
+    public static class Entry {
+        public byte[] data;
+        public int length;
+        public long time;
+    }
+
+    private final byte[] ring;
+    private final long maxAgeNanos;
+
+    //frame entries, a ring too, oldest at head
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] times;
+    private int head;
+    private int count;
+
+    private int write;      //where the next frame's bytes go
+    private int used;       //bytes held by frames, plus the tail skipped when a frame wrapped
+
+    //stats
+    private long added;
+    private long evicted;
+    private long tooBig;
+
+    public PreEventBuffer(int capacityBytes, int maxFrames, long maxAgeMillis) {
+        ring = new byte[capacityBytes];
+        maxAgeNanos = maxAgeMillis * 1000000L;
+        offsets = new int[maxFrames];
+        lengths = new int[maxFrames];
+        times = new long[maxFrames];
+    }
+
+    //keep a copy of a received jpeg, the frame itself goes back to its pool
+    public synchronized void add(byte[] data, int length, long timeNanos) {
+        if (length <= 0) {
+            return;
+        }
+        if (length > ring.length) {
+            tooBig++;
+            return;
+        }
+
+        //frames are stored in one piece, one that doesn't fit before the end starts over at 0
+        int start = write;
+        int skipped = 0;
+        if (start + length > ring.length) {
+            skipped = ring.length - start;
+            start = 0;
+        }
+
+        //drop the oldest frames until the new one doesn't overwrite them
+        while (count > 0 && (count == offsets.length || used + skipped + length > ring.length
+                || overlaps(offsets[head], start, length))) {
+            removeOldest();
+        }
+
+        if (count == 0) {
+            start = 0;
+            skipped = 0;
+            used = 0;
+        }
+
+        System.arraycopy(data, 0, ring, start, length);
+
+        int slot = (head + count) % offsets.length;
+        offsets[slot] = start;
+        lengths[slot] = length;
+        times[slot] = timeNanos;
+        count++;
+
+        used += skipped + length;
+        write = start + length;
+        added++;
+
+        //too old to be worth replaying
+        while (count > 1 && timeNanos - times[head] > maxAgeNanos) {
+            removeOldest();
+        }
+    }
+
+    private boolean overlaps(int oldest, int start, int length) {
+        return oldest >= start && oldest < start + length;
+    }
+
+    private void removeOldest() {
+        int next = (head + 1) % offsets.length;
+
+        //the bytes freed run up to where the next frame starts, including a skipped tail
+        if (count > 1) {
+            int end = offsets[next];
+            int freed = end > offsets[head] ? end - offsets[head] : ring.length - offsets[head] + end;
+            used -= freed;
+        } else {
+            used = 0;
+        }
+
+        head = next;
+        count--;
+        evicted++;
+    }
+
+    //copy the oldest frame received after the given time into entry, false if there is none
+    //frames are read one at a time so the receive side is only held up for one copy
+    public synchronized boolean copyAfter(long after, Entry entry) {
+        for (int x = 0; x < count; x++) {
+            int slot = (head + x) % offsets.length;
+            if (times[slot] > after) {
+                if (entry.data == null || entry.data.length < lengths[slot]) {
+                    entry.data = new byte[lengths[slot]];
+                }
+                System.arraycopy(ring, offsets[slot], entry.data, 0, lengths[slot]);
+                entry.length = lengths[slot];
+                entry.time = times[slot];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //a new stream, e.g. after a reconnect, doesn't continue the old one
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+        write = 0;
+        used = 0;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    //bytes taken in the ring, the ring itself is always allocated in full
+    public synchronized int getUsedBytes() {
+        return used;
+    }
+
+    public int getCapacityBytes() {
+        return ring.length;
+    }
+
+    //time between the oldest and newest frame held
+    public synchronized long getSpanMillis() {
+        return count < 2 ? 0 : (times[(head + count - 1) % offsets.length] - times[head]) / 1000000L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreEventBuffer frames=" + count + " span=" + getSpanMillis() + "ms used=" + used / 1024 + "/"
+                + ring.length / 1024 + "KB added=" + added + " evicted=" + evicted + " tooBig=" + tooBig;
+    }
+}
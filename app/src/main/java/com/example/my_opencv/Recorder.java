@@ -0,0 +1,469 @@
+package com.example.my_opencv;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//records the video feed on its own thread behind a bounded queue, the receive path only copies bytes
+//jpeg frames are muxed into the avi as they came (passthrough), frames that only exist decoded
+//(hardware h264) are written through an opencv VideoWriter at the size of the first frame
+//frames are timed by when they arrived, with paused time cut out
+//a recording can begin with the frames of a PreEventBuffer received before it was started
+//a recording is a folder of fixed length segments kept by a SegmentStore, each segment is a complete
+//file once it is closed, so a crash only loses the segment being written
+//start and stop never wait, a recording's writer thread waits for the last one's to close its file
+public class Recorder {
+
+    private static final String TAG = "Recorder";
+
+    public enum State {IDLE, RECORDING, PAUSED}
+
+    //one queued frame, recycled through the free queue so recording doesn't allocate per frame
+    private static class Sample {
+        byte[] data;
+        int length;
+        Mat mat;
+        long time;
+    }
+
+    //one recording from start to stop, with its own queue so its writer can finish it while the next
+    //recording already takes frames
+    private static class Take {
+        final String name;
+        final int fps;
+        final PreEventBuffer preroll;
+        final long prerollUntil;
+        final ArrayBlockingQueue<Sample> queue;
+        //the writer is still catching up on the pre-event buffer, a live jpeg that finds the queue full
+        //is in that buffer too and gets written from there
+        volatile boolean replaying;
+
+        Take(String name, int fps, PreEventBuffer preroll, int capacity) {
+            this.name = name;
+            this.fps = Math.max(1, fps);     //frames are placed on a grid of 1/fps, never a zero one
+            this.preroll = preroll;
+            prerollUntil = System.nanoTime();
+            queue = new ArrayBlockingQueue<>(capacity);
+            replaying = preroll != null;
+        }
+    }
+
+    private static final int GROW_STEP = 64 * 1024;
+
+    private final int capacity;
+    private final ArrayBlockingQueue<Sample> free;
+
+    private final SegmentStore store;
+    private final long segmentNanos;
+
+    private volatile State state;
+    private volatile Take take;     //the recording frames are submitted to, null before the first
+    private Thread thread;          //its writer
+
+    //paused time is removed from the timeline so the recording has no frozen stretch
+    private long pausedAt;
+    private volatile long pausedTotal;
+
+    //writer side, writer thread only
+    private int fps;
+    private File segment;
+    private long segmentStart;      //timeline of the first frame in the segment, ns
+    private long segmentWall;       //wall clock it was opened at, ms
+    private long segmentLast;
+    private long segmentFrames;
+    private MjpegAviWriter avi;
+    private VideoWriter videoWriter;
+    private Size size;
+    private Mat resized;
+    private Mat lastMat;
+    private long firstTime;
+    private long nextTick;
+    private long replayedUntil;     //newest frame replayed, queued copies of it are skipped
+
+    //stats
+    private volatile long written;
+    private volatile long dropped;
+    private volatile long segments;
+
+    public Recorder(int capacity, SegmentStore store, long segmentMillis) {
+        this.capacity = capacity;
+        this.store = store;
+        this.segmentNanos = segmentMillis * 1000000L;
+        free = new ArrayBlockingQueue<>(capacity);
+        for (int x = 0; x < capacity; x++) {
+            free.offer(new Sample());
+        }
+        state = State.IDLE;
+    }
+
+    //start a new recording in its own folder, fps is the tick grid frames are placed on by their time
+    public void start(String name, int fps) {
+        start(name, fps, null);
+    }
+
+    //same, with the frames buffered up to now written first
+    //returns right away, also while the last recording is still being written
+    public synchronized void start(String name, int fps, PreEventBuffer preroll) {
+        if (state != State.IDLE) {
+            return;
+        }
+
+        Take last = take;
+        Thread previous = thread;
+        Take next = new Take(name, fps, preroll, capacity);
+
+        take = next;
+        pausedTotal = 0;
+        state = State.RECORDING;
+
+        thread = new Thread(() -> run(next, last, previous), "video-record");
+        thread.start();
+        Log.i(TAG, "Recording to " + name);
+    }
+
+    public synchronized void pause() {
+        if (state == State.RECORDING) {
+            pausedAt = System.nanoTime();
+            state = State.PAUSED;
+        }
+    }
+
+    public synchronized void resume() {
+        if (state == State.PAUSED) {
+            pausedTotal += System.nanoTime() - pausedAt;
+            state = State.RECORDING;
+        }
+    }
+
+    //stop taking frames, the writer thread finishes the queue and closes the file on its own
+    public synchronized void stop() {
+        state = State.IDLE;
+    }
+
+    //copy a frame into the queue, never blocks, returns false if it wasn't taken
+    public boolean submit(Frame frame) {
+        Take current = take;
+        if (state != State.RECORDING || current == null) {
+            return false;
+        }
+
+        Sample sample = free.poll();
+        if (sample == null) {
+            if (current.replaying && frame.length > 0) {
+                //taken from the pre-event buffer once the replay gets to it
+                return true;
+            }
+
+            //writer can't keep up, losing a frame beats stalling the video
+            dropped++;
+            return false;
+        }
+
+        if (frame.length > 0) {
+            if (sample.data == null || sample.data.length < frame.length) {
+                sample.data = new byte[((frame.length + GROW_STEP - 1) / GROW_STEP) * GROW_STEP];
+            }
+            System.arraycopy(frame.data, 0, sample.data, 0, frame.length);
+            sample.length = frame.length;
+
+        } else if (frame.mat != null) {
+            if (sample.mat == null) {
+                sample.mat = new Mat();
+            }
+            frame.mat.copyTo(sample.mat);
+            sample.length = 0;
+
+        } else {
+            free.offer(sample);
+            return false;
+        }
+
+        sample.time = frame.received - pausedTotal;
+        current.queue.offer(sample);
+        return true;
+    }
+
+    //writer thread of one recording, runs until it is stopped or another one started and its queue is empty
+    private void run(Take take, Take last, Thread previous) {
+        //the last recording may still be finishing its queue, the writer state is its until then
+        if (previous != null) {
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            //frames that slipped in as the last recording stopped don't belong to any
+            drain(last.queue);
+        }
+
+        fps = take.fps;
+        try {
+            store.open(take.name);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("recording failed, stopping");
+            stopFailed(take);
+            close(take);
+            return;
+        }
+
+        replayedUntil = Long.MIN_VALUE;
+        replay(take);
+
+        ArrayBlockingQueue<Sample> queue = take.queue;
+        try {
+            while ((state != State.IDLE && this.take == take) || !queue.isEmpty()) {
+                Sample sample = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (sample == null) {
+                    continue;
+                }
+
+                try {
+                    if (sample.time > replayedUntil) {
+                        write(sample);
+                        written++;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.out.println("recording failed, stopping");
+                    stopFailed(take);
+                } finally {
+                    free.offer(sample);
+                }
+            }
+        } catch (InterruptedException e) {
+            //stopping
+        } finally {
+            close(take);
+        }
+    }
+
+    //a write failed, stop taking frames unless a newer recording took over meanwhile
+    private synchronized void stopFailed(Take failed) {
+        if (take == failed) {
+            state = State.IDLE;
+        }
+    }
+
+    //write what the pre-event buffer held when recording started, one frame at a time since
+    //the receive side keeps adding to it meanwhile, then carry on with what it added while recording
+    //until caught up, so live frames the full queue turned away during the replay aren't lost
+    //queued frames up to the last one replayed are skipped by the run loop
+    private void replay(Take take) {
+        PreEventBuffer preroll = take.preroll;
+        if (preroll == null) {
+            return;
+        }
+
+        PreEventBuffer.Entry entry = new PreEventBuffer.Entry();
+        Sample sample = new Sample();
+        long replayed = 0;
+
+        try {
+            while (true) {
+                //past the start only until the first pause, the buffer's times don't have it cut out
+                while (preroll.copyAfter(replayedUntil, entry) && (entry.time <= take.prerollUntil
+                        || (state == State.RECORDING && this.take == take && pausedTotal == 0))) {
+                    sample.data = entry.data;
+                    sample.length = entry.length;
+                    sample.time = entry.time;
+                    write(sample);
+                    replayedUntil = sample.time;
+                    written++;
+                    replayed++;
+                }
+
+                if (!take.replaying) {
+                    break;
+                }
+                //frames are queued as usual from here, one more pass for any turned away meanwhile
+                take.replaying = false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("recording failed, stopping");
+            stopFailed(take);
+        }
+        take.replaying = false;
+
+        Log.i(TAG, "Recorded " + replayed + " frames from before the start");
+    }
+
+    private void write(Sample sample) throws IOException {
+
+        //one segment has one format, e.g. a reconnect that switched codec starts the next one
+        if ((sample.length > 0 && videoWriter != null) || (sample.length == 0 && avi != null)) {
+            finishSegment();
+        }
+
+        //every frame is a key frame in both formats, so any frame can start a segment
+        if (segment != null && sample.time - segmentStart >= segmentNanos) {
+            finishSegment();
+        }
+
+        if (segment == null) {
+            segment = store.nextSegment();
+            segmentStart = sample.time;
+            segmentWall = System.currentTimeMillis();
+            segmentFrames = 0;
+        }
+        segmentLast = sample.time;
+        segmentFrames++;
+
+        if (sample.length > 0) {
+            if (avi == null) {
+                avi = new MjpegAviWriter(segment, fps);
+            }
+            avi.write(sample.data, sample.length, sample.time);
+            return;
+        }
+
+        if (videoWriter == null) {
+            size = sample.mat.size();
+            videoWriter = new VideoWriter(segment.getPath(), VideoWriter.fourcc('M', 'J', 'P', 'G'), fps, size);
+            if (!videoWriter.isOpened()) {
+                throw new IOException("Failed to open " + segment);
+            }
+            resized = new Mat();
+            lastMat = new Mat();
+            firstTime = sample.time;
+            nextTick = 0;
+        }
+
+        //the writer only takes frames of the size it was opened with
+        Mat mat = sample.mat;
+        if (mat.width() != (int) size.width || mat.height() != (int) size.height) {
+            Imgproc.resize(mat, resized, size);
+            mat = resized;
+        }
+
+        //repeat the last frame over gaps so the file keeps real time
+        long tick = Math.round((sample.time - firstTime) * fps / 1e9);
+        while (nextTick < tick) {
+            videoWriter.write(lastMat);
+            nextTick++;
+        }
+
+        videoWriter.write(mat);
+        mat.copyTo(lastMat);
+        nextTick++;
+    }
+
+    //close the segment's file and hand it to the store, which syncs and lists it
+    private void finishSegment() throws IOException {
+        if (segment == null) {
+            return;
+        }
+
+        File file = segment;
+        segment = null;
+
+        try {
+            if (avi != null) {
+                MjpegAviWriter writer = avi;
+                avi = null;
+                writer.close();
+                Log.i(TAG, "Recorded " + writer.getFrames() + " frames, " + writer.getRepeats() + " repeats to " + file);
+            }
+
+            if (videoWriter != null) {
+                videoWriter.release();
+                resized.release();
+                lastMat.release();
+                videoWriter = null;
+                Log.i(TAG, "Recorded " + nextTick + " frames to " + file);
+            }
+        } finally {
+            if (file.exists()) {
+                //the last frame is shown for a tick too, rounded once at the end so 30 fps isn't 33ms a tick
+                long duration = Math.round((segmentLast - segmentStart + 1e9 / fps) / 1e6);
+                store.finish(file, segmentWall, duration, segmentFrames);
+                segments++;
+            }
+        }
+    }
+
+    private void close(Take take) {
+        try {
+            finishSegment();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        //hand back anything a failed write left behind
+        drain(take.queue);
+    }
+
+    private void drain(ArrayBlockingQueue<Sample> queue) {
+        Sample sample;
+        while ((sample = queue.poll()) != null) {
+            free.offer(sample);
+        }
+    }
+
+    //wait until every recording started so far is written and its last segment closed, not for the
+    //ui thread; false if that took longer than timeoutMs
+    public boolean awaitWritten(long timeoutMs) throws InterruptedException {
+        Thread writer;
+        synchronized (this) {
+            writer = thread;
+        }
+
+        if (writer == null) {
+            return true;
+        }
+        writer.join(timeoutMs);
+        return !writer.isAlive();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    //frames written and dropped, segments and the queue to the writer, as record.*
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("record.recording", () -> state == State.RECORDING ? 1 : 0);
+        metrics.gauge("record.written", () -> written);
+        metrics.gauge("record.dropped", () -> dropped);
+        metrics.gauge("record.segments", () -> segments);
+        metrics.gauge("record.queued", this::getQueued);
+    }
+
+    //frames waiting for the writer of the current recording
+    public int getQueued() {
+        Take current = take;
+        return current == null ? 0 : current.queue.size();
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getSegments() {
+        return segments;
+    }
+
+    public SegmentStore getStore() {
+        return store;
+    }
+
+    @Override
+    public String toString() {
+        return "Recorder state=" + state + " written=" + written + " dropped=" + dropped
+                + " segments=" + segments + " queued=" + getQueued() + "/" + capacity;
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.my_opencv;
+
+//picks the part of each frame detection runs on, so a small person far below still fills the network input
+//every Nth run, and whenever nothing is being followed, the whole frame is scaled down as before; the
+//runs in between take a square crop around the last seen target at (close to) full resolution
+//the results of both land in the tracker in frame coordinates, which merges them into the same tracks
+//all methods are cheap and synchronized, next() is called from a video stage and onDetections() from
+//the detection thread
+public class RoiScheduler {
+
+    //crop side as a multiple of the target's longer side, room for it to move until the next run
+    private static final float CONTEXT = 4f;
+    //a target not seen for this long is lost, look at the whole frame again
+    private static final long TARGET_TIMEOUT_NANOS = 1500 * 1000000L;
+
+    private final int fullEvery;
+    private final int minCrop;      //smallest crop side in pixels, less would only upscale noise
+
+    //last seen target, relative to the frame
+    private final float[] target = new float[4];
+    private boolean hasTarget;
+    private long targetTime;
+
+    private int runs;
+
+    //stats
+    private long fullRuns;
+    private long cropRuns;
+
+    //full frame every fullEvery runs, crops at least minCrop pixels wide (the network input is a good pick)
+    public RoiScheduler(int fullEvery, int minCrop) {
+        this.fullEvery = Math.max(1, fullEvery);
+        this.minCrop = minCrop;
+    }
+
+    //region of the next run in pixels (x, y, width, height), false when it is the whole frame
+    public synchronized boolean next(long frameTime, int cols, int rows, int[] rect) {
+        if (hasTarget && frameTime - targetTime > TARGET_TIMEOUT_NANOS) {
+            hasTarget = false;
+        }
+
+        int run = runs++;
+        if (!hasTarget || run % fullEvery == 0) {
+            return full(cols, rows, rect);
+        }
+
+        float centerX = (target[0] + target[2]) / 2 * cols;
+        float centerY = (target[1] + target[3]) / 2 * rows;
+        float size = Math.max((target[2] - target[0]) * cols, (target[3] - target[1]) * rows);
+
+        //a target this big is found in the whole frame anyway
+        int limit = Math.min(cols, rows);
+        int side = Math.max(minCrop, Math.round(size * CONTEXT));
+        if (side >= limit) {
+            return full(cols, rows, rect);
+        }
+
+        //centered on the target, pushed back inside the frame at the edges
+        rect[0] = Math.max(0, Math.min(cols - side, Math.round(centerX - side / 2f)));
+        rect[1] = Math.max(0, Math.min(rows - side, Math.round(centerY - side / 2f)));
+        rect[2] = side;
+        rect[3] = side;
+        cropRuns++;
+        return true;
+    }
+
+    private boolean full(int cols, int rows, int[] rect) {
+        rect[0] = 0;
+        rect[1] = 0;
+        rect[2] = cols;
+        rect[3] = rows;
+        fullRuns++;
+        return false;
+    }
+
+    //results of a run, in frame coordinates: the target is the detection nearest to where it was,
+    //or the most certain one when nothing is followed yet
+    public synchronized void onDetections(Detections detections) {
+        int best = -1;
+        float bestValue = 0;
+        for (int i = 0; i < detections.getCount(); i++) {
+            float value;
+            if (hasTarget) {
+                float dx = (detections.left(i) + detections.right(i) - target[0] - target[2]) / 2;
+                float dy = (detections.top(i) + detections.bottom(i) - target[1] - target[3]) / 2;
+                value = -(dx * dx + dy * dy);
+            } else {
+                value = detections.score(i);
+            }
+
+            if (best < 0 || value > bestValue) {
+                best = i;
+                bestValue = value;
+            }
+        }
+
+        if (best < 0) {
+            return;
+        }
+
+        target[0] = detections.left(best);
+        target[1] = detections.top(best);
+        target[2] = detections.right(best);
+        target[3] = detections.bottom(best);
+        targetTime = detections.getFrameTime();
+        hasTarget = true;
+    }
+
+    //forget the target, the next run looks at the whole frame
+    public synchronized void clear() {
+        hasTarget = false;
+        runs = 0;
+    }
+
+    public synchronized boolean hasTarget() {
+        return hasTarget;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RoiScheduler full=" + fullRuns + " crops=" + cropRuns + " target=" + hasTarget;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+
+//where recordings live on disk: one folder per recording, split into segment files plus a manifest
+//a segment is synced to disk and listed in the manifest once it is finished, so a crash loses at most
+//the one being written; the oldest finished segments are deleted to stay under the disk quota
+//root/KLI_<time>/manifest.txt
+//root/KLI_<time>/seg_0000.avi ...
+public class SegmentStore {
+
+    public static final String MANIFEST = "manifest.txt";
+
+    private final File root;
+    private final long quotaBytes;   //most recordings may use in total
+    private final long minFreeBytes; //space always left for everything else on the phone
+
+    private File recording;
+    private int segments;
+
+    //stats
+    private long evicted;
+    private long evictedBytes;
+
+    public SegmentStore(File root, long quotaBytes, long minFreeBytes) {
+        this.root = root;
+        this.quotaBytes = quotaBytes;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    //start a recording folder, segments of the last one are left as they are
+    public synchronized File open(String name) throws IOException {
+        recording = new File(root, name);
+        if (!recording.isDirectory() && !recording.mkdirs()) {
+            throw new IOException("Failed to create " + recording);
+        }
+
+        segments = 0;
+        append(recording, "recording " + name + " started " + System.currentTimeMillis());
+        return recording;
+    }
+
+    //file for the next segment of the open recording
+    public synchronized File nextSegment() {
+        return new File(recording, String.format(Locale.US, "seg_%04d.avi", segments++));
+    }
+
+    //a segment was closed, make it durable, list it and make room for the next one
+    public synchronized void finish(File segment, long startMillis, long durationMillis, long frames) throws IOException {
+        sync(segment);
+
+        append(segment.getParentFile(), segment.getName() + " start=" + startMillis + " duration=" + durationMillis
+                + " frames=" + frames + " bytes=" + segment.length());
+
+        evict(segment);
+    }
+
+    //delete the oldest segments of any recording until usage fits, never the one just finished
+    private void evict(File keep) throws IOException {
+        ArrayList<File> files = segments();
+        long used = 0;
+        for (File file : files) {
+            used += file.length();
+        }
+
+        long limit = Math.min(quotaBytes, used + root.getUsableSpace() - minFreeBytes);
+
+        Collections.sort(files, (a, b) -> {
+            int order = Long.compare(a.lastModified(), b.lastModified());
+            return order != 0 ? order : a.getPath().compareTo(b.getPath());
+        });
+
+        for (File file : files) {
+            if (used <= limit) {
+                break;
+            }
+            if (file.equals(keep)) {
+                continue;
+            }
+
+            long length = file.length();
+            if (file.delete()) {
+                used -= length;
+                evicted++;
+                evictedBytes += length;
+
+                File folder = file.getParentFile();
+                if (!folder.equals(root)) {
+                    append(folder, "evicted " + file.getName() + " " + System.currentTimeMillis());
+                    removeIfEmpty(folder);
+                }
+            }
+        }
+    }
+
+    //every video file under root, segments in recording folders and old single file recordings
+    private ArrayList<File> segments() {
+        ArrayList<File> files = new ArrayList<>();
+
+        File[] entries = root.listFiles();
+        if (entries == null) {
+            return files;
+        }
+
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                File[] inner = entry.listFiles();
+                if (inner != null) {
+                    for (File file : inner) {
+                        if (file.getName().endsWith(".avi")) {
+                            files.add(file);
+                        }
+                    }
+                }
+            } else if (entry.getName().endsWith(".avi")) {
+                files.add(entry);
+            }
+        }
+
+        return files;
+    }
+
+    //a folder left with only its manifest is gone for good, unless it is being recorded into
+    private void removeIfEmpty(File folder) {
+        if (folder.equals(recording)) {
+            return;
+        }
+
+        File[] inner = folder.listFiles();
+        if (inner != null && inner.length == 1 && inner[0].getName().equals(MANIFEST)) {
+            inner[0].delete();
+            folder.delete();
+        }
+    }
+
+    private static void append(File folder, String line) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(folder, MANIFEST), true)) {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    //flush a closed file's data to the storage device
+    private static void sync(File file) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.getFD().sync();
+        }
+    }
+
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentStore root=" + root + " quota=" + quotaBytes / (1024 * 1024) + "MB evicted="
+                + evicted + " (" + evictedBytes / (1024 * 1024) + "MB)";
+    }
+}
@@ -0,0 +1,517 @@
+package com.example.my_opencv;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.KalmanFilter;
+import org.opencv.video.Video;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+//follows detected objects between detection runs so boxes move every frame, not every few hundred ms
+//each track has an id and a kalman filter on its box (center, size and velocity of the center),
+//every frame the filter predicts where the box went and, with optical flow on, feature points
+//inside the box are followed with lucas-kanade into a measurement of how far it moved
+//new detections are matched to tracks by overlap, matched tracks are corrected and get their
+//confidence back, unmatched detections start new tracks and unseen tracks fade out
+//all tracking happens on the thread calling onFrame, detections may come from any thread
+public class Tracker {
+
+    //a detection and a track this much overlapped are the same object
+    private static final float MATCH_IOU = 0.3f;
+    //confidence of an unseen track is multiplied by this every second, it is dropped below the minimum
+    private static final double DECAY_PER_SECOND = 0.5;
+    private static final float MIN_CONFIDENCE = 0.2f;
+    private static final int MAX_TRACKS = 16;
+    private static final int MAX_DETECTIONS = 64;
+
+    //a gap this long in the video (e.g. a reconnect) and nothing we were following is where it was
+    private static final long RESET_NANOS = 1000 * 1000000L;
+
+    //optical flow runs on a small gray copy of the frame
+    private static final int FLOW_WIDTH = 320;
+    private static final int MAX_POINTS = 20;
+    private static final int MIN_POINTS = 5;
+
+    //kalman noise, boxes are relative to the frame (0..1) and speeds per second
+    private static final float POSITION_NOISE = 1e-4f;
+    private static final float VELOCITY_NOISE = 1e-2f;
+    private static final float DETECTION_NOISE = 1e-4f;
+    private static final float FLOW_NOISE = 4e-4f;
+
+    private static class Track {
+        int id;
+        int classId;
+        float score;
+        float confidence;
+        final float[] box = new float[4];    //left, top, right, bottom
+        final float[] previous = new float[4]; //box on the last frame, where the flow starts from
+        final float[] state = new float[6];  //cx, cy, w, h, vx, vy
+        KalmanFilter filter;
+        MatOfPoint2f points;                 //features in flow image pixels
+    }
+
+    private final boolean opticalFlow;
+    //detections are copied in on the detection thread and taken out on the next frame
+    private final Detections pending;
+    private final Detections incoming;
+    private boolean hasPending;
+    //tracks are handed out in these in turn, the one returned stays as it is until the call after next
+    private final Detections[] published;
+    private int nextPublished;
+    private final ArrayList<Track> tracks;
+    private int nextId;
+    private long lastTime;
+
+    //kalman matrices shared by all tracks, the filters reference them
+    private Mat transition;
+    private Mat measurementMatrix;
+    private Mat processNoise;
+    private Mat detectionNoise;
+    private Mat flowNoise;
+    private Mat measurement;
+    private final float[] measured;
+
+    //optical flow buffers
+    private Mat small;
+    private Mat gray;
+    private Mat prevGray;
+    private Size flowSize;
+    private MatOfPoint2f nextPoints;
+    private MatOfByte status;
+    private MatOfFloat error;
+    private MatOfPoint corners;
+    private float[] pointsBuffer;
+    private int[] cornerBuffer;
+    private float[] nextBuffer;
+    private byte[] statusBuffer;
+    private float[] dx;
+    private float[] dy;
+
+    //matching buffers
+    private final float[] trackBoxes;
+    private final float[] detectionBoxes;
+    private int[] assignment;
+
+    //stats
+    private long frames;
+    private long trackNanos;
+    private long created;
+    private long lost;
+
+    public Tracker(boolean opticalFlow) {
+        this.opticalFlow = opticalFlow;
+        pending = new Detections(MAX_DETECTIONS);
+        incoming = new Detections(MAX_DETECTIONS);
+        hasPending = false;
+        published = new Detections[]{new Detections(MAX_TRACKS), new Detections(MAX_TRACKS)};
+        tracks = new ArrayList<>();
+        nextId = 1;
+        lastTime = 0;
+        measured = new float[4];
+        trackBoxes = new float[MAX_TRACKS * 4];
+        detectionBoxes = new float[MAX_DETECTIONS * 4];
+        assignment = new int[MAX_DETECTIONS];
+    }
+
+    //newest detections, from the detection thread, copied since the detector reuses its buffer
+    public void onDetections(Detections next) {
+        synchronized (pending) {
+            pending.copyFrom(next);
+            hasPending = true;
+        }
+    }
+
+    //move every track to this frame and take in new detections, returns the tracks as boxes with ids
+    public Detections onFrame(Frame frame) {
+        long start = System.nanoTime();
+        long now = frame.getReceived();
+
+        if (transition == null) {
+            init();
+        }
+
+        if (lastTime != 0 && now - lastTime > RESET_NANOS) {
+            clear();
+        }
+        float dt = lastTime == 0 ? 0 : (now - lastTime) / 1e9f;
+        lastTime = now;
+
+        predict(dt);
+
+        if (opticalFlow && frame.getMat() != null) {
+            flow(frame.getMat());
+        }
+
+        decay(dt);
+
+        boolean detected;
+        synchronized (pending) {
+            detected = hasPending;
+            if (hasPending) {
+                incoming.copyFrom(pending);
+                hasPending = false;
+            }
+        }
+        if (detected) {
+            associate(incoming, now);
+        }
+
+        frames++;
+        trackNanos += System.nanoTime() - start;
+        return publish(now);
+    }
+
+    private void init() {
+        //constant velocity: center += velocity * dt, dt is filled in per frame
+        transition = Mat.eye(6, 6, CvType.CV_32F);
+        measurementMatrix = Mat.eye(4, 6, CvType.CV_32F);
+
+        processNoise = diagonal(6, POSITION_NOISE);
+        processNoise.put(4, 4, VELOCITY_NOISE);
+        processNoise.put(5, 5, VELOCITY_NOISE);
+
+        detectionNoise = diagonal(4, DETECTION_NOISE);
+        flowNoise = diagonal(4, FLOW_NOISE);
+
+        measurement = new Mat(4, 1, CvType.CV_32F);
+
+        if (opticalFlow) {
+            small = new Mat();
+            gray = new Mat();
+            prevGray = new Mat();
+            flowSize = new Size();
+            nextPoints = new MatOfPoint2f();
+            status = new MatOfByte();
+            error = new MatOfFloat();
+            corners = new MatOfPoint();
+            pointsBuffer = new float[MAX_POINTS * 2];
+            cornerBuffer = new int[MAX_POINTS * 2];
+            nextBuffer = new float[MAX_POINTS * 2];
+            statusBuffer = new byte[MAX_POINTS];
+            dx = new float[MAX_POINTS];
+            dy = new float[MAX_POINTS];
+        }
+    }
+
+    private static Mat diagonal(int size, float value) {
+        Mat mat = Mat.zeros(size, size, CvType.CV_32F);
+        for (int x = 0; x < size; x++) {
+            mat.put(x, x, value);
+        }
+        return mat;
+    }
+
+    private void predict(float dt) {
+        transition.put(0, 4, dt);
+        transition.put(1, 5, dt);
+
+        for (Track track : tracks) {
+            System.arraycopy(track.box, 0, track.previous, 0, 4);
+            track.filter.predict().get(0, 0, track.state);
+            toBox(track);
+        }
+    }
+
+    //follow each track's feature points into this frame and correct the track by their median move
+    private void flow(Mat frame) {
+        int height = Math.max(1, frame.rows() * FLOW_WIDTH / Math.max(1, frame.cols()));
+        flowSize.width = FLOW_WIDTH;
+        flowSize.height = height;
+
+        Imgproc.resize(frame, small, flowSize);
+        Imgproc.cvtColor(small, gray, Imgproc.COLOR_BGR2GRAY);
+
+        boolean comparable = prevGray.rows() == gray.rows() && prevGray.cols() == gray.cols();
+
+        for (Track track : tracks) {
+            int count = comparable ? (int) track.points.total() : 0;
+            if (count == 0) {
+                seed(track, gray);
+                continue;
+            }
+
+            Video.calcOpticalFlowPyrLK(prevGray, gray, track.points, nextPoints, status, error);
+            track.points.get(0, 0, pointsBuffer);
+            nextPoints.get(0, 0, nextBuffer);
+            status.get(0, 0, statusBuffer);
+
+            //points that were followed, the median move ignores the odd one that jumped elsewhere
+            int good = 0;
+            for (int x = 0; x < count; x++) {
+                if (statusBuffer[x] != 0) {
+                    dx[good] = nextBuffer[x * 2] - pointsBuffer[x * 2];
+                    dy[good] = nextBuffer[x * 2 + 1] - pointsBuffer[x * 2 + 1];
+                    nextBuffer[good * 2] = nextBuffer[x * 2];
+                    nextBuffer[good * 2 + 1] = nextBuffer[x * 2 + 1];
+                    good++;
+                }
+            }
+
+            if (good < MIN_POINTS) {
+                seed(track, gray);
+                continue;
+            }
+
+            float moveX = median(dx, good) / FLOW_WIDTH;
+            float moveY = median(dy, good) / height;
+
+            //the flow moves the box from where it was, the size is left to the detections
+            measured[0] = (track.previous[0] + track.previous[2]) / 2 + moveX;
+            measured[1] = (track.previous[1] + track.previous[3]) / 2 + moveY;
+            measured[2] = track.previous[2] - track.previous[0];
+            measured[3] = track.previous[3] - track.previous[1];
+            correct(track, flowNoise);
+
+            //put only fills as much as the mat holds
+            track.points.create(good, 1, CvType.CV_32FC2);
+            track.points.put(0, 0, nextBuffer);
+        }
+
+        Mat swap = prevGray;
+        prevGray = gray;
+        gray = swap;
+    }
+
+    //pick fresh corners inside the track's box
+    private void seed(Track track, Mat image) {
+        int left = clamp((int) (track.box[0] * image.cols()), 0, image.cols() - 1);
+        int top = clamp((int) (track.box[1] * image.rows()), 0, image.rows() - 1);
+        int right = clamp((int) (track.box[2] * image.cols()), left + 1, image.cols());
+        int bottom = clamp((int) (track.box[3] * image.rows()), top + 1, image.rows());
+
+        Mat roi = image.submat(new Rect(left, top, right - left, bottom - top));
+        Imgproc.goodFeaturesToTrack(roi, corners, MAX_POINTS, 0.01, 3);
+        roi.release();
+
+        int count = (int) corners.total();
+        track.points.create(count, 1, CvType.CV_32FC2);
+        if (count == 0) {
+            return;
+        }
+
+        corners.get(0, 0, cornerBuffer);
+        for (int x = 0; x < count; x++) {
+            pointsBuffer[x * 2] = cornerBuffer[x * 2] + left;
+            pointsBuffer[x * 2 + 1] = cornerBuffer[x * 2 + 1] + top;
+        }
+        track.points.put(0, 0, pointsBuffer);
+    }
+
+    private void decay(float dt) {
+        float factor = (float) Math.pow(DECAY_PER_SECOND, dt);
+
+        for (int x = tracks.size() - 1; x >= 0; x--) {
+            Track track = tracks.get(x);
+            track.confidence *= factor;
+            if (track.confidence < MIN_CONFIDENCE) {
+                remove(x);
+                lost++;
+            }
+        }
+    }
+
+    //match detections to tracks, the detections are from a frame a while back so they are moved
+    //along with the track's speed before comparing
+    private void associate(Detections next, long now) {
+        float age = Math.max(0, (now - next.getFrameTime()) / 1e9f);
+
+        int count = next.getCount();
+        System.arraycopy(next.getBoxes(), 0, detectionBoxes, 0, count * 4);
+
+        for (int t = 0; t < tracks.size(); t++) {
+            System.arraycopy(tracks.get(t).box, 0, trackBoxes, t * 4, 4);
+        }
+
+        match(trackBoxes, tracks.size(), detectionBoxes, count, MATCH_IOU, assignment);
+
+        int existing = tracks.size();
+        for (int d = 0; d < count; d++) {
+            int t = assignment[d];
+
+            if (t >= 0) {
+                Track track = tracks.get(t);
+                float vx = track.state[4] * age;
+                float vy = track.state[5] * age;
+
+                measured[0] = (next.left(d) + next.right(d)) / 2 + vx;
+                measured[1] = (next.top(d) + next.bottom(d)) / 2 + vy;
+                measured[2] = next.right(d) - next.left(d);
+                measured[3] = next.bottom(d) - next.top(d);
+                correct(track, detectionNoise);
+
+                track.classId = next.classId(d);
+                track.score = next.score(d);
+                track.confidence = next.score(d);
+
+                //the box may have jumped, the old points belong to wherever it was
+                if (opticalFlow) {
+                    track.points.create(0, 1, CvType.CV_32FC2);
+                }
+
+            } else if (tracks.size() < MAX_TRACKS) {
+                tracks.add(create(next, d));
+            }
+        }
+
+        //tracks made this round start with no velocity, so nothing to move
+        for (int t = existing; t < tracks.size(); t++) {
+            toBox(tracks.get(t));
+        }
+    }
+
+    private Track create(Detections next, int d) {
+        Track track = new Track();
+        track.id = nextId++;
+        track.classId = next.classId(d);
+        track.score = next.score(d);
+        track.confidence = next.score(d);
+
+        track.state[0] = (next.left(d) + next.right(d)) / 2;
+        track.state[1] = (next.top(d) + next.bottom(d)) / 2;
+        track.state[2] = next.right(d) - next.left(d);
+        track.state[3] = next.bottom(d) - next.top(d);
+
+        track.filter = new KalmanFilter(6, 4, 0, CvType.CV_32F);
+        track.filter.set_transitionMatrix(transition);
+        track.filter.set_measurementMatrix(measurementMatrix);
+        track.filter.set_processNoiseCov(processNoise);
+        track.filter.set_measurementNoiseCov(detectionNoise);
+
+        Mat state = new Mat(6, 1, CvType.CV_32F);
+        state.put(0, 0, track.state);
+        track.filter.set_statePost(state);
+        Mat error = Mat.eye(6, 6, CvType.CV_32F);
+        track.filter.set_errorCovPost(error);
+
+        if (opticalFlow) {
+            track.points = new MatOfPoint2f();
+        }
+
+        created++;
+        return track;
+    }
+
+    private void correct(Track track, Mat noise) {
+        measurement.put(0, 0, measured);
+        track.filter.set_measurementNoiseCov(noise);
+        track.filter.correct(measurement).get(0, 0, track.state);
+        toBox(track);
+    }
+
+    private static void toBox(Track track) {
+        float halfWidth = Math.max(0, track.state[2]) / 2;
+        float halfHeight = Math.max(0, track.state[3]) / 2;
+        track.box[0] = track.state[0] - halfWidth;
+        track.box[1] = track.state[1] - halfHeight;
+        track.box[2] = track.state[0] + halfWidth;
+        track.box[3] = track.state[1] + halfHeight;
+    }
+
+    private Detections publish(long now) {
+        Detections result = published[nextPublished];
+        nextPublished ^= 1;
+        result.clear(now, true);
+
+        for (Track track : tracks) {
+            result.add(track.classId, track.confidence, track.box[0], track.box[1], track.box[2], track.box[3],
+                    track.id);
+        }
+        return result;
+    }
+
+    private void remove(int index) {
+        Track track = tracks.remove(index);
+        if (track.points != null) {
+            track.points.release();
+        }
+    }
+
+    //forget everything being followed, ids keep counting up
+    public void clear() {
+        for (int x = tracks.size() - 1; x >= 0; x--) {
+            remove(x);
+        }
+        lastTime = 0;
+    }
+
+    //greedy matching, the most overlapping detection and track pair is taken first
+    //assignment[d] is the track of detection d, or -1 if it is a new object
+    static void match(float[] trackBoxes, int trackCount, float[] detectionBoxes, int detectionCount,
+                      float minIou, int[] assignment) {
+        Arrays.fill(assignment, 0, detectionCount, -1);
+        long taken = 0; //bit per track, there are never more than 64
+
+        while (true) {
+            float best = minIou;
+            int bestTrack = -1;
+            int bestDetection = -1;
+
+            for (int d = 0; d < detectionCount; d++) {
+                if (assignment[d] >= 0) {
+                    continue;
+                }
+                for (int t = 0; t < trackCount; t++) {
+                    if ((taken & (1L << t)) != 0) {
+                        continue;
+                    }
+                    float overlap = iou(trackBoxes, t, detectionBoxes, d);
+                    if (overlap >= best) {
+                        best = overlap;
+                        bestTrack = t;
+                        bestDetection = d;
+                    }
+                }
+            }
+
+            if (bestTrack < 0) {
+                return;
+            }
+            assignment[bestDetection] = bestTrack;
+            taken |= 1L << bestTrack;
+        }
+    }
+
+    //intersection over union of box i in a and box j in b
+    static float iou(float[] a, int i, float[] b, int j) {
+        float left = Math.max(a[i * 4], b[j * 4]);
+        float top = Math.max(a[i * 4 + 1], b[j * 4 + 1]);
+        float right = Math.min(a[i * 4 + 2], b[j * 4 + 2]);
+        float bottom = Math.min(a[i * 4 + 3], b[j * 4 + 3]);
+
+        float intersection = Math.max(0, right - left) * Math.max(0, bottom - top);
+        float areaA = (a[i * 4 + 2] - a[i * 4]) * (a[i * 4 + 3] - a[i * 4 + 1]);
+        float areaB = (b[j * 4 + 2] - b[j * 4]) * (b[j * 4 + 3] - b[j * 4 + 1]);
+        float union = areaA + areaB - intersection;
+
+        return union <= 0 ? 0 : intersection / union;
+    }
+
+    //median of the first count values, reorders them
+    static float median(float[] values, int count) {
+        Arrays.sort(values, 0, count);
+        return count % 2 == 1 ? values[count / 2] : (values[count / 2 - 1] + values[count / 2]) / 2;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    @Override
+    public String toString() {
+        long average = frames == 0 ? 0 : trackNanos / frames / 1000;
+        return "Tracker tracks=" + tracks.size() + " created=" + created + " lost=" + lost
+                + " frames=" + frames + " avg=" + average + "us flow=" + opticalFlow;
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.my_opencv;
+
+//watches how the video stream arrives and asks the drone for a lighter stream when the link or
+//the phone can't keep up, then steps back up once things have been stable for a while
+public class VideoController {
+
+    //where quality hints go, normally the nav link
+    public interface HintSink {
+        void onHint(int quality, double scale, int fps);
+    }
+
+    //stream settings from best to lightest: jpeg quality, resolution scale, fps
+    private static final int[] QUALITY = {90, 75, 60, 60, 50, 50, 40};
+    private static final double[] SCALE = {1.0, 1.0, 1.0, 0.75, 0.75, 0.5, 0.5};
+    private static final int[] FPS = {30, 30, 30, 30, 25, 20, 15};
+
+    //stable windows needed before stepping back up
+    private static final int STABLE_WINDOWS = 3;
+
+    private final long windowNanos;
+    private final double jitterLimitMs;
+    private HintSink sink;
+
+    private int level;
+    private boolean holdOff;   //skip the window right after a change, the drone needs time to apply it
+    private int stableWindows;
+
+    //window counters
+    private long windowStart;
+    private int windowFrames;
+    private long windowBytes;
+
+    //running stats
+    private long lastArrival;
+    private double interArrivalMs;
+    private double jitterMs;
+    private double decodeMs;
+    private double throughput; //bytes per second over the last window
+    private double fps;        //frames per second over the last window
+    private double ceiling;    //throughput seen when the link last got congested, 0 if never
+
+    public VideoController(long windowMs, double jitterLimitMs) {
+        this.windowNanos = windowMs * 1000000L;
+        this.jitterLimitMs = jitterLimitMs;
+        reset();
+    }
+
+    public synchronized void setHintSink(HintSink sink) {
+        this.sink = sink;
+    }
+
+    //new connection, start over from the best settings
+    public synchronized void reset() {
+        level = 0;
+        holdOff = false;
+        stableWindows = 0;
+        windowStart = 0;
+        windowFrames = 0;
+        windowBytes = 0;
+        lastArrival = 0;
+        interArrivalMs = 0;
+        jitterMs = 0;
+        decodeMs = 0;
+        throughput = 0;
+        fps = 0;
+        ceiling = 0;
+    }
+
+    //a whole frame arrived at arrivalNanos (System.nanoTime)
+    public synchronized void onArrival(long arrivalNanos, int bytes) {
+
+        if (lastArrival != 0) {
+            double gapMs = (arrivalNanos - lastArrival) / 1e6;
+
+            //rfc 3550 style jitter, smoothed deviation of the inter arrival time
+            if (interArrivalMs > 0) {
+                jitterMs += (Math.abs(gapMs - interArrivalMs) - jitterMs) / 16;
+            }
+            interArrivalMs = interArrivalMs == 0 ? gapMs : interArrivalMs + (gapMs - interArrivalMs) / 8;
+        }
+        lastArrival = arrivalNanos;
+
+        if (windowStart == 0) {
+            windowStart = arrivalNanos;
+        }
+
+        windowFrames++;
+        windowBytes += bytes;
+
+        long elapsed = arrivalNanos - windowStart;
+        if (elapsed >= windowNanos) {
+            fps = windowFrames / (elapsed / 1e9);
+            throughput = windowBytes / (elapsed / 1e9);
+            evaluate();
+
+            windowStart = arrivalNanos;
+            windowFrames = 0;
+            windowBytes = 0;
+        }
+    }
+
+    //time one frame took to decode
+    public synchronized void onDecoded(long decodeNanos) {
+        double ms = decodeNanos / 1e6;
+        decodeMs = decodeMs == 0 ? ms : decodeMs + (ms - decodeMs) / 8;
+    }
+
+    private void evaluate() {
+        if (holdOff) {
+            holdOff = false;
+            return;
+        }
+
+        double frameMs = 1000.0 / FPS[level];
+
+        //link can't carry the requested rate, arrivals are uneven, or decoding can't keep up
+        boolean congested = fps < FPS[level] * 0.85
+                || jitterMs > jitterLimitMs
+                || decodeMs > frameMs * 0.8;
+
+        if (congested) {
+            stableWindows = 0;
+            ceiling = throughput;
+
+            //jump straight to the first setting the measured throughput can carry
+            int next = Math.min(level + 1, QUALITY.length - 1);
+            while (next < QUALITY.length - 1 && rate(next) > throughput * 0.85) {
+                next++;
+            }
+
+            if (next != level) {
+                change(next);
+            }
+
+        } else if (++stableWindows >= STABLE_WINDOWS && level > 0) {
+            stableWindows = 0;
+
+            //probe up only when the next setting fits under the last congestion point,
+            //which is raised a little every stable round so the link gets retried eventually
+            if (ceiling == 0 || rate(level - 1) <= ceiling * 0.85) {
+                change(level - 1);
+            } else {
+                ceiling *= 1.1;
+            }
+        }
+    }
+
+    //bytes per second a setting would need, scaled from the current frame size by quality and pixel count
+    private double rate(int candidate) {
+        if (fps <= 0) {
+            return 0;
+        }
+
+        double bytesPerFrame = throughput / fps;
+        double weight = QUALITY[candidate] * SCALE[candidate] * SCALE[candidate]
+                / (QUALITY[level] * SCALE[level] * SCALE[level]);
+        return bytesPerFrame * weight * FPS[candidate];
+    }
+
+    private void change(int next) {
+        level = next;
+        holdOff = true;
+
+        if (sink != null) {
+            sink.onHint(QUALITY[level], SCALE[level], FPS[level]);
+        }
+    }
+
+    public synchronized int getLevel() {
+        return level;
+    }
+
+    public synchronized int getQuality() {
+        return QUALITY[level];
+    }
+
+    public synchronized double getScale() {
+        return SCALE[level];
+    }
+
+    public synchronized int getFps() {
+        return FPS[level];
+    }
+
+    public synchronized double getJitterMs() {
+        return jitterMs;
+    }
+
+    public synchronized double getDecodeMs() {
+        return decodeMs;
+    }
+
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    public synchronized double getMeasuredFps() {
+        return fps;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "VideoController level=" + level + " q=" + QUALITY[level] + " scale=" + SCALE[level]
+                + " fps=" + (int) fps + "/" + FPS[level] + " kBps=" + (int) (throughput / 1024)
+                + " jitter=" + (int) jitterMs + "ms decode=" + (int) decodeMs + "ms";
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.my_opencv;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+//receive -> decode -> process/record -> render, each stage on its own thread
+//stages are joined by single slot handoffs so a slow stage drops old frames instead of adding latency
+public class VideoPipeline {
+
+    //what a stage does with a frame, the frame goes back to the pool after the last stage
+    public interface FrameHandler {
+        void onFrame(Frame frame);
+    }
+
+    private final FramePool pool;
+    private final FrameHandler processor;
+    private final FrameHandler renderer;
+
+    private final LatestSlot<Frame> received;
+    private final LatestSlot<Frame> decoded;
+    private final LatestSlot<Frame> processed;
+
+    private Thread decodeThread;
+    private Thread processThread;
+    private Thread renderThread;
+    private volatile boolean running;
+    private final AtomicInteger live;      //stage threads not finished yet
+    private volatile Runnable onStopped;
+
+    public VideoPipeline(FramePool pool, FrameHandler processor, FrameHandler renderer) {
+        this.pool = pool;
+        this.processor = processor;
+        this.renderer = renderer;
+        received = new LatestSlot<>();
+        decoded = new LatestSlot<>();
+        processed = new LatestSlot<>();
+        live = new AtomicInteger();
+        running = false;
+    }
+
+    public void start() {
+        running = true;
+        live.set(3);
+
+        decodeThread = new Thread(() -> {
+            try {
+                run(received, this::decode);
+            } finally {
+                exited();
+            }
+        }, "video-decode");
+
+        processThread = new Thread(() -> {
+            try {
+                run(decoded, this::process);
+            } finally {
+                exited();
+            }
+        }, "video-process");
+
+        renderThread = new Thread(() -> {
+            try {
+                run(processed, this::render);
+            } finally {
+                exited();
+            }
+        }, "video-render");
+
+        decodeThread.start();
+        processThread.start();
+        renderThread.start();
+    }
+
+    //take frames from a slot until the pipeline stops
+    private void run(LatestSlot<Frame> slot, FrameHandler stage) {
+        while (running) {
+            Frame frame = next(slot);
+            if (frame == null) {
+                break;
+            }
+            stage.onFrame(frame);
+        }
+    }
+
+    private void decode(Frame frame) {
+        long start = System.nanoTime();
+        pool.decode(frame);
+        frame.decoded = System.nanoTime();
+        frame.decodeNanos = frame.decoded - start;
+
+        //skip frames that failed to decode
+        if (frame.mat == null || frame.mat.empty()) {
+            pool.release(frame);
+            return;
+        }
+
+        pool.release(decoded.offer(frame));
+    }
+
+    private void process(Frame frame) {
+        processor.onFrame(frame);
+        frame.processed = System.nanoTime();
+        pool.release(processed.offer(frame));
+    }
+
+    private void render(Frame frame) {
+        renderer.onFrame(frame);
+        pool.release(frame);
+    }
+
+    //the last stage to finish gives back any frame still waiting in a slot
+    private void exited() {
+        if (live.decrementAndGet() == 0) {
+            pool.release(received.poll());
+            pool.release(decoded.poll());
+            pool.release(processed.poll());
+
+            Runnable done = onStopped;
+            if (done != null) {
+                done.run();
+            }
+        }
+    }
+
+    //hand a freshly received frame to the decode stage, never blocks the socket thread
+    public void submit(Frame frame) {
+        pool.release(received.offer(frame));
+    }
+
+    //hand a frame that was already decoded elsewhere (hardware codec) straight to the process stage
+    public void submitDecoded(Frame frame) {
+        frame.decoded = System.nanoTime();
+        pool.release(decoded.offer(frame));
+    }
+
+    //stop all stages without waiting for them, safe to call from the transport thread
+    public void stop() {
+        stop(null);
+    }
+
+    //same, onStopped runs on the last stage thread once all of them are done and the slots are emptied
+    public void stop(Runnable onStopped) {
+        this.onStopped = onStopped;
+        running = false;
+
+        for (Thread thread : new Thread[]{decodeThread, processThread, renderThread}) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    //wait for the next frame of a stage, null when the pipeline is stopping
+    private static Frame next(LatestSlot<Frame> slot) {
+        try {
+            return slot.take();
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    //frames in and dropped before each stage, as video.*, registered again by each new pipeline
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("video.received", received::getOffered);
+        metrics.gauge("video.drops.decode", this::getDecodeDrops);
+        metrics.gauge("video.drops.process", this::getProcessDrops);
+        metrics.gauge("video.drops.render", this::getRenderDrops);
+    }
+
+    public long getDecodeDrops() {
+        return received.getDrops();
+    }
+
+    public long getProcessDrops() {
+        return decoded.getDrops();
+    }
+
+    public long getRenderDrops() {
+        return processed.getDrops();
+    }
+
+    @Override
+    public String toString() {
+        return "VideoPipeline received=" + received.getOffered()
+                + " drops decode=" + getDecodeDrops()
+                + " process=" + getProcessDrops()
+                + " render=" + getRenderDrops();
+    }
+}
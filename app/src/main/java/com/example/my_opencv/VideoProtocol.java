@@ -0,0 +1,59 @@
+package com.example.my_opencv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//video link negotiation, the app says which codecs it can decode and the drone picks one
+//hello layout both ways, big endian: magic(4) version(1) codecs(1)
+//app to drone codecs is a bit mask, drone to app it is the chosen codec
+//servers older than v7 never answer and just start streaming jpeg packets, whose size header
+//can't equal the magic since that would be a frame over MAX_FRAME_SIZE
+//FLAG_TIMESTAMPS rides along in the codec byte: offered by the app, echoed by a drone that stamps its jpegs,
+//then every packet is int size, capture time(8), send time(8), jpeg, the times in microseconds on the
+//drone's clock; v7 servers ignore the bit and never echo it
+public class VideoProtocol {
+
+    public static final int MAGIC = NavProtocol.MAGIC;
+    public static final byte VERSION = 1;
+    public static final int HELLO_SIZE = 6;
+
+    //codecs
+    public static final byte CODEC_MJPEG = 1; //int size + jpeg per frame
+    public static final byte CODEC_H264 = 2;  //annex-b elementary stream
+    public static final byte FLAG_TIMESTAMPS = 0x40;
+
+    //what the timestamps add to an mjpeg packet header
+    public static final int TIMESTAMPS_SIZE = 16;
+
+    private VideoProtocol() {
+    }
+
+    //hello offering the given codec mask
+    public static byte[] hello(int codecs) {
+        ByteBuffer buffer = ByteBuffer.allocate(HELLO_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) codecs);
+        return buffer.array();
+    }
+
+    //codec picked by the drone from the two bytes after the magic
+    public static byte chosen(ByteBuffer reply) throws IOException {
+        byte version = reply.get(0);
+        byte codec = (byte) (reply.get(1) & ~FLAG_TIMESTAMPS);
+
+        if (version != VERSION || (codec != CODEC_MJPEG && codec != CODEC_H264)) {
+            throw new IOException("Bad video hello: version " + version + " codec " + codec);
+        }
+        return codec;
+    }
+
+    //whether the drone stamps its jpeg packets, from the same two bytes
+    public static boolean timestamped(ByteBuffer reply) {
+        return (reply.get(1) & FLAG_TIMESTAMPS) != 0;
+    }
+
+    public static String name(byte codec) {
+        return codec == CODEC_H264 ? "h264" : "mjpeg";
+    }
+}
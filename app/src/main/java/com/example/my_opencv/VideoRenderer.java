@@ -0,0 +1,362 @@
+package com.example.my_opencv;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.SurfaceHolder;
+
+//draws the live feed on a SurfaceView from its own thread, the main thread is never in the per frame path
+//frames come in as pooled bitmaps from the FrameConverter, only the newest one is drawn,
+//and a meter in the corner shows fps plus frames dropped before drawing or drawn late
+//detection boxes published by the DetectionStage are drawn over whichever frame is newest
+//with LatencyStats set, every drawn frame is recorded there and a second line shows p50/p99 per stage
+public class VideoRenderer implements SurfaceHolder.Callback, Runnable {
+
+    //a frame drawn this long after it arrived counts as late
+    private static final long LATE_NANOS = 100 * 1000000L;
+    private static final long METER_NANOS = 1000 * 1000000L;
+    //boxes from a frame this much older than the one drawn are too far off to show
+    private static final long STALE_DETECTIONS_NANOS = 1000 * 1000000L;
+
+    //bitmap waiting to be drawn and when its frame went through each step, the frame is recycled by then
+    private static class Pending {
+        final Bitmap bitmap;
+        final long captured;
+        final long sent;
+        final long received;
+        final long decoded;
+        final long processed;
+
+        Pending(Bitmap bitmap, Frame frame) {
+            this.bitmap = bitmap;
+            captured = frame.getCaptured();
+            sent = frame.getSent();
+            received = frame.getReceived();
+            decoded = frame.getDecoded();
+            processed = frame.getProcessed();
+        }
+    }
+
+    //most boxes drawn over a frame
+    private static final int MAX_BOXES = 64;
+
+    //boxes with their labels written once when published, not per drawn frame
+    private static class Overlay {
+        final Detections detections = new Detections(MAX_BOXES);
+        final char[][] labels = new char[MAX_BOXES][AI.LABEL_LENGTH];
+        final int[] lengths = new int[MAX_BOXES];
+
+        void set(Detections next) {
+            detections.copyFrom(next);
+            for (int i = 0; i < detections.getCount(); i++) {
+                lengths[i] = AI.label(detections, i, labels[i]);
+            }
+        }
+    }
+
+    private final FrameConverter converter;
+    private final LatestSlot<Pending> next;
+    //detections are copied into these in turn, the render thread draws the last one published
+    private final Overlay[] overlays;
+    private int nextOverlay;
+    private volatile Overlay overlay;
+    private volatile LatencyStats latency;
+
+    private final Object surfaceLock;
+    private SurfaceHolder holder; //null while there is no surface to draw on
+
+    private Thread thread;
+    private volatile boolean running;
+
+    //drawing state, render thread only
+    private final Rect source;
+    private final Rect target;
+    private final Paint framePaint;
+    private final Paint meterPaint;
+    private final Paint meterBackground;
+    private final Paint boxPaint;
+    private int surfaceWidth;
+    private int surfaceHeight;
+    private String meter;
+    private String latencyMeter;
+    private long meterStart;
+    private int meterFrames;
+
+    //stats
+    private volatile long drawn;
+    private volatile long late;
+    private volatile long noSurface; //frames that arrived while the feed was off screen
+
+    public VideoRenderer(FrameConverter converter) {
+        this.converter = converter;
+        next = new LatestSlot<>();
+        overlays = new Overlay[]{new Overlay(), new Overlay()};
+        surfaceLock = new Object();
+        holder = null;
+        running = false;
+
+        source = new Rect();
+        target = new Rect();
+        framePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        meterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        meterPaint.setColor(Color.WHITE);
+        meterPaint.setTextSize(32);
+        meterBackground = new Paint();
+        meterBackground.setColor(0x80000000);
+        boxPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        boxPaint.setColor(Color.GREEN);
+        boxPaint.setStyle(Paint.Style.STROKE);
+        boxPaint.setStrokeWidth(3);
+        meter = "";
+        latencyMeter = "";
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(this, "video-display");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+
+        Pending pending = next.poll();
+        if (pending != null) {
+            converter.onShown(pending.bitmap);
+        }
+    }
+
+    //called from the pipeline's render stage, the frame is recycled once this returns
+    public void post(Frame frame) {
+        Bitmap bmp = converter.convert(frame.getMat());
+
+        //null means the last bitmap hasn't been drawn yet, the converter counts it as dropped
+        if (bmp == null) {
+            return;
+        }
+
+        Pending replaced = next.offer(new Pending(bmp, frame));
+        if (replaced != null) {
+            //can't happen while the converter hands out one bitmap at a time, keep the buffers free anyway
+            converter.onShown(replaced.bitmap);
+        }
+    }
+
+    //newest detections, from one thread at a time, drawn until newer ones come or they get stale
+    //they are copied, the caller can refill its buffer once this returns
+    public void setDetections(Detections detections) {
+        if (detections == null) {
+            overlay = null;
+            return;
+        }
+
+        //a new frame's detections come long after the last draw started, so the other one is free
+        Overlay free = overlays[nextOverlay];
+        nextOverlay ^= 1;
+        free.set(detections);
+        overlay = free;
+    }
+
+    //record drawn frames and show their latency, null to stop
+    public void setLatencyStats(LatencyStats latency) {
+        this.latency = latency;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Pending pending;
+            try {
+                pending = next.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            draw(pending);
+
+            //the bitmap is on the surface now, its buffer can be filled again
+            converter.onShown(pending.bitmap);
+        }
+    }
+
+    private void draw(Pending pending) {
+        synchronized (surfaceLock) {
+            if (holder == null) {
+                noSurface++;
+                return;
+            }
+
+            Canvas canvas = lock(holder);
+            if (canvas == null) {
+                noSurface++;
+                return;
+            }
+
+            try {
+                Bitmap bmp = pending.bitmap;
+                fit(bmp.getWidth(), bmp.getHeight(), canvas.getWidth(), canvas.getHeight());
+
+                canvas.drawColor(Color.BLACK);
+                canvas.drawBitmap(bmp, source, target, framePaint);
+                drawDetections(canvas, pending.received);
+                drawMeter(canvas, pending.received);
+
+            } finally {
+                holder.unlockCanvasAndPost(canvas);
+            }
+        }
+
+        LatencyStats stats = latency;
+        if (stats != null) {
+            stats.onShown(pending.captured, pending.sent, pending.received, pending.decoded, pending.processed,
+                    System.nanoTime());
+        }
+        drawn++;
+    }
+
+    //hardware canvas where available, the software one copies every pixel on the cpu
+    private static Canvas lock(SurfaceHolder holder) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return holder.lockHardwareCanvas();
+        }
+        return holder.lockCanvas();
+    }
+
+    //scale the frame to fit the surface keeping its aspect ratio, only recomputed on a size change
+    private void fit(int width, int height, int canvasWidth, int canvasHeight) {
+        if (width == source.width() && height == source.height()
+                && canvasWidth == surfaceWidth && canvasHeight == surfaceHeight) {
+            return;
+        }
+
+        source.set(0, 0, width, height);
+        surfaceWidth = canvasWidth;
+        surfaceHeight = canvasHeight;
+
+        float scale = Math.min((float) canvasWidth / width, (float) canvasHeight / height);
+        int w = (int) (width * scale);
+        int h = (int) (height * scale);
+        int left = (canvasWidth - w) / 2;
+        int top = (canvasHeight - h) / 2;
+        target.set(left, top, left + w, top + h);
+    }
+
+    //boxes are relative to the frame, so they map straight onto where it was drawn
+    private void drawDetections(Canvas canvas, long received) {
+        Overlay current = overlay;
+        if (current == null || received - current.detections.getFrameTime() > STALE_DETECTIONS_NANOS) {
+            return;
+        }
+
+        Detections detections = current.detections;
+        int width = target.width();
+        int height = target.height();
+
+        for (int i = 0; i < detections.getCount(); i++) {
+            float left = target.left + detections.left(i) * width;
+            float top = target.top + detections.top(i) * height;
+            float right = target.left + detections.right(i) * width;
+            float bottom = target.top + detections.bottom(i) * height;
+
+            canvas.drawRect(left, top, right, bottom, boxPaint);
+            canvas.drawText(current.labels[i], 0, current.lengths[i], left + 6, top + 30, meterPaint);
+        }
+    }
+
+    private void drawMeter(Canvas canvas, long received) {
+        long now = System.nanoTime();
+
+        if (received > 0 && now - received > LATE_NANOS) {
+            late++;
+        }
+
+        meterFrames++;
+        if (now - meterStart >= METER_NANOS) {
+            long fps = meterFrames * 1000000000L / Math.max(1, now - meterStart);
+            meter = fps + " fps  dropped " + converter.getDropped() + "  late " + late;
+            LatencyStats stats = latency;
+            latencyMeter = stats != null ? stats.summary() : "";
+            meterStart = now;
+            meterFrames = 0;
+        }
+
+        float width = meterPaint.measureText(meter);
+        canvas.drawRect(0, 0, width + 24, 48, meterBackground);
+        canvas.drawText(meter, 12, 36, meterPaint);
+
+        if (!latencyMeter.isEmpty()) {
+            width = meterPaint.measureText(latencyMeter);
+            canvas.drawRect(0, 48, width + 24, 96, meterBackground);
+            canvas.drawText(latencyMeter, 12, 84, meterPaint);
+        }
+    }
+
+    //================================ surface callbacks, main thread ===========================
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        synchronized (surfaceLock) {
+            this.holder = holder;
+        }
+        start();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        synchronized (surfaceLock) {
+            this.holder = holder;
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        //waits for a draw in progress, the surface must not be used after this returns
+        synchronized (surfaceLock) {
+            this.holder = null;
+        }
+    }
+
+    //frames drawn, late and off screen, and the bitmap conversion in front of it, as render.*
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("render.drawn", () -> drawn);
+        metrics.gauge("render.late", () -> late);
+        metrics.gauge("render.offscreen", () -> noSurface);
+        metrics.gauge("render.convert.dropped", converter::getDropped);
+        metrics.gauge("render.convert.allocated", converter::getAllocated);
+    }
+
+    public long getDrawn() {
+        return drawn;
+    }
+
+    public long getLate() {
+        return late;
+    }
+
+    public long getNoSurface() {
+        return noSurface;
+    }
+
+    @Override
+    public String toString() {
+        return "VideoRenderer drawn=" + drawn + " late=" + late + " offscreen=" + noSurface
+                + " " + converter.toString();
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the annex-b parser streams laid out like an x264 zerolatency recording, in random read
+ * sizes, and checks access units, key frames and the picture size read from the sps.
+ */
+public class AnnexBParserTest {
+
+    //one access unit as the parser handed it over
+    private static class Unit {
+        final byte[] data;
+        final int flags;
+
+        Unit(byte[] data, int length, int flags) {
+            this.data = Arrays.copyOf(data, length);
+            this.flags = flags;
+        }
+    }
+
+    @Test
+    public void recordedStream_splitsIntoPictures() {
+        //aud, sps, pps, idr then p frames each led by an aud, like ffmpeg -x264-params aud=1
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        byte[] sps = sps(66, 1280, 720, 0, 0);
+
+        int frames = 60;
+        for (int n = 0; n < frames; n++) {
+            boolean key = n % 30 == 0;
+            nal(stream, 4, new byte[]{0x09, (byte) 0xf0});
+            if (key) {
+                nal(stream, 4, sps);
+                nal(stream, 4, new byte[]{0x68, (byte) 0xce, 0x38, (byte) 0x80});
+            }
+            nal(stream, 4, slice(key, true, 500 + n));
+        }
+
+        for (int seed = 0; seed < 5; seed++) {
+            ArrayList<Unit> units = new ArrayList<>();
+            AnnexBParser parser = new AnnexBParser((data, length, flags) -> units.add(new Unit(data, length, flags)));
+
+            feed(parser, stream.toByteArray(), new Random(seed));
+
+            assertEquals(frames, units.size());
+            assertEquals(2, parser.getKeyFrames());
+            assertEquals(1280, parser.getWidth());
+            assertEquals(720, parser.getHeight());
+
+            for (int n = 0; n < frames; n++) {
+                Unit unit = units.get(n);
+                assertEquals(n % 30 == 0, (unit.flags & AnnexBParser.FLAG_KEY_FRAME) != 0);
+                assertEquals(0, unit.flags & AnnexBParser.FLAG_CONFIG);
+
+                //every nal comes out behind a 4 byte start code, starting with the aud
+                assertArrayEquals(new byte[]{0, 0, 0, 1, 0x09}, Arrays.copyOf(unit.data, 5));
+            }
+        }
+    }
+
+    @Test
+    public void noAud_newPictureStartsAtFirstSlice() {
+        //3 byte start codes, garbage before the first one, a picture coded as two slices
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(0x55);
+        stream.write(0x66);
+
+        byte[] sps = sps(100, 1920, 1080, 1, 0);
+        nal(stream, 3, sps);
+        nal(stream, 3, new byte[]{0x68, (byte) 0xeb, (byte) 0xe3, (byte) 0xcb});
+        nal(stream, 3, slice(true, true, 900));
+        nal(stream, 3, slice(true, false, 900));  //second slice of the same picture
+        nal(stream, 3, slice(false, true, 300));
+        nal(stream, 3, slice(false, true, 300));
+
+        ArrayList<Unit> units = new ArrayList<>();
+        AnnexBParser parser = new AnnexBParser((data, length, flags) -> units.add(new Unit(data, length, flags)));
+        feed(parser, stream.toByteArray(), new Random(7));
+
+        assertEquals(3, units.size());
+        assertEquals(AnnexBParser.FLAG_KEY_FRAME, units.get(0).flags);
+        assertEquals(1920, parser.getWidth());
+        assertEquals(1080, parser.getHeight());
+        assertEquals(2, parser.getSkippedBytes());
+
+        //sps + pps + two slices, each with a 4 byte start code
+        assertEquals(4 + sps.length + 4 + 4 + 4 + 900 + 4 + 900, units.get(0).data.length);
+        assertEquals(4 + 300, units.get(2).data.length);
+    }
+
+    @Test
+    public void sps_withEmulationPrevention() {
+        //picture order type 1 with big offsets puts 00 00 runs in the sps that the encoder escapes
+        byte[] sps = sps(66, 640, 368, 0, 1);
+        boolean escaped = false;
+        for (int x = 2; x < sps.length; x++) {
+            if (sps[x - 2] == 0 && sps[x - 1] == 0 && sps[x] == 3) {
+                escaped = true;
+            }
+        }
+        assertTrue("test sps has no escape", escaped);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        nal(stream, 4, sps);
+        nal(stream, 4, slice(true, true, 100));
+
+        AnnexBParser parser = new AnnexBParser((data, length, flags) -> { });
+        byte[] bytes = stream.toByteArray();
+        parser.feed(bytes, 0, bytes.length);
+        parser.flush();
+
+        assertEquals(1, parser.getUnits());
+        assertEquals(640, parser.getWidth());
+        assertEquals(368, parser.getHeight());
+    }
+
+    //feed in random read sizes like a socket would, including single bytes that split start codes
+    private static void feed(AnnexBParser parser, byte[] bytes, Random random) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(bytes.length - offset, random.nextBoolean() ? 1 + random.nextInt(3) : random.nextInt(4000) + 1);
+            parser.feed(bytes, offset, length);
+            offset += length;
+        }
+        parser.flush();
+    }
+
+    static void nal(ByteArrayOutputStream stream, int startCode, byte[] nal) {
+        for (int x = 0; x < startCode - 1; x++) {
+            stream.write(0);
+        }
+        stream.write(1);
+        stream.write(nal, 0, nal.length);
+    }
+
+    //slice nal with a filler payload that never forms a start code
+    static byte[] slice(boolean idr, boolean firstInPicture, int size) {
+        byte[] nal = new byte[size];
+        nal[0] = (byte) (idr ? 0x65 : 0x41);
+        nal[1] = (byte) (firstInPicture ? 0x88 : 0x20); //ue first_mb_in_slice 0, or not 0
+        for (int x = 2; x < size; x++) {
+            nal[x] = (byte) (0x10 + x % 200);
+        }
+        return nal;
+    }
+
+    //sequence parameter set for a size, cropped to it from whole macroblocks
+    static byte[] sps(int profile, int width, int height, int chromaFormat, int pocType) {
+        BitWriter bits = new BitWriter();
+        bits.write(0x67, 8);
+        bits.write(profile, 8);
+        bits.write(0, 8);  //constraint flags
+        bits.write(31, 8); //level 3.1
+        bits.writeUe(0);   //sps id
+
+        if (profile == 100) {
+            bits.writeUe(chromaFormat);
+            bits.writeUe(0); //luma bit depth - 8
+            bits.writeUe(0); //chroma bit depth - 8
+            bits.write(0, 1);
+            bits.write(0, 1); //no scaling matrix
+        }
+
+        bits.writeUe(0);        //log2 max frame num - 4
+        bits.writeUe(pocType);
+        if (pocType == 0) {
+            bits.writeUe(2);
+        } else {
+            bits.write(0, 1);
+            bits.writeSe(-(1 << 24));
+            bits.writeSe(0);
+            bits.writeUe(1);
+            bits.writeSe(0);
+        }
+
+        bits.writeUe(1); //ref frames
+        bits.write(0, 1);
+
+        int widthMbs = (width + 15) / 16;
+        int heightMbs = (height + 15) / 16;
+        bits.writeUe(widthMbs - 1);
+        bits.writeUe(heightMbs - 1);
+        bits.write(1, 1); //frame mbs only
+        bits.write(1, 1); //direct 8x8
+
+        int cropUnit = chromaFormat == 0 ? 1 : 2;
+        int cropRight = widthMbs * 16 - width;
+        int cropBottom = heightMbs * 16 - height;
+        if (cropRight > 0 || cropBottom > 0) {
+            bits.write(1, 1);
+            bits.writeUe(0);
+            bits.writeUe(cropRight / cropUnit);
+            bits.writeUe(0);
+            bits.writeUe(cropBottom / cropUnit);
+        } else {
+            bits.write(0, 1);
+        }
+
+        bits.write(0, 1); //no vui
+        bits.write(1, 1); //rbsp stop bit
+        return bits.toNal();
+    }
+
+    private static class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        void write(int value, int bits) {
+            for (int x = bits - 1; x >= 0; x--) {
+                current = (current << 1) | ((value >> x) & 1);
+                if (++count == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void writeUe(int value) {
+            int coded = value + 1;
+            int length = 32 - Integer.numberOfLeadingZeros(coded);
+            write(0, length - 1);
+            write(coded, length);
+        }
+
+        void writeSe(int value) {
+            writeUe(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        //pad to a byte and add emulation prevention bytes like an encoder
+        byte[] toNal() {
+            if (count > 0) {
+                write(0, 8 - count);
+            }
+
+            ByteArrayOutputStream nal = new ByteArrayOutputStream();
+            int zeros = 0;
+            for (byte b : bytes.toByteArray()) {
+                if (zeros >= 2 && (b & 0xff) <= 3) {
+                    nal.write(3);
+                    zeros = 0;
+                }
+                nal.write(b);
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return nal.toByteArray();
+        }
+    }
+}
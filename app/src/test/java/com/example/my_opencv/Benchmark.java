@@ -0,0 +1,129 @@
+package com.example.my_opencv;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Small micro benchmark harness for the per-frame hot paths, run by the unit tests on the host jvm.
+ * An operation is warmed up, then timed over a few rounds (the fastest counts, the others had gc or
+ * jit in them) while the bytes the thread allocated are counted. Results are compared with the baseline
+ * file committed next to the tests; with -Dbenchmark.update=true the baseline is rewritten instead, so
+ * a change in allocations or time per op shows up in the diff of the change that caused it.
+ * Benchmarks only run when asked for, {@code ./gradlew test -Dbenchmark=true} (app/build.gradle passes
+ * the properties on): bytes per op depend on the jit's escape analysis, so they only compare on the
+ * jdk and machine that wrote the baseline, not in every test run.
+ */
+public class Benchmark {
+
+    public static final String BASELINE = "src/test/resources/benchmarks.txt";
+
+    private static final int ROUNDS = 5;
+
+    public interface Op {
+        void run(int iteration);
+    }
+
+    public static class Result {
+        public final String name;
+        public final double nanosPerOp;
+        public final double bytesPerOp;
+
+        Result(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %.1f %.1f", name, nanosPerOp, bytesPerOp);
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    public static Result run(String name, int warmUp, int ops, Op op) {
+        for (int x = 0; x < warmUp; x++) {
+            op.run(x);
+        }
+
+        double bestNanos = Double.MAX_VALUE;
+        double bestBytes = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int x = 0; x < ops; x++) {
+                op.run(x);
+            }
+            long elapsed = System.nanoTime() - start;
+            bytes = allocatedBytes() - bytes;
+
+            bestNanos = Math.min(bestNanos, (double) elapsed / ops);
+            bestBytes = Math.min(bestBytes, (double) bytes / ops);
+        }
+
+        Result result = new Result(name, bestNanos, bestBytes);
+        System.out.println("benchmark " + result);
+        return result;
+    }
+
+    //bytes allocated by this thread so far, -1 where the jvm can't tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    //name -> {ns per op, bytes per op} from the committed baseline, empty when there is none
+    public static Map<String, double[]> baseline() throws IOException {
+        Map<String, double[]> baseline = new LinkedHashMap<>();
+        File file = new File(BASELINE);
+        if (!file.isFile()) {
+            return baseline;
+        }
+
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            baseline.put(fields[0], new double[]{Double.parseDouble(fields[1]), Double.parseDouble(fields[2])});
+        }
+        return baseline;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("benchmark") || isUpdate();
+    }
+
+    public static boolean isUpdate() {
+        return Boolean.getBoolean("benchmark.update");
+    }
+
+    public static void write(List<Result> results) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("# name ns/op bytes/op, from HotPathBenchmarkTest on the host jvm\n");
+        text.append("# check with -Dbenchmark=true, rewrite with -Dbenchmark.update=true after a change that moves them\n");
+        for (Result result : results) {
+            text.append(result).append('\n');
+        }
+
+        File file = new File(BASELINE);
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
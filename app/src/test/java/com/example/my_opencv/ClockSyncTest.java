@@ -0,0 +1,71 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Clock offset from probe answers with made up one way delays, and the shortest round trip winning.
+ */
+public class ClockSyncTest {
+
+    private static final long OFFSET = 5000000; //drone clock 5s ahead
+
+    //answer to a probe sent at t1 with the given one way delays and drone turnaround, all microseconds
+    private static void reply(ClockSync sync, long t1, long out, long turnaround, long back) {
+        long t2 = t1 + out + OFFSET;
+        long t3 = t2 + turnaround;
+        long t4 = t1 + out + turnaround + back;
+        sync.onReply(new double[]{t1, t2, t3, 0, 0, 0, 0}, t4 * 1000);
+    }
+
+    @Test
+    public void symmetricDelays_exactOffset() {
+        ClockSync sync = new ClockSync(4);
+        assertFalse(sync.isSynced());
+        assertEquals(0, sync.toLocalNanos(OFFSET + 1000));
+
+        reply(sync, 1000000, 2000, 500, 2000);
+
+        assertTrue(sync.isSynced());
+        assertEquals(OFFSET, sync.getOffsetMicros());
+        assertEquals(4000, sync.getRttMicros());
+
+        //a drone time maps back onto the phone's nanoTime
+        assertEquals(1234000L * 1000, sync.toLocalNanos(1234000 + OFFSET));
+    }
+
+    @Test
+    public void shortestRoundTrip_wins() {
+        ClockSync sync = new ClockSync(3);
+
+        //held up 50ms on the way out, off by about half of that
+        reply(sync, 1000000, 50000, 100, 2000);
+        assertEquals(OFFSET + 24000, sync.getOffsetMicros());
+
+        reply(sync, 2000000, 2000, 100, 2000);
+        reply(sync, 3000000, 30000, 100, 2000);
+        assertEquals(OFFSET, sync.getOffsetMicros());
+        assertEquals(4000, sync.getRttMicros());
+
+        //the good sample falls out of the window of 3, the next best takes over
+        reply(sync, 4000000, 10000, 100, 2000);
+        reply(sync, 5000000, 20000, 100, 2000);
+        assertEquals(OFFSET + 4000, sync.getOffsetMicros());
+    }
+
+    @Test
+    public void badReplies_rejected() {
+        ClockSync sync = new ClockSync(4);
+
+        //answer arriving before it was asked, and a probe that never came from us
+        sync.onReply(new double[]{2000000, OFFSET, OFFSET, 0, 0, 0, 0}, 1000000L * 1000);
+        sync.onReply(new double[]{0, OFFSET, OFFSET, 0, 0, 0, 0}, 1000000L * 1000);
+        assertFalse(sync.isSynced());
+
+        reply(sync, 1000000, 1000, 0, 1000);
+        assertTrue(sync.isSynced());
+        sync.reset();
+        assertFalse(sync.isSynced());
+    }
+}
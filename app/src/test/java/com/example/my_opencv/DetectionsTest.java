@@ -0,0 +1,87 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fills and copies the reusable detection buffer.
+ */
+public class DetectionsTest {
+
+    @Test
+    public void add_stopsAtCapacity() {
+        Detections detections = new Detections(2);
+        detections.clear(5, false);
+
+        assertTrue(detections.add(15, 0.9f, 0.1f, 0.2f, 0.3f, 0.4f, 0));
+        assertTrue(detections.add(15, 0.8f, 0.5f, 0.6f, 0.7f, 0.8f, 0));
+        assertFalse(detections.add(15, 0.7f, 0, 0, 1, 1, 0));
+
+        assertEquals(2, detections.getCount());
+        assertEquals(0.8f, detections.score(1), 0);
+        assertEquals(0.6f, detections.top(1), 0);
+
+        //a new frame starts empty in the same arrays
+        detections.clear(6, false);
+        assertEquals(0, detections.getCount());
+        assertEquals(6, detections.getFrameTime());
+    }
+
+    @Test
+    public void copyFrom_keepsWhatFits() {
+        Detections source = new Detections(4);
+        source.clear(7, true);
+        for (int n = 0; n < 3; n++) {
+            source.add(15, 0.5f + n / 10f, n, n, n + 1, n + 1, n + 1);
+        }
+        source.setInferenceNanos(1234);
+
+        Detections copy = new Detections(2);
+        copy.copyFrom(source);
+
+        //refilling the source leaves the copy alone
+        source.clear(8, false);
+        source.add(1, 0.1f, 0, 0, 0, 0, 0);
+
+        assertEquals(2, copy.getCount());
+        assertTrue(copy.isTracked());
+        assertEquals(7, copy.getFrameTime());
+        assertEquals(1234, copy.getInferenceNanos());
+        assertEquals(2, copy.id(1));
+        assertEquals(2f, copy.right(1), 0);
+    }
+
+    @Test
+    public void toRegion_movesCropBoxesIntoFrame() {
+        Detections detections = new Detections(2);
+        detections.clear(1, false);
+        detections.add(15, 0.9f, 0, 0.5f, 1, 1, 0);
+
+        //the crop was the right half of the frame's bottom quarter
+        detections.toRegion(0.5f, 0.75f, 0.5f, 0.25f);
+
+        assertEquals(0.5f, detections.left(0), 1e-6);
+        assertEquals(0.875f, detections.top(0), 1e-6);
+        assertEquals(1f, detections.right(0), 1e-6);
+        assertEquals(1f, detections.bottom(0), 1e-6);
+    }
+
+    @Test
+    public void label_writtenInPlace() {
+        Detections detections = new Detections(3);
+        detections.clear(1, true);
+        detections.add(15, 0.874f, 0, 0, 1, 1, 1234567890);
+        detections.add(15, 1f, 0, 0, 1, 1, 7);
+        detections.add(999, 0f, 0, 0, 1, 1, 8);
+        char[] text = new char[AI.LABEL_LENGTH];
+
+        assertEquals("#1234567890 person: 87%", new String(text, 0, AI.label(detections, 0, text)));
+        assertEquals("#7 person: 100%", new String(text, 0, AI.label(detections, 1, text)));
+        assertEquals("#8 ? 0%", new String(text, 0, AI.label(detections, 2, text)));
+
+        detections.clear(2, false);
+        detections.add(15, 0.5f, 0, 0, 1, 1, 0);
+        assertEquals("person: 50%", new String(text, 0, AI.label(detections, 0, text)));
+    }
+}
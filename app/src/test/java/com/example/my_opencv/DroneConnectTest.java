@@ -0,0 +1,144 @@
+package com.example.my_opencv;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives DroneConnect's nav link on the shared transport against the drone simulator on loopback.
+ */
+public class DroneConnectTest {
+
+    private static final double[] DRONE_STATE = {3, 87, 5, 12.5, 0, -80.1, 43.2};
+
+    private DroneSimulator simulator;
+    private DroneTransport transport;
+    private DroneConnect nav;
+
+    @After
+    public void tearDown() throws Exception {
+        if (nav != null) {
+            nav.disconnect();
+        }
+        if (transport != null) {
+            transport.shutdown();
+        }
+        if (simulator != null) {
+            simulator.stop();
+        }
+    }
+
+    //waits for the drone state to reach the app
+    private static class Listener implements DroneListener {
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch offline = new CountDownLatch(1);
+        volatile int attempts;
+
+        @Override
+        public void onProcessFrame(Frame frame) {
+        }
+
+        @Override
+        public void onUpdateImageView(Frame frame) {
+        }
+
+        @Override
+        public void onOnlineStatus(boolean online) {
+            if (!online) {
+                offline.countDown();
+            }
+        }
+
+        @Override
+        public void onReconnecting(int attempt) {
+            attempts = attempt;
+        }
+
+        @Override
+        public void onSetAppData(double[] data) {
+            if (Arrays.equals(DRONE_STATE, data)) {
+                received.countDown();
+            }
+        }
+
+        @Override
+        public void onGetAppData() {
+        }
+    }
+
+    private Listener connect(boolean v5) throws Exception {
+        Listener listener = new Listener();
+        connect(v5, listener);
+        return listener;
+    }
+
+    private void connect(boolean v5, DroneListener listener) throws Exception {
+        simulator = new DroneSimulator(Arrays.asList(MjpegAviWriterTest.jpeg(320, 240, 1000)), 30,
+                DroneSimulator.Link.IDEAL, 0, 0, 1);
+        simulator.setV5(v5);
+        simulator.setDroneState(DRONE_STATE);
+        simulator.start();
+
+        transport = new DroneTransport(1000, 0);
+        nav = new DroneConnect("127.0.0.1", simulator.getNavPort(), null, transport);
+        nav.setDroneListener(listener);
+        nav.connect();
+    }
+
+    @Test
+    public void nav_framedServer() throws Exception {
+        Listener listener = connect(false);
+
+        assertTrue(listener.received.await(5, TimeUnit.SECONDS));
+        assertFalse(nav.navProtocol.isLegacy());
+        assertEquals(0, nav.supervisor.getAttempts());
+    }
+
+    @Test
+    public void nav_withoutListener() throws Exception {
+        connect(false, null);
+
+        //the link comes up and streams without anyone listening yet
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (simulator.getStatesReceived() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(simulator.getStatesReceived() >= 3);
+        assertTrue(nav.online);
+        assertEquals(0, nav.supervisor.getAttempts());
+    }
+
+    @Test
+    public void nav_silentV5Server_fallsBackToLockstep() throws Exception {
+        Listener listener = connect(true);
+
+        //the framed session times out unanswered, the reconnect talks lockstep
+        assertTrue(listener.received.await(10, TimeUnit.SECONDS));
+        assertTrue(nav.navProtocol.isLegacy());
+        assertEquals(1, simulator.getUnpackErrors());
+    }
+
+    @Test
+    public void nav_silentPeer_givesUp() throws Exception {
+        //accepted by the backlog and never answered, the outage runs on across reconnects
+        try (ServerSocket server = new ServerSocket(0)) {
+            transport = new DroneTransport(1000, 0);
+            nav = new DroneConnect("127.0.0.1", server.getLocalPort(), null, transport);
+            nav.supervisor = new ConnectionSupervisor(50, 100, 1000);
+            Listener listener = new Listener();
+            nav.setDroneListener(listener);
+            nav.connect();
+
+            assertTrue(listener.offline.await(10, TimeUnit.SECONDS));
+            assertTrue(listener.attempts >= 1);
+            assertFalse(nav.supervisor.isEnabled());
+            assertEquals(0, nav.supervisor.getRecoveries());
+        }
+    }
+}
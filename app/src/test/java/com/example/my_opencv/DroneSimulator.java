@@ -0,0 +1,676 @@
+package com.example.my_opencv;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Stand-in for DroneServer.py on the JVM, so the app's links can be driven without the pi, camera or gps.
+ * Video on one port: the hello (always answered with mjpeg, stamped with capture and send times if asked),
+ * then int size + jpeg per frame, replayed from a folder of jpegs or a recording at the fps the app asks for.
+ * Nav on the other: framed state at 20 Hz both ways with video hints and clock probes, or the legacy lockstep
+ * doubles for apps that don't send the magic. With setV5(true) nav answers like DroneServer.py v5 instead:
+ * lockstep only, and a framed message fails its unpack and is never answered. The simulated drone's clock
+ * runs a settable offset from the host's System.nanoTime(), so clock sync can be checked against a known answer.
+ * A Link adds a bitrate cap, latency, jitter, periodic stalls and a disconnect to both.
+ * Run it with main() to point a phone at a linux box, or start() it from a test on ports picked by the os.
+ */
+public class DroneSimulator {
+
+    private static final long NAV_INTERVAL_NANOS = 50 * 1000000L;
+    private static final int HELLO_WAIT_MS = 500;
+    private static final int CHUNK = 16 * 1024;
+    //capture times kept for latency measurements, by frame number
+    private static final int CAPTURE_HISTORY = 1024;
+
+    //what the network between drone and app does to the streams, 0 turns a setting off
+    public static class Link {
+
+        public static final Link IDEAL = new Link(0, 0, 0, 0, 0, 0);
+
+        final long bytesPerSecond;
+        final long latencyMs;
+        final long jitterMs;         //extra delay between 0 and this, frames still arrive in order
+        final long stallEveryMs;     //nothing is sent for stallMs at the start of every period
+        final long stallMs;
+        final long disconnectAfterMs; //the connection is dropped this long after it was made
+
+        public Link(long bytesPerSecond, long latencyMs, long jitterMs, long stallEveryMs, long stallMs,
+                    long disconnectAfterMs) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.latencyMs = latencyMs;
+            this.jitterMs = jitterMs;
+            this.stallEveryMs = stallEveryMs;
+            this.stallMs = stallMs;
+            this.disconnectAfterMs = disconnectAfterMs;
+        }
+
+        @Override
+        public String toString() {
+            return "Link bps=" + bytesPerSecond + " latency=" + latencyMs + "ms jitter=" + jitterMs + "ms stall="
+                    + stallMs + "ms/" + stallEveryMs + "ms disconnect=" + disconnectAfterMs + "ms";
+        }
+    }
+
+    private final List<byte[]> frames;
+    private final Link link;
+    private final Random random;
+    private final int startFps;
+    private volatile int fps;
+
+    private final ServerSocket videoServer;
+    private final ServerSocket navServer;
+    private final List<Socket> clients;
+    private final List<Thread> threads;
+    private volatile boolean running;
+
+    //drone state streamed on nav: status, battery, velocity, altitude, error code, long, lat
+    private final double[] droneState;
+    private final double[] appState;
+    private final NavProtocol navProtocol; //kept across connections, the sequence carries on like the drone's
+    private final NavProtocol syncProtocol; //clock probe answers, which are not in the state sequence
+    private final long[] captureTimes;
+
+    //stats
+    private volatile long videoConnections;
+    private volatile long navConnections;
+    private volatile long framesSent;
+    private volatile long bytesSent;
+    private volatile long statesSent;
+    private volatile long statesReceived;
+    private volatile long hintsReceived;
+    private volatile long stalls;
+    private volatile long disconnects;
+    private volatile double[] lastHint;
+    private volatile long clockOffsetMicros;
+    private volatile long syncsAnswered;
+    private volatile boolean v5;
+    private volatile long unpackErrors;
+
+    //videoPort/navPort 0 lets the os pick, see getVideoPort()/getNavPort()
+    public DroneSimulator(List<byte[]> frames, int fps, Link link, int videoPort, int navPort, long seed)
+            throws IOException {
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No frames to replay");
+        }
+
+        this.frames = frames;
+        this.fps = fps;
+        startFps = fps;
+        this.link = link;
+        random = new Random(seed);
+        videoServer = new ServerSocket(videoPort);
+        navServer = new ServerSocket(navPort);
+        clients = new ArrayList<>();
+        threads = new ArrayList<>();
+        droneState = new double[]{2, 100, 3, 0, 0, 0, 0};
+        appState = new double[NavProtocol.FIELDS];
+        navProtocol = new NavProtocol(false);
+        syncProtocol = new NavProtocol(false);
+        captureTimes = new long[CAPTURE_HISTORY];
+    }
+
+    public synchronized void start() {
+        running = true;
+        spawn("sim-video-accept", () -> accept(videoServer, true));
+        spawn("sim-nav-accept", () -> accept(navServer, false));
+    }
+
+    //close the servers and every connection, returns once all threads are done
+    public void stop() throws InterruptedException {
+        List<Thread> joined;
+        synchronized (this) {
+            running = false;
+            closeQuietly(videoServer);
+            closeQuietly(navServer);
+            for (Socket client : clients) {
+                closeQuietly(client);
+            }
+            joined = new ArrayList<>(threads);
+        }
+
+        for (Thread thread : joined) {
+            thread.join(2000);
+        }
+    }
+
+    private synchronized void spawn(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void accept(ServerSocket server, boolean video) {
+        while (running) {
+            Socket client;
+            try {
+                client = server.accept();
+                client.setTcpNoDelay(true);
+            } catch (IOException e) {
+                break;
+            }
+
+            synchronized (this) {
+                if (!running) {
+                    closeQuietly(client);
+                    break;
+                }
+                clients.add(client);
+            }
+
+            if (video) {
+                videoConnections++;
+                spawn("sim-video", () -> serve(client, this::video));
+            } else {
+                navConnections++;
+                spawn("sim-nav", () -> serve(client, this::nav));
+            }
+        }
+    }
+
+    private interface Session {
+        void run(Socket client, long start) throws IOException;
+    }
+
+    private void serve(Socket client, Session session) {
+        long start = System.nanoTime();
+        try {
+            session.run(client, start);
+        } catch (IOException e) {
+            //app gone, or dropped on purpose
+        } finally {
+            closeQuietly(client);
+            synchronized (this) {
+                clients.remove(client);
+            }
+        }
+    }
+
+    //================================ video ====================================================
+
+    private void video(Socket client, long start) throws IOException {
+        InputStream in = client.getInputStream();
+        OutputStream out = client.getOutputStream();
+
+        //every new app connection starts from the full rate, then hints may lower it
+        fps = startFps;
+
+        //apps from v7 on say hello first, older ones get jpeg right away like DroneServer does
+        client.setSoTimeout(HELLO_WAIT_MS);
+        byte[] hello = new byte[VideoProtocol.HELLO_SIZE];
+        boolean stamped = false;
+        try {
+            new DataInputStream(in).readFully(hello);
+            if (ByteBuffer.wrap(hello).getInt() == VideoProtocol.MAGIC) {
+                stamped = (hello[5] & VideoProtocol.FLAG_TIMESTAMPS) != 0;
+                ByteBuffer reply = ByteBuffer.allocate(VideoProtocol.HELLO_SIZE);
+                reply.putInt(VideoProtocol.MAGIC).put(VideoProtocol.VERSION)
+                        .put((byte) (VideoProtocol.CODEC_MJPEG | (stamped ? VideoProtocol.FLAG_TIMESTAMPS : 0)));
+                out.write(reply.array());
+            }
+        } catch (java.net.SocketTimeoutException e) {
+            //old app
+        }
+        client.setSoTimeout(0);
+
+        ByteBuffer header = ByteBuffer.allocate(4 + (stamped ? VideoProtocol.TIMESTAMPS_SIZE : 0));
+        long latency = link.latencyMs * 1000000L;
+        long next = System.nanoTime();
+        long lastDue = 0;
+        long pace = 0;
+
+        for (long frame = 0; running; frame++) {
+            //camera clock: a frame every 1/fps, a stream that fell behind takes the next one when it can
+            long capture = Math.max(next, System.nanoTime() - latency);
+            sleepUntil(capture);
+            next = capture + 1000000000L / Math.max(1, fps);
+            captureTimes[(int) (frame % CAPTURE_HISTORY)] = capture;
+
+            //the frame leaves the drone now, the latency and jitter are the network's
+            long sent = System.nanoTime();
+            long due = Math.max(lastDue, capture + latency + jitter());
+            lastDue = due;
+            sleepUntil(due);
+            impair(client, start);
+
+            byte[] data = frames.get((int) (frame % frames.size()));
+            header.clear();
+            header.putInt(data.length);
+            if (stamped) {
+                header.putLong(droneMicros(capture)).putLong(droneMicros(sent));
+            }
+            pace = send(out, header.array(), 0, header.capacity(), pace);
+            for (int offset = 0; offset < data.length; offset += CHUNK) {
+                pace = send(out, data, offset, Math.min(CHUNK, data.length - offset), pace);
+            }
+            out.flush();
+
+            framesSent++;
+            bytesSent += header.capacity() + data.length;
+        }
+    }
+
+    //write under the bitrate cap, pace is when the link is free again
+    private long send(OutputStream out, byte[] data, int offset, int length, long pace) throws IOException {
+        out.write(data, offset, length);
+        if (link.bytesPerSecond <= 0) {
+            return pace;
+        }
+
+        pace = Math.max(pace, System.nanoTime()) + length * 1000000000L / link.bytesPerSecond;
+        sleepUntil(pace);
+        return pace;
+    }
+
+    //================================ nav ======================================================
+
+    private void nav(Socket client, long start) throws IOException {
+        if (v5) {
+            navV5(client, start);
+            return;
+        }
+
+        BufferedInputStream buffered = new BufferedInputStream(client.getInputStream());
+        DataInputStream in = new DataInputStream(buffered);
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+
+        //current apps start with the magic, older ones with a raw double
+        buffered.mark(4);
+        int magic = in.readInt();
+        buffered.reset();
+
+        if (magic == NavProtocol.MAGIC) {
+            navFramed(client, in, out, start);
+        } else {
+            navLegacy(client, in, out, start);
+        }
+    }
+
+    private void navFramed(Socket client, DataInputStream in, DataOutputStream out, long start) throws IOException {
+        Thread receiver = new Thread(() -> {
+            byte[] message = new byte[NavProtocol.MESSAGE_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            try {
+                while (running) {
+                    in.readFully(message);
+                    receive(buffer, out);
+                }
+            } catch (IOException e) {
+                //app gone
+            }
+            closeQuietly(client);
+        }, "sim-nav-receive");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        long next = System.nanoTime();
+        try {
+            while (running && !client.isClosed()) {
+                next += NAV_INTERVAL_NANOS;
+                sleepUntil(next + link.latencyMs * 1000000L + jitter());
+                impair(client, start);
+
+                byte[] message;
+                synchronized (navProtocol) {
+                    message = navProtocol.encode(getDroneState()).clone();
+                }
+                synchronized (out) {
+                    out.write(message);
+                    out.flush();
+                }
+                statesSent++;
+            }
+        } finally {
+            closeQuietly(client);
+            try {
+                receiver.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void receive(ByteBuffer message, DataOutputStream out) throws IOException {
+        long received = System.nanoTime();
+        message.clear();
+        int magic = message.getInt();
+        byte version = message.get();
+        byte type = message.get();
+        message.getShort();
+        message.getInt();   //sequence
+        message.getLong();  //timestamp
+
+        if (magic != NavProtocol.MAGIC || version != NavProtocol.VERSION) {
+            throw new IOException("Bad nav message: magic " + Integer.toHexString(magic) + " version " + version);
+        }
+
+        double[] fields = new double[NavProtocol.FIELDS];
+        for (int x = 0; x < fields.length; x++) {
+            fields[x] = message.getDouble();
+        }
+
+        if (type == NavProtocol.TYPE_TIME_SYNC) {
+            //answered at once, outside the state sequence like DroneServer does
+            double[] reply = {fields[0], droneMicros(received), 0};
+            synchronized (out) {
+                reply[2] = droneMicros(System.nanoTime());
+                synchronized (syncProtocol) {
+                    out.write(syncProtocol.encode(NavProtocol.TYPE_TIME_SYNC, reply), 0, NavProtocol.MESSAGE_SIZE);
+                }
+                out.flush();
+            }
+            syncsAnswered++;
+        } else if (type == NavProtocol.TYPE_VIDEO_HINT) {
+            //quality and scale can't be applied to recorded jpegs, only the fps is
+            lastHint = fields;
+            fps = (int) Math.min(Math.max(fields[2], 1), 30);
+            hintsReceived++;
+        } else if (type == NavProtocol.TYPE_STATE) {
+            synchronized (appState) {
+                System.arraycopy(fields, 0, appState, 0, appState.length);
+            }
+            statesReceived++;
+        }
+    }
+
+    //one double each way per field, the app speaks first
+    private void navLegacy(Socket client, DataInputStream in, DataOutputStream out, long start) throws IOException {
+        double[] received = new double[NavProtocol.FIELDS];
+        while (running) {
+            double[] state = getDroneState();
+            for (int x = 0; x < received.length; x++) {
+                received[x] = in.readDouble();
+                impair(client, start);
+                out.writeDouble(state[x]);
+                out.flush();
+            }
+
+            synchronized (appState) {
+                System.arraycopy(received, 0, appState, 0, appState.length);
+            }
+            statesReceived++;
+            statesSent++;
+        }
+    }
+
+    //DroneServer.py v5: struct.unpack("!d", c.recv(4096)) per field, then the drone's field sent back
+    //a recv of anything but 8 bytes fails the unpack, the server swallows the error and never answers again
+    private void navV5(Socket client, long start) throws IOException {
+        InputStream in = client.getInputStream();
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        byte[] recv = new byte[4096];
+        double[] received = new double[NavProtocol.FIELDS];
+
+        while (running) {
+            double[] state = getDroneState();
+            for (int x = 0; x < received.length; x++) {
+                int length = in.read(recv);
+                if (length < 0) {
+                    return;
+                }
+
+                if (length != 8) {
+                    //silent until the app gives up on the connection
+                    unpackErrors++;
+                    while (in.read(recv) >= 0) {
+                        //dropped
+                    }
+                    return;
+                }
+
+                received[x] = ByteBuffer.wrap(recv, 0, 8).getDouble();
+                impair(client, start);
+                out.writeDouble(state[x]);
+                out.flush();
+            }
+
+            synchronized (appState) {
+                System.arraycopy(received, 0, appState, 0, appState.length);
+            }
+            statesReceived++;
+            statesSent++;
+        }
+    }
+
+    //the drone's clock in microseconds at a System.nanoTime() of the host
+    private long droneMicros(long nanos) {
+        return nanos / 1000 + clockOffsetMicros;
+    }
+
+    //================================ link =====================================================
+
+    //stall or drop the connection as the link says, called before each send
+    private void impair(Socket client, long start) throws IOException {
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        if (link.disconnectAfterMs > 0 && elapsedMs >= link.disconnectAfterMs) {
+            disconnects++;
+            closeQuietly(client);
+            throw new SocketException("Dropped by the simulated link");
+        }
+
+        if (link.stallEveryMs > 0 && elapsedMs % link.stallEveryMs < link.stallMs) {
+            stalls++;
+            sleepUntil(System.nanoTime() + (link.stallMs - elapsedMs % link.stallEveryMs) * 1000000L);
+        }
+    }
+
+    private long jitter() {
+        if (link.jitterMs <= 0) {
+            return 0;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * link.jitterMs * 1000000L);
+        }
+    }
+
+    private static void sleepUntil(long nanos) {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //closing anyway
+        }
+    }
+
+    //================================ frames ===================================================
+
+    //every .jpg in a folder by name, or the frames of an mjpeg avi as the Recorder writes them
+    public static List<byte[]> loadFrames(File source) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+
+        if (source.isDirectory()) {
+            File[] files = source.listFiles((dir, name) -> name.toLowerCase().endsWith(".jpg")
+                    || name.toLowerCase().endsWith(".jpeg"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    frames.add(Files.readAllBytes(file.toPath()));
+                }
+            }
+        } else {
+            ByteBuffer avi = ByteBuffer.wrap(Files.readAllBytes(source.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            int movi = indexOf(avi, "movi");
+            if (movi < 0) {
+                throw new IOException("No movi list in " + source);
+            }
+
+            //chunks are fourcc, size, data padded to even, repeats of a stalled frame come as they were muxed
+            int position = movi + 4;
+            while (position + 8 <= avi.limit()) {
+                String fourcc = new String(avi.array(), position, 4, "US-ASCII");
+                int length = avi.getInt(position + 4);
+                if (length < 0 || position + 8 + length > avi.limit() || fourcc.equals("idx1")) {
+                    break;
+                }
+
+                if (fourcc.equals("00dc") && length > 0) {
+                    frames.add(Arrays.copyOfRange(avi.array(), position + 8, position + 8 + length));
+                }
+                position += 8 + length + (length & 1);
+            }
+        }
+
+        if (frames.isEmpty()) {
+            throw new IOException("No frames in " + source);
+        }
+        return frames;
+    }
+
+    private static int indexOf(ByteBuffer buffer, String fourcc) {
+        byte[] tag = fourcc.getBytes();
+        for (int x = 0; x + 4 <= buffer.limit(); x++) {
+            if (buffer.get(x) == tag[0] && buffer.get(x + 1) == tag[1] && buffer.get(x + 2) == tag[2]
+                    && buffer.get(x + 3) == tag[3]) {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    //================================ state ====================================================
+
+    public double[] getDroneState() {
+        synchronized (droneState) {
+            return droneState.clone();
+        }
+    }
+
+    public void setDroneState(double[] state) {
+        synchronized (droneState) {
+            System.arraycopy(state, 0, droneState, 0, Math.min(state.length, droneState.length));
+        }
+    }
+
+    public double[] getAppState() {
+        synchronized (appState) {
+            return appState.clone();
+        }
+    }
+
+    //when frame number n (from 0 on a connection) left the camera, System.nanoTime(), for latency
+    //only the last CAPTURE_HISTORY frames are kept
+    public long getCaptureTime(long frame) {
+        return captureTimes[(int) (frame % CAPTURE_HISTORY)];
+    }
+
+    //how far the drone's clock is ahead of the host's System.nanoTime() / 1000
+    public void setClockOffsetMicros(long offset) {
+        clockOffsetMicros = offset;
+    }
+
+    public long getSyncsAnswered() {
+        return syncsAnswered;
+    }
+
+    //answer nav like DroneServer.py v5 from the next connection on, see navV5
+    public void setV5(boolean v5) {
+        this.v5 = v5;
+    }
+
+    //v5 mode: connections that went silent on a recv that wasn't one double
+    public long getUnpackErrors() {
+        return unpackErrors;
+    }
+
+    public int getVideoPort() {
+        return videoServer.getLocalPort();
+    }
+
+    public int getNavPort() {
+        return navServer.getLocalPort();
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    public double[] getLastHint() {
+        return lastHint;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getStatesSent() {
+        return statesSent;
+    }
+
+    public long getStatesReceived() {
+        return statesReceived;
+    }
+
+    public long getHintsReceived() {
+        return hintsReceived;
+    }
+
+    public long getDisconnects() {
+        return disconnects;
+    }
+
+    @Override
+    public String toString() {
+        return "DroneSimulator video=" + videoConnections + " nav=" + navConnections + " frames=" + framesSent
+                + " bytes=" + bytesSent + " states out=" + statesSent + " in=" + statesReceived + " hints="
+                + hintsReceived + " fps=" + fps + " stalls=" + stalls + " disconnects=" + disconnects + " " + link;
+    }
+
+    //java DroneSimulator <jpeg folder or avi> [fps] [bytes/s] [latency ms] [jitter ms] [stall every ms]
+    //                    [stall ms] [disconnect after ms], on the drone's ports 9999 and 9998
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("usage: DroneSimulator <jpeg folder or avi> [fps] [bytes/s] [latency ms] [jitter ms]"
+                    + " [stall every ms] [stall ms] [disconnect after ms]");
+            return;
+        }
+
+        long[] settings = new long[7];
+        settings[0] = 30;
+        for (int x = 1; x < args.length && x <= settings.length; x++) {
+            settings[x - 1] = Long.parseLong(args[x]);
+        }
+
+        Link link = new Link(settings[1], settings[2], settings[3], settings[4], settings[5], settings[6]);
+        DroneSimulator simulator = new DroneSimulator(loadFrames(new File(args[0])), (int) settings[0], link, 9999,
+                9998, System.nanoTime());
+        simulator.start();
+        System.out.println("Simulating a drone on " + InetAddress.getLocalHost().getHostAddress() + " " + link);
+
+        while (true) {
+            Thread.sleep(5000);
+            System.out.println(simulator);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.example.my_opencv;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the app's transport and protocols against the drone simulator on loopback.
+ */
+public class DroneSimulatorTest {
+
+    private DroneSimulator simulator;
+    private DroneTransport transport;
+
+    @After
+    public void tearDown() throws Exception {
+        if (transport != null) {
+            transport.shutdown();
+        }
+        if (simulator != null) {
+            simulator.stop();
+        }
+    }
+
+    private static List<byte[]> frames(int count, int length) {
+        List<byte[]> frames = new ArrayList<>();
+        for (int n = 0; n < count; n++) {
+            byte[] frame = MjpegAviWriterTest.jpeg(320, 240, length);
+            frame[20] = (byte) n;
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private DroneSimulator start(List<byte[]> frames, int fps, DroneSimulator.Link link) throws IOException {
+        simulator = new DroneSimulator(frames, fps, link, 0, 0, 1);
+        simulator.start();
+        return simulator;
+    }
+
+    //mjpeg framing as DroneConnect reads it: the hello answer, then size, drone times if asked for, and jpeg
+    private static class VideoClient implements DroneTransport.Handler {
+
+        final DroneSimulator simulator;
+        final int wanted;
+        final boolean stamped;
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<byte[]> received = new ArrayList<>();
+        final List<long[]> times = new ArrayList<>();
+        final ByteBuffer hello = ByteBuffer.allocate(VideoProtocol.HELLO_SIZE);
+        final ByteBuffer size = ByteBuffer.allocate(4);
+        final ByteBuffer stamps = ByteBuffer.allocate(VideoProtocol.TIMESTAMPS_SIZE);
+        long maxLatency;
+        long totalLatency;
+        volatile IOException closed;
+
+        VideoClient(DroneSimulator simulator, int wanted) {
+            this(simulator, wanted, false);
+        }
+
+        VideoClient(DroneSimulator simulator, int wanted, boolean stamped) {
+            this.simulator = simulator;
+            this.wanted = wanted;
+            this.stamped = stamped;
+        }
+
+        @Override
+        public ByteBuffer onConnected(DroneTransport.Connection connection) throws IOException {
+            byte[] data = VideoProtocol.hello(VideoProtocol.CODEC_MJPEG | (stamped ? VideoProtocol.FLAG_TIMESTAMPS : 0));
+            connection.send(data, 0, data.length);
+            return hello;
+        }
+
+        @Override
+        public ByteBuffer onRead(DroneTransport.Connection connection, ByteBuffer full) throws IOException {
+            if (full == hello) {
+                hello.position(4);
+                assertEquals(VideoProtocol.CODEC_MJPEG, VideoProtocol.chosen(hello.slice()));
+                assertEquals(stamped, VideoProtocol.timestamped(hello.slice()));
+            } else if (full == size && stamped) {
+                stamps.clear();
+                return stamps;
+            } else if (full == size) {
+                return ByteBuffer.allocate(size.getInt(0));
+            } else if (full == stamps) {
+                times.add(new long[]{stamps.getLong(0), stamps.getLong(8)});
+                return ByteBuffer.allocate(size.getInt(0));
+            } else {
+                long latency = System.nanoTime() - simulator.getCaptureTime(received.size());
+                maxLatency = Math.max(maxLatency, latency);
+                totalLatency += latency;
+                received.add(full.array());
+                if (received.size() == wanted) {
+                    done.countDown();
+                }
+            }
+
+            size.clear();
+            return size;
+        }
+
+        @Override
+        public void onClosed(DroneTransport.Connection connection, IOException cause) {
+            closed = cause;
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void video_pacedAtFpsWithLatency() throws Exception {
+        List<byte[]> frames = frames(3, 5000);
+        start(frames, 50, new DroneSimulator.Link(0, 40, 10, 0, 0, 0));
+
+        transport = new DroneTransport(1000, 2000);
+        VideoClient client = new VideoClient(simulator, 20);
+        long begin = System.nanoTime();
+        transport.open("127.0.0.1", simulator.getVideoPort(), client);
+
+        assertTrue(client.done.await(5, TimeUnit.SECONDS));
+        long elapsedMs = (System.nanoTime() - begin) / 1000000;
+
+        //frames replayed in order, round and round
+        for (int n = 0; n < client.received.size(); n++) {
+            assertTrue(Arrays.equals(frames.get(n % 3), client.received.get(n)));
+        }
+
+        //19 frame intervals at 50 fps plus the link latency, not the loopback's
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 19 * 20 + 40);
+        long averageMs = client.totalLatency / client.received.size() / 1000000;
+        assertTrue("average latency " + averageMs + "ms", averageMs >= 40 && averageMs < 40 + 10 + 30);
+        System.out.println(simulator + " avg latency=" + averageMs + "ms max=" + client.maxLatency / 1000000 + "ms");
+    }
+
+    @Test
+    public void video_stampedWithDroneClock() throws Exception {
+        List<byte[]> frames = frames(3, 5000);
+        start(frames, 50, new DroneSimulator.Link(0, 30, 0, 0, 0, 0));
+        simulator.setClockOffsetMicros(5000000);
+
+        transport = new DroneTransport(1000, 2000);
+        VideoClient client = new VideoClient(simulator, 10, true);
+        transport.open("127.0.0.1", simulator.getVideoPort(), client);
+        assertTrue(client.done.await(5, TimeUnit.SECONDS));
+
+        //capture times on the drone's clock, sent once captured, and the jpegs unchanged after them
+        for (int n = 0; n < client.received.size(); n++) {
+            long[] times = client.times.get(n);
+            assertEquals(simulator.getCaptureTime(n) / 1000 + 5000000, times[0]);
+            assertTrue(times[1] >= times[0]);
+            assertTrue(Arrays.equals(frames.get(n % 3), client.received.get(n)));
+        }
+    }
+
+    @Test
+    public void video_bitrateCapSlowsStream() throws Exception {
+        //8 frames of 20KB at 400KB/s is 0.4s, at 30 fps it would be 0.23s
+        start(frames(1, 20 * 1000), 30, new DroneSimulator.Link(400 * 1000, 0, 0, 0, 0, 0));
+
+        transport = new DroneTransport(1000, 2000);
+        VideoClient client = new VideoClient(simulator, 8);
+        long begin = System.nanoTime();
+        transport.open("127.0.0.1", simulator.getVideoPort(), client);
+
+        assertTrue(client.done.await(5, TimeUnit.SECONDS));
+        long elapsedMs = (System.nanoTime() - begin) / 1000000;
+        assertEquals(8, client.received.size());
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 7 * 20 * 1000 * 1000 / (400 * 1000));
+    }
+
+    @Test
+    public void video_stallLongerThanReadTimeoutDropsLink() throws Exception {
+        //a 600ms stall every second against a 300ms read timeout
+        start(frames(1, 1000), 30, new DroneSimulator.Link(0, 0, 0, 1000, 600, 0));
+
+        transport = new DroneTransport(1000, 300);
+        VideoClient client = new VideoClient(simulator, 1000);
+        transport.open("127.0.0.1", simulator.getVideoPort(), client);
+
+        assertTrue(client.done.await(5, TimeUnit.SECONDS));
+        assertTrue(client.closed instanceof SocketTimeoutException);
+    }
+
+    @Test
+    public void video_disconnectAfter() throws Exception {
+        start(frames(1, 1000), 30, new DroneSimulator.Link(0, 0, 0, 0, 0, 200));
+
+        transport = new DroneTransport(1000, 2000);
+        VideoClient client = new VideoClient(simulator, 1000);
+        transport.open("127.0.0.1", simulator.getVideoPort(), client);
+
+        assertTrue(client.done.await(5, TimeUnit.SECONDS));
+        assertNotNull(client.closed);
+        assertTrue(client.received.size() < 10);
+        assertEquals(1, simulator.getDisconnects());
+    }
+
+    //framed messages over a plain socket, the app's own path is DroneConnect on the transport
+    private static void write(DataOutputStream out, byte[] message) throws IOException {
+        out.write(message, 0, NavProtocol.MESSAGE_SIZE);
+        out.flush();
+    }
+
+    private static byte read(DataInputStream in, NavProtocol protocol, double[] fields) throws IOException {
+        byte[] message = new byte[NavProtocol.MESSAGE_SIZE];
+        in.readFully(message);
+        return protocol.decode(ByteBuffer.wrap(message), fields);
+    }
+
+    @Test
+    public void nav_framedStateAndHints() throws Exception {
+        start(frames(1, 1000), 30, DroneSimulator.Link.IDEAL);
+        simulator.setDroneState(new double[]{3, 87, 5, 12.5, 0, -80.1, 43.2});
+
+        try (Socket socket = new Socket("127.0.0.1", simulator.getNavPort())) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            NavProtocol protocol = new NavProtocol(false);
+
+            write(out, protocol.encode(new double[]{0, 4, 3, 43.0, -80.0, 0, 0}));
+            double[] state = new double[NavProtocol.FIELDS];
+            read(in, protocol, state);
+            read(in, protocol, state);
+            assertArrayEquals(new double[]{3, 87, 5, 12.5, 0, -80.1, 43.2}, state, 0);
+            assertEquals(0, protocol.getMissed());
+
+            write(out, protocol.encode(NavProtocol.TYPE_VIDEO_HINT, new double[]{60, 0.5, 12}));
+
+            long deadline = System.currentTimeMillis() + 2000;
+            while (simulator.getHintsReceived() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(12, simulator.getFps());
+            assertEquals(43.0, simulator.getAppState()[3], 0);
+        }
+    }
+
+    @Test
+    public void nav_timeSyncFindsClockOffset() throws Exception {
+        start(frames(1, 1000), 30, DroneSimulator.Link.IDEAL);
+        simulator.setClockOffsetMicros(-7000000);
+
+        try (Socket socket = new Socket("127.0.0.1", simulator.getNavPort())) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            NavProtocol protocol = new NavProtocol(false);
+            ClockSync sync = new ClockSync(4);
+            double[] payload = new double[NavProtocol.FIELDS];
+            double[] fields = new double[NavProtocol.FIELDS];
+
+            //probes interleaved with the drone's state stream, answers don't count in its sequence
+            int states = 0;
+            write(out, protocol.encode(new double[NavProtocol.FIELDS]));
+            for (int n = 0; n < 5; n++) {
+                write(out, protocol.encode(NavProtocol.TYPE_TIME_SYNC, sync.probe(payload)));
+
+                while (read(in, protocol, fields) != NavProtocol.TYPE_TIME_SYNC) {
+                    states++;
+                }
+                sync.onReply(fields, System.nanoTime());
+                Thread.sleep(60);
+            }
+
+            assertEquals(5, simulator.getSyncsAnswered());
+            assertTrue(states > 0);
+            assertTrue(sync.isSynced());
+            assertEquals(-7000000, sync.getOffsetMicros(), 2000);
+            assertEquals(0, protocol.getMissed());
+            System.out.println(sync);
+        }
+    }
+
+    @Test
+    public void nav_legacyLockstep() throws Exception {
+        start(frames(1, 1000), 30, DroneSimulator.Link.IDEAL);
+        simulator.setV5(true);
+        simulator.setDroneState(new double[]{1, 2, 3, 4, 5, 6, 7});
+
+        try (Socket socket = new Socket("127.0.0.1", simulator.getNavPort())) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            double[] app = {0, 3, 3, 1, 2, 0, 0};
+
+            //one double each way per field, the app speaks first
+            double[] state = new double[NavProtocol.FIELDS];
+            for (int x = 0; x < state.length; x++) {
+                out.writeDouble(app[x]);
+                out.flush();
+                state[x] = in.readDouble();
+            }
+            assertArrayEquals(new double[]{1, 2, 3, 4, 5, 6, 7}, state, 0);
+        }
+    }
+
+    @Test
+    public void nav_v5SilentOnFramed() throws Exception {
+        start(frames(1, 1000), 30, DroneSimulator.Link.IDEAL);
+        simulator.setV5(true);
+
+        try (Socket socket = new Socket("127.0.0.1", simulator.getNavPort())) {
+            socket.setSoTimeout(500);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(new NavProtocol(false).encode(new double[NavProtocol.FIELDS]), 0, NavProtocol.MESSAGE_SIZE);
+            out.flush();
+
+            //no answer and no close, like the real server after its unpack error
+            try {
+                socket.getInputStream().read();
+                fail("v5 answered a framed message");
+            } catch (SocketTimeoutException e) {
+                assertEquals(1, simulator.getUnpackErrors());
+            }
+        }
+    }
+
+    @Test
+    public void loadFrames_readsRecording() throws Exception {
+        File file = File.createTempFile("sim", ".avi");
+        file.deleteOnExit();
+
+        List<byte[]> frames = frames(3, 1001);
+        MjpegAviWriter writer = new MjpegAviWriter(file, 30);
+        for (int n = 0; n < 3; n++) {
+            writer.write(frames.get(n), 1001, n * 1000000000L / 30);
+        }
+        writer.close();
+
+        List<byte[]> loaded = DroneSimulator.loadFrames(file);
+        assertEquals(3, loaded.size());
+        for (int n = 0; n < 3; n++) {
+            assertTrue(Arrays.equals(frames.get(n), loaded.get(n)));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * A handler or task throwing only takes its own link down, the transport thread keeps serving the others.
+ */
+public class DroneTransportTest {
+
+    //reads single bytes, throws on the first one if asked to
+    private static class Link implements DroneTransport.Handler {
+        final boolean failOnRead;
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final AtomicReference<IOException> cause = new AtomicReference<>();
+
+        Link(boolean failOnRead) {
+            this.failOnRead = failOnRead;
+        }
+
+        @Override
+        public ByteBuffer onConnected(DroneTransport.Connection connection) {
+            return ByteBuffer.allocate(1);
+        }
+
+        @Override
+        public ByteBuffer onRead(DroneTransport.Connection connection, ByteBuffer full) {
+            if (failOnRead) {
+                throw new IllegalStateException("decoder blew up");
+            }
+            read.countDown();
+            full.clear();
+            return full;
+        }
+
+        @Override
+        public void onClosed(DroneTransport.Connection connection, IOException cause) {
+            this.cause.set(cause);
+            closed.countDown();
+        }
+    }
+
+    @Test
+    public void failingHandler_closesOnlyItsLink() throws Exception {
+        DroneTransport transport = new DroneTransport(1000, 0);
+        Link failing = new Link(true);
+        Link healthy = new Link(false);
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            transport.open("127.0.0.1", server.getLocalPort(), failing);
+            try (Socket first = server.accept()) {
+                first.getOutputStream().write(1);
+
+                //closed with the error as cause, so DroneConnect would reconnect
+                assertTrue(failing.closed.await(5, TimeUnit.SECONDS));
+                assertTrue(failing.cause.get().getCause() instanceof IllegalStateException);
+            }
+
+            //a task throwing doesn't stop the thread either
+            transport.schedule(() -> {
+                throw new IllegalStateException("timer blew up");
+            }, 0);
+
+            transport.open("127.0.0.1", server.getLocalPort(), healthy);
+            try (Socket second = server.accept()) {
+                OutputStream out = second.getOutputStream();
+                out.write(1);
+                assertTrue(healthy.read.await(5, TimeUnit.SECONDS));
+                assertEquals(1, healthy.closed.getCount());
+            }
+        } finally {
+            transport.shutdown();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logs video packets and nav exchanges to the mapped flight log and reads and replays them back.
+ */
+public class FlightLogTest {
+
+    private static File tempLog() throws Exception {
+        File file = File.createTempFile("flight", ".log");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void records_readBackAcrossWindows() throws Exception {
+        File file = tempLog();
+        FlightLog log = FlightLog.open(file, 64L * 1024 * 1024);
+
+        //five 1MB frames cross the 4MB mapping window
+        byte[] frame = new byte[1024 * 1024];
+        for (int n = 0; n < 5; n++) {
+            frame[0] = (byte) n;
+            frame[frame.length - 1] = (byte) n;
+            assertTrue(log.video(FlightLog.VIDEO_JPEG, 1000 + n, frame, frame.length - n));
+            assertTrue(log.nav(FlightLog.NAV_FROM_DRONE, 1000 + n, new double[]{n, 100 - n, 3, 4, 5, 6, 7}));
+        }
+        log.close();
+
+        assertEquals(log.getWritten(), file.length());
+
+        FlightReplay.Reader reader = new FlightReplay.Reader(file);
+        double[] state = new double[NavProtocol.FIELDS];
+        for (int n = 0; n < 5; n++) {
+            assertTrue(reader.next());
+            assertEquals(FlightLog.VIDEO_JPEG, reader.getType());
+            assertEquals(1000 + n, reader.getTime());
+            assertEquals(frame.length - n, reader.getLength());
+            assertEquals(n, reader.getData()[0]);
+
+            assertTrue(reader.next());
+            assertEquals(FlightLog.NAV_FROM_DRONE, reader.getType());
+            reader.doubles(state);
+            assertEquals(100 - n, state[1], 0);
+            assertEquals(7, state[6], 0);
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void full_dropsAndCrashedLogStillReads() throws Exception {
+        File file = tempLog();
+        FlightLog log = FlightLog.open(file, FlightLog.HEADER_SIZE + 3 * (FlightLog.RECORD_HEADER_SIZE + 56));
+
+        for (int n = 0; n < 5; n++) {
+            log.nav(FlightLog.NAV_TO_DRONE, n, new double[]{n});
+        }
+        assertEquals(3, log.getRecords());
+        assertEquals(2, log.getDropped());
+
+        //never closed, as after a crash: the mapped pages are in the file
+        log.flush();
+        FlightReplay.Reader reader = new FlightReplay.Reader(file);
+        int records = 0;
+        while (reader.next()) {
+            records++;
+        }
+        assertEquals(3, records);
+        log.close();
+    }
+
+    @Test
+    public void makeRoom_keepsCountAndQuota() throws Exception {
+        File dir = Files.createTempDirectory("flights").toFile();
+        for (int n = 1; n <= 5; n++) {
+            Files.write(new File(dir, "FLT_" + n + ".log").toPath(), new byte[1000]);
+        }
+        Files.write(new File(dir, "notes.txt").toPath(), new byte[5000]);
+
+        //5000 bytes of logs in a 4000 quota, room for 1500 more takes the oldest three
+        assertEquals(1500, FlightLog.makeRoom(dir, ".log", 10, 1500, 4000, 0));
+        assertEquals(Arrays.asList("FLT_4.log", "FLT_5.log", "notes.txt"), sorted(dir));
+
+        //by count, the new one makes the second
+        assertEquals(1500, FlightLog.makeRoom(dir, ".log", 2, 1500, 4000, 0));
+        assertEquals(Arrays.asList("FLT_5.log", "notes.txt"), sorted(dir));
+
+        //a device short of its free space floor leaves no room, every log goes
+        assertEquals(0, FlightLog.makeRoom(dir, ".log", 10, 1500, 4000, dir.getUsableSpace() + 1000000));
+        assertEquals(Arrays.asList("notes.txt"), sorted(dir));
+
+        //and a log opened with that floor drops instead of filling the device
+        FlightLog log = FlightLog.open(new File(dir, "FLT_6.log"), 64L * 1024 * 1024, dir.getUsableSpace() + 1000000);
+        assertFalse(log.video(FlightLog.VIDEO_JPEG, 1, new byte[8 * 1024 * 1024], 8 * 1024 * 1024));
+        assertEquals(1, log.getDropped());
+        log.close();
+
+        for (File file : dir.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(dir.delete());
+    }
+
+    private static List<String> sorted(File dir) {
+        String[] names = dir.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    @Test
+    public void replay_statesAtScaledTiming() throws Exception {
+        File file = tempLog();
+        FlightLog log = FlightLog.open(file, 1024 * 1024);
+
+        //10 drone states 100ms apart
+        for (int n = 0; n < 10; n++) {
+            log.nav(FlightLog.NAV_FROM_DRONE, n * 100 * 1000000L, new double[]{n});
+            log.nav(FlightLog.NAV_TO_DRONE, n * 100 * 1000000L + 1, new double[]{0});
+        }
+        log.close();
+
+        List<double[]> states = new ArrayList<>();
+        int[] asked = new int[1];
+        List<Boolean> online = new ArrayList<>();
+        DroneListener listener = new DroneListener() {
+            @Override
+            public void onProcessFrame(Frame frame) {
+            }
+
+            @Override
+            public void onUpdateImageView(Frame frame) {
+            }
+
+            @Override
+            public void onOnlineStatus(boolean status) {
+                online.add(status);
+            }
+
+            @Override
+            public void onReconnecting(int attempt) {
+            }
+
+            @Override
+            public void onSetAppData(double[] data) {
+                states.add(data);
+            }
+
+            @Override
+            public void onGetAppData() {
+                asked[0]++;
+            }
+        };
+
+        //twice as fast: 900ms of flight in about 450ms
+        FlightReplay replay = new FlightReplay(file, listener, 2);
+        long start = System.nanoTime();
+        replay.start();
+        assertTrue(replay.join(5000));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 450 && elapsedMs < 2000);
+        assertEquals(10, states.size());
+        assertEquals(9, states.get(9)[0], 0);
+        assertEquals(10, asked[0]);
+        assertEquals(20, replay.getRecords());
+        assertEquals(2, online.size());
+        assertTrue(online.get(0));
+        assertFalse(online.get(1));
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.my_opencv;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time and allocations per op of the per-frame paths that run without the opencv natives, checked
+ * against the committed baseline (see Benchmark). Allocations have to stay within a few bytes of the
+ * baseline; time only fails on a large slowdown, the baseline comes from whatever machine wrote it.
+ * Skipped unless benchmarks are asked for with -Dbenchmark=true or -Dbenchmark.update=true.
+ */
+public class HotPathBenchmarkTest {
+
+    private static final double BYTES_SLACK = 16;
+    private static final double TIME_FACTOR = 5;
+
+    private static final long FRAME_NANOS = 1000000000L / 30;
+
+    //video: int size + jpeg per frame, parsed out of one in-memory stream the way the video link reads it,
+    //each frame taken from the pool, measured, kept in the pre-event ring and given back
+    private static Benchmark.Result mjpegReceive() {
+        ByteBuffer stream = ByteBuffer.allocate(30 * (4 + 21000));
+        for (int n = 0; n < 30; n++) {
+            byte[] jpeg = MjpegAviWriterTest.jpeg(640, 360, 20000 + n * 30);
+            stream.putInt(jpeg.length);
+            stream.put(jpeg);
+        }
+        stream.flip();
+
+        FramePool pool = new FramePool(8);
+        VideoController controller = new VideoController(1000, 40);
+        PreEventBuffer preEvent = new PreEventBuffer(4 * 1024 * 1024, 512, 5000);
+        ByteBuffer size = ByteBuffer.allocate(4);
+
+        return Benchmark.run("mjpegReceive", 20000, 20000, x -> {
+            if (!stream.hasRemaining()) {
+                stream.rewind();
+            }
+
+            size.clear();
+            stream.get(size.array());
+            int length = size.getInt(0);
+
+            Frame frame = pool.acquire(length);
+            ByteBuffer target = frame.readBuffer();
+            int limit = stream.limit();
+            stream.limit(stream.position() + length);
+            target.put(stream);
+            stream.limit(limit);
+
+            frame.received = x * FRAME_NANOS;
+            controller.onArrival(frame.received, frame.length);
+            preEvent.add(frame.data, frame.length, frame.received);
+            pool.release(frame);
+        });
+    }
+
+    //h264: the annex-b parser splitting a recorded stream fed in network sized reads
+    private static Benchmark.Result h264Parse() {
+        ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+        byte[] sps = AnnexBParserTest.sps(66, 1280, 720, 0, 0);
+        for (int n = 0; n < 60; n++) {
+            boolean key = n % 30 == 0;
+            AnnexBParserTest.nal(recorded, 4, new byte[]{0x09, (byte) 0xf0});
+            if (key) {
+                AnnexBParserTest.nal(recorded, 4, sps);
+                AnnexBParserTest.nal(recorded, 4, new byte[]{0x68, (byte) 0xce, 0x38, (byte) 0x80});
+            }
+            AnnexBParserTest.nal(recorded, 4, AnnexBParserTest.slice(key, true, key ? 12000 : 3000));
+        }
+        byte[] stream = recorded.toByteArray();
+        int chunk = 1400;
+
+        AnnexBParser parser = new AnnexBParser((data, length, flags) -> {
+        });
+        int[] position = new int[1];
+
+        return Benchmark.run("h264Parse", 50000, 50000, x -> {
+            int length = Math.min(chunk, stream.length - position[0]);
+            parser.feed(stream, position[0], length);
+            position[0] += length;
+            if (position[0] == stream.length) {
+                position[0] = 0;
+            }
+        });
+    }
+
+    //nav: one app state encoded and one drone state decoded
+    private static Benchmark.Result navCycle() {
+        NavProtocol app = new NavProtocol(false);
+        NavProtocol drone = new NavProtocol(false);
+        double[] state = {0, 4, 3, 43.2, -80.1, 0, 0};
+        double[] received = new double[NavProtocol.FIELDS];
+        ByteBuffer message = ByteBuffer.wrap(drone.encode(state));
+
+        return Benchmark.run("navCycle", 100000, 100000, x -> {
+            state[2] = x;
+            app.encode(state);
+            drone.encode(state);
+            try {
+                app.decode(message, received);
+            } catch (java.io.IOException e) {
+                throw new AssertionError(e);
+            }
+        });
+    }
+
+    //detection post-processing: a canned 100 row ssd output filtered and filled into the reused result
+    private static Benchmark.Result detectionPost() {
+        float[] output = new float[100 * 7];
+        for (int i = 0; i < 100; i++) {
+            output[i * 7 + 1] = i % 3 == 0 ? 15 : 7;
+            output[i * 7 + 2] = (i % 10) / 10f;
+            output[i * 7 + 3] = (i % 10) / 10f;
+            output[i * 7 + 4] = (i / 10) / 10f;
+            output[i * 7 + 5] = (i % 10) / 10f + 0.08f;
+            output[i * 7 + 6] = (i / 10) / 10f + 0.15f;
+        }
+
+        float[] scores = new float[100];
+        int[] classes = new int[100];
+        double[] boxes = new double[400];
+        Detections detections = new Detections(100);
+
+        return Benchmark.run("detectionPost", 50000, 50000, x -> {
+            int count = InferenceEngine.candidates(output, 100, 0, 0.5f, 15, scores, classes, boxes);
+            detections.clear(x, false);
+            for (int i = 0; i < count; i++) {
+                detections.add(classes[i], scores[i], (float) boxes[i * 4], (float) boxes[i * 4 + 1],
+                        (float) (boxes[i * 4] + boxes[i * 4 + 2]), (float) (boxes[i * 4 + 1] + boxes[i * 4 + 3]), 0);
+            }
+        });
+    }
+
+    //tracking: 8 tracks matched against 8 moved detections
+    private static Benchmark.Result trackerMatch() {
+        float[] tracks = new float[8 * 4];
+        float[] detections = new float[8 * 4];
+        for (int i = 0; i < 8; i++) {
+            float left = i / 8f;
+            tracks[i * 4] = left;
+            tracks[i * 4 + 1] = 0.2f;
+            tracks[i * 4 + 2] = left + 0.1f;
+            tracks[i * 4 + 3] = 0.5f;
+
+            int d = 7 - i;
+            detections[d * 4] = left + 0.01f;
+            detections[d * 4 + 1] = 0.21f;
+            detections[d * 4 + 2] = left + 0.11f;
+            detections[d * 4 + 3] = 0.52f;
+        }
+        int[] assignment = new int[8];
+
+        return Benchmark.run("trackerMatch", 100000, 100000,
+                x -> Tracker.match(tracks, 8, detections, 8, 0.3f, assignment));
+    }
+
+    //flight log: one nav state appended to the mapped log
+    private static Benchmark.Result flightLogNav() throws Exception {
+        File file = File.createTempFile("bench", ".log");
+        file.deleteOnExit();
+        FlightLog log = FlightLog.open(file, 256L * 1024 * 1024);
+        double[] state = {2, 100, 3, 12.5, 0, -80.1, 43.2};
+
+        try {
+            return Benchmark.run("flightLogNav", 50000, 100000, x -> log.nav(FlightLog.NAV_FROM_DRONE, x, state));
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void hotPaths_withinBaseline() throws Exception {
+        Assume.assumeTrue("benchmarks are opt in, run with -Dbenchmark=true", Benchmark.isEnabled());
+
+        List<Benchmark.Result> results = new ArrayList<>();
+        results.add(mjpegReceive());
+        results.add(h264Parse());
+        results.add(navCycle());
+        results.add(detectionPost());
+        results.add(trackerMatch());
+        results.add(flightLogNav());
+
+        if (Benchmark.isUpdate()) {
+            Benchmark.write(results);
+            return;
+        }
+
+        Map<String, double[]> baseline = Benchmark.baseline();
+        for (Benchmark.Result result : results) {
+            double[] expected = baseline.get(result.name);
+            assertNotNull(result.name + " has no baseline, run with -Dbenchmark.update=true", expected);
+
+            assertTrue(result.name + " allocates " + result.bytesPerOp + " bytes/op, baseline " + expected[1],
+                    result.bytesPerOp <= expected[1] + BYTES_SLACK);
+            assertTrue(result.name + " takes " + result.nanosPerOp + " ns/op, baseline " + expected[0],
+                    result.nanosPerOp <= expected[0] * TIME_FACTOR);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Histogram buckets and percentiles, and frames split into stage latencies and exported.
+ */
+public class LatencyStatsTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void buckets_coverEveryValueOnce() {
+        for (long micros = 0; micros < 100000; micros++) {
+            int index = LatencyHistogram.index(micros);
+            assertTrue(micros + " below its bucket", LatencyHistogram.lowest(index) <= micros);
+            assertTrue(micros + " above its bucket", LatencyHistogram.lowest(index + 1) > micros);
+        }
+    }
+
+    @Test
+    public void percentiles_withinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileMicros(0.5));
+
+        //1..1000 ms once each
+        for (int ms = 1; ms <= 1000; ms++) {
+            histogram.record(ms * MS);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMeanMicros());
+        assertEquals(1000000, histogram.getMaxMicros());
+        assertEquals(500000, histogram.percentileMicros(0.5), 500000 * 0.07);
+        assertEquals(990000, histogram.percentileMicros(0.99), 990000 * 0.07);
+        assertEquals(1000000, histogram.percentileMicros(1), 1000000 * 0.07);
+
+        //over the top and negative ones are clamped, not lost
+        histogram.record(3600 * 1000 * MS);
+        histogram.record(-5);
+        assertEquals(1002, histogram.getCount());
+        assertEquals(LatencyHistogram.MAX_MICROS, histogram.getMaxMicros());
+
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void frames_splitIntoStagesAndExported() throws Exception {
+        LatencyStats stats = new LatencyStats(new ClockSync(4));
+
+        //stamped by the drone: 5 ms capture, 20 network, 8 decode, 2 process, 10 display
+        for (int n = 1; n <= 100; n++) {
+            long captured = n * 1000 * MS;
+            stats.onShown(captured, captured + 5 * MS, captured + 25 * MS, captured + 33 * MS, captured + 35 * MS,
+                    captured + 45 * MS);
+        }
+        //no drone times, e.g. h264 or an old drone: only the phone side stages
+        stats.onShown(0, 0, 200000 * MS, 200000 * MS + 8 * MS, 200000 * MS + 10 * MS, 200000 * MS + 20 * MS);
+
+        assertEquals(100, stats.get(LatencyStats.CAPTURE).getCount());
+        assertEquals(100, stats.get(LatencyStats.GLASS).getCount());
+        assertEquals(101, stats.get(LatencyStats.DISPLAY).getCount());
+        assertEquals(45000, stats.get(LatencyStats.GLASS).percentileMicros(0.5), 45000 * 0.07);
+        assertEquals(20000, stats.get(LatencyStats.NETWORK).percentileMicros(0.99), 20000 * 0.07);
+
+        String summary = stats.summary();
+        assertTrue(summary, summary.startsWith("p50/p99 ms  glass "));
+        assertTrue(summary, summary.contains("  network ") && summary.contains("  display "));
+        assertFalse(summary, summary.contains("capture"));
+
+        File file = File.createTempFile("latency", ".txt");
+        file.deleteOnExit();
+        stats.export(file);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(3 + LatencyStats.STAGES.length, lines.size());
+        assertTrue(lines.get(3), lines.get(3).startsWith("capture 100 "));
+        assertTrue(lines.get(8), lines.get(8).startsWith("glass 100 "));
+
+        stats.clear();
+        assertEquals("p50/p99 ms", stats.summary());
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counters, gauges and histograms by name, formatted for the hud and written out as snapshots.
+ */
+public class MetricsTest {
+
+    @Test
+    public void metrics_formattedByKind() {
+        Metrics metrics = new Metrics();
+        assertNull(metrics.format("video.fps"));
+
+        Metrics.Counter drops = metrics.counter("video.drops");
+        drops.increment();
+        drops.add(2);
+        assertSame(drops, metrics.counter("video.drops"));
+        assertEquals("3", metrics.format("video.drops"));
+
+        metrics.gauge("video.fps", () -> 29.5);
+        metrics.gauge("nav.online", () -> 1);
+        metrics.gauge("broken", () -> {
+            throw new IllegalStateException();
+        });
+        assertEquals("29.50", metrics.format("video.fps"));
+        assertEquals("1", metrics.format("nav.online"));
+        assertEquals("?", metrics.format("broken"));
+
+        LatencyHistogram histogram = metrics.histogram("latency.glass");
+        histogram.record(40 * 1000000L);
+        assertSame(histogram, metrics.histogram("latency.glass"));
+        assertTrue(metrics.format("latency.glass"), metrics.format("latency.glass").startsWith("n=1 p50="));
+
+        //registering again replaces, e.g. a new connection's pipeline
+        Metrics.Counter other = new Metrics.Counter();
+        metrics.register("video.drops", other);
+        assertEquals("0", metrics.format("video.drops"));
+
+        metrics.remove("broken");
+        assertEquals(4, metrics.size());
+    }
+
+    @Test
+    public void counters_concurrentIncrementsNotLost() throws Exception {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.counter("render.drawn");
+        LatencyHistogram histogram = metrics.histogram("detect.inference");
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            long micros = (t + 1) * 1000;
+            threads[t] = new Thread(() -> {
+                for (int n = 0; n < 10000; n++) {
+                    counter.increment();
+                    histogram.record(micros * 1000);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40000, counter.get());
+        assertEquals(40000, histogram.getCount());
+        assertEquals(4000, histogram.getMaxMicros());
+        assertEquals(2500, histogram.getMeanMicros());
+    }
+
+    @Test
+    public void snapshots_appendedByName() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("video.received").add(7);
+        metrics.gauge("mem.java.kb", () -> 1024);
+
+        File file = File.createTempFile("metrics", ".txt");
+        file.deleteOnExit();
+        metrics.write(file);
+        metrics.write(file);
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(6, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith("# "));
+        assertEquals("mem.java.kb 1024", lines.get(1));
+        assertEquals("video.received 7", lines.get(2));
+
+        //the periodic writer leaves a last snapshot when stopped
+        metrics.startSnapshots(file, 60000);
+        metrics.stopSnapshots();
+        assertEquals(9, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+}
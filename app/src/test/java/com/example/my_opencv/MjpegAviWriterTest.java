@@ -0,0 +1,109 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes jpeg frames through the avi muxer and walks the resulting riff structure back.
+ */
+public class MjpegAviWriterTest {
+
+    private static final long FRAME_NANOS = 1000000000L / 30;
+
+    //smallest jpeg prefix the muxer looks at: soi, an app0 segment, then sof0 with the size
+    static byte[] jpeg(int width, int height, int length) {
+        byte[] data = new byte[length];
+        byte[] header = {
+                (byte) 0xff, (byte) 0xd8,
+                (byte) 0xff, (byte) 0xe0, 0, 4, 0, 0,
+                (byte) 0xff, (byte) 0xc0, 0, 11, 8,
+                (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width};
+        System.arraycopy(header, 0, data, 0, header.length);
+        data[length - 2] = (byte) 0xff;
+        data[length - 1] = (byte) 0xd9;
+        return data;
+    }
+
+    @Test
+    public void jpegSize_readsStartOfFrame() {
+        assertArrayEquals(new int[]{640, 360}, MjpegAviWriter.jpegSize(jpeg(640, 360, 100), 100));
+        assertNull(MjpegAviWriter.jpegSize(new byte[]{1, 2, 3, 4, 5}, 5));
+    }
+
+    @Test
+    public void frames_muxedOnWallClockTicks() throws Exception {
+        File file = File.createTempFile("mjpeg", ".avi");
+        file.deleteOnExit();
+
+        MjpegAviWriter writer = new MjpegAviWriter(file, 30);
+        long start = 5000000000L;
+
+        //10 frames on time, a 5 frame stall, then 2 more, odd sizes need padding
+        for (int n = 0; n < 10; n++) {
+            writer.write(jpeg(320, 240, 1001 + n), 1001 + n, start + n * FRAME_NANOS);
+        }
+        writer.write(jpeg(320, 240, 2000), 2000, start + 15 * FRAME_NANOS);
+        writer.write(jpeg(320, 240, 2000), 2000, start + 16 * FRAME_NANOS);
+        writer.close();
+
+        assertEquals(12, writer.getFrames());
+        assertEquals(5, writer.getRepeats());
+
+        ByteBuffer avi = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals("RIFF", fourcc(avi, 0));
+        assertEquals(avi.limit() - 8, avi.getInt(4));
+        assertEquals("AVI ", fourcc(avi, 8));
+        assertEquals("avih", fourcc(avi, 24));
+        assertEquals(33333, avi.getInt(32));
+        assertEquals(17, avi.getInt(48));       //total frames, repeats included
+        assertEquals(320, avi.getInt(64));
+        assertEquals(240, avi.getInt(68));
+        assertEquals("MJPG", fourcc(avi, 112));
+        assertEquals(30, avi.getInt(132));      //rate
+        assertEquals(17, avi.getInt(140));      //length
+        assertEquals("movi", fourcc(avi, 220));
+
+        //walk the movi list, every chunk is 00dc and word aligned
+        int moviEnd = 220 + avi.getInt(216);
+        int position = 224;
+        int chunks = 0;
+        int empty = 0;
+        while (position < moviEnd) {
+            assertEquals("00dc", fourcc(avi, position));
+            int size = avi.getInt(position + 4);
+            if (size == 0) {
+                empty++;
+            } else {
+                assertEquals((byte) 0xd8, avi.get(position + 9));
+            }
+            position += 8 + size + (size & 1);
+            chunks++;
+        }
+        assertEquals(moviEnd, position);
+        assertEquals(17, chunks);
+        assertEquals(5, empty);
+
+        //the index points at every chunk, relative to the movi fourcc
+        assertEquals("idx1", fourcc(avi, position));
+        assertEquals(17 * 16, avi.getInt(position + 4));
+        int entry = position + 8 + 10 * 16; //first repeat
+        assertEquals(0, avi.getInt(entry + 12));
+        int offset = avi.getInt(position + 8 + 8);
+        assertEquals("00dc", fourcc(avi, 220 + offset));
+    }
+
+    private static String fourcc(ByteBuffer buffer, int offset) {
+        byte[] code = new byte[4];
+        for (int x = 0; x < 4; x++) {
+            code[x] = buffer.get(offset + x);
+        }
+        return new String(code);
+    }
+}
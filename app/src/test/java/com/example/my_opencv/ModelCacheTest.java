@@ -0,0 +1,85 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Extracts model files once and extracts again when the copy is stale or damaged.
+ */
+public class ModelCacheTest {
+
+    //bigger than the copy buffer so it goes through in several chunks
+    private static byte[] model(int seed) {
+        byte[] data = new byte[200 * 1024 + 17];
+        for (int x = 0; x < data.length; x++) {
+            data[x] = (byte) (x * 31 + seed);
+        }
+        return data;
+    }
+
+    @Test
+    public void get_extractsOncePerBuild() throws IOException {
+        File dir = Files.createTempDirectory("models").toFile();
+        byte[] data = model(1);
+        int[] opened = new int[1];
+        ModelCache.Source source = name -> {
+            opened[0]++;
+            return new ByteArrayInputStream(data);
+        };
+
+        ModelCache cache = new ModelCache(dir, "1");
+        File file = cache.get("net.caffemodel", source);
+        assertTrue(Arrays.equals(data, Files.readAllBytes(file.toPath())));
+        assertFalse(new File(dir, "net.caffemodel.part").exists());
+
+        //a later start of the same build reads nothing from the apk
+        ModelCache restarted = new ModelCache(dir, "1");
+        assertEquals(file, restarted.get("net.caffemodel", source));
+        assertEquals(1, opened[0]);
+        assertEquals(1, restarted.getHits());
+        assertEquals(0, restarted.getExtractions());
+
+        //a new build may ship a new model under the same name
+        byte[] updated = model(2);
+        ModelCache upgraded = new ModelCache(dir, "2");
+        upgraded.get("net.caffemodel", name -> new ByteArrayInputStream(updated));
+        assertEquals(1, upgraded.getExtractions());
+        assertTrue(Arrays.equals(updated, Files.readAllBytes(file.toPath())));
+    }
+
+    @Test
+    public void get_extractsAgainWhenDamaged() throws IOException {
+        File dir = Files.createTempDirectory("models").toFile();
+        byte[] data = model(3);
+        ModelCache.Source source = name -> new ByteArrayInputStream(data);
+
+        File file = new ModelCache(dir, "1").get("net.caffemodel", source);
+
+        //same length, one byte flipped
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(1000);
+            raf.write(data[1000] + 1);
+        }
+        ModelCache cache = new ModelCache(dir, "1");
+        cache.get("net.caffemodel", source);
+        assertEquals(1, cache.getExtractions());
+        assertTrue(Arrays.equals(data, Files.readAllBytes(file.toPath())));
+
+        //cut short, as a crash while copying without the checksum would leave it
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data, 0, 100);
+        }
+        cache.get("net.caffemodel", source);
+        assertEquals(2, cache.getExtractions());
+        assertEquals(data.length, file.length());
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Framed nav messages as DroneConnect reads them off the transport, one whole message per buffer;
+ * the links themselves run in DroneConnectTest.
+ */
+public class NavProtocolTest {
+
+    private static final int UPDATES = 2000;
+
+    @Test
+    public void framed_roundTrip() throws Exception {
+        NavProtocol app = new NavProtocol(false);
+        NavProtocol drone = new NavProtocol(false);
+        double[] toDrone = new double[NavProtocol.FIELDS];
+        double[] fromApp = new double[NavProtocol.FIELDS];
+        ByteBuffer message = ByteBuffer.allocate(NavProtocol.MESSAGE_SIZE);
+
+        long start = System.nanoTime();
+        for (int n = 0; n < UPDATES; n++) {
+            for (int x = 0; x < toDrone.length; x++) {
+                toDrone[x] = n + x * 0.5;
+            }
+
+            message.clear();
+            message.put(app.encode(toDrone), 0, NavProtocol.MESSAGE_SIZE);
+            assertEquals(NavProtocol.TYPE_STATE, NavProtocol.type(message));
+            assertEquals(NavProtocol.TYPE_STATE, drone.decode(message, fromApp));
+            assertArrayEquals(toDrone, fromApp, 0);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(UPDATES, app.getSequence());
+        assertEquals(UPDATES, drone.getRemoteSequence());
+        assertEquals(0, drone.getMissed());
+        System.out.println("framed nav: " + (int) (UPDATES / (elapsed / 1e9)) + " messages/s encoded and decoded");
+    }
+
+    @Test
+    public void missedMessages_counted() throws Exception {
+        NavProtocol app = new NavProtocol(false);
+        NavProtocol drone = new NavProtocol(false);
+        double[] state = new double[NavProtocol.FIELDS];
+
+        drone.decode(ByteBuffer.wrap(app.encode(state).clone()), state);
+        app.encode(state);
+        app.encode(state);
+        drone.decode(ByteBuffer.wrap(app.encode(state).clone()), state);
+
+        assertEquals(4, drone.getRemoteSequence());
+        assertEquals(2, drone.getMissed());
+    }
+
+    @Test(expected = IOException.class)
+    public void framed_rejectsLegacyReply() throws Exception {
+        NavProtocol protocol = new NavProtocol(false);
+        ByteBuffer garbage = ByteBuffer.allocate(NavProtocol.MESSAGE_SIZE);
+        protocol.decode(garbage, new double[NavProtocol.FIELDS]);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NavSenderTest {
+
+    @Test
+    public void emergency_jumpsQueue() {
+        NavSender sender = new NavSender(50);
+        sender.submit(3);
+        sender.submit(7);
+        sender.submit(NavCommand.LAUNCH_LAND);
+        sender.submit(NavCommand.EMERGENCY);
+
+        assertEquals(NavCommand.EMERGENCY, sender.poll().getButton());
+        assertEquals(NavCommand.LAUNCH_LAND, sender.poll().getButton());
+        assertEquals(3, sender.poll().getButton());
+        assertEquals(7, sender.poll().getButton());
+        assertNull(sender.poll());
+    }
+
+    @Test
+    public void invalidButton_ignored() {
+        NavSender sender = new NavSender(50);
+        sender.submit(0);
+        sender.submit(NavCommand.BUTTONS + 1);
+
+        assertNull(sender.poll());
+    }
+
+    @Test
+    public void stalledLink_skipsStatesThenFailsCommands() throws Exception {
+        DroneTransport transport = new DroneTransport(1000, 0);
+        CountDownLatch connected = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        AtomicReference<IOException> cause = new AtomicReference<>();
+
+        DroneTransport.Handler handler = new DroneTransport.Handler() {
+            @Override
+            public ByteBuffer onConnected(DroneTransport.Connection connection) {
+                connected.countDown();
+                return ByteBuffer.allocate(NavProtocol.MESSAGE_SIZE);
+            }
+
+            @Override
+            public ByteBuffer onRead(DroneTransport.Connection connection, ByteBuffer full) {
+                full.clear();
+                return full;
+            }
+
+            @Override
+            public void onClosed(DroneTransport.Connection connection, IOException e) {
+                cause.set(e);
+                closed.countDown();
+            }
+        };
+
+        //a drone that stops reading, the socket and then the transport buffers fill up
+        try (ServerSocket server = new ServerSocket(0)) {
+            DroneTransport.Connection connection = transport.open("127.0.0.1", server.getLocalPort(), handler);
+
+            try (Socket drone = server.accept()) {
+                assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+                NavSender sender = new NavSender(0);
+                sender.start(new NavProtocol(false), connection, () -> new double[NavProtocol.FIELDS]);
+                Thread thread = new Thread(sender, "nav-send");
+                thread.start();
+
+                //states that don't fit are skipped and the link stays up
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+                while (sender.getSkipped() == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertTrue(sender.getSkipped() > 0);
+                assertTrue(sender.isRunning());
+                assertEquals(1, closed.getCount());
+
+                //a command can't be skipped, the link is closed with the reason so it gets reconnected
+                //one may still slip into room the socket made, the states fill it again right away
+                deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (closed.getCount() > 0 && System.nanoTime() < deadline) {
+                    sender.submit(NavCommand.EMERGENCY);
+                    closed.await(10, TimeUnit.MILLISECONDS);
+                }
+                assertEquals(0, closed.getCount());
+                assertNotNull(cause.get());
+                thread.join(1000);
+                assertFalse(sender.isRunning());
+            }
+        } finally {
+            transport.shutdown();
+        }
+    }
+}
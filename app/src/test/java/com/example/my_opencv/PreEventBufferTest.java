@@ -0,0 +1,75 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pushes frames of mixed sizes through the replay ring and reads them back.
+ */
+public class PreEventBufferTest {
+
+    private static final long FRAME_NANOS = 1000000000L / 30;
+
+    private static byte[] frame(int n, int length) {
+        byte[] data = new byte[length];
+        for (int x = 0; x < length; x++) {
+            data[x] = (byte) (n + x);
+        }
+        return data;
+    }
+
+    @Test
+    public void mixedSizes_stayUnderByteCapAndReadBackIntact() {
+        PreEventBuffer buffer = new PreEventBuffer(10000, 64, 60000);
+        int[] sizes = {1500, 3000, 700, 2500, 4100, 900, 1800, 3300};
+
+        for (int n = 0; n < 200; n++) {
+            int length = sizes[n % sizes.length];
+            buffer.add(frame(n, length), length, n * FRAME_NANOS);
+            assertTrue(buffer.getUsedBytes() <= buffer.getCapacityBytes());
+
+            //the newest frame is always kept and the ones held are consecutive
+            PreEventBuffer.Entry entry = new PreEventBuffer.Entry();
+            long after = Long.MIN_VALUE;
+            int first = -1;
+            int held = 0;
+            while (buffer.copyAfter(after, entry)) {
+                int k = (int) (entry.time / FRAME_NANOS);
+                if (first < 0) {
+                    first = k;
+                }
+                assertEquals(first + held, k);
+                assertEquals(sizes[k % sizes.length], entry.length);
+                for (int x = 0; x < entry.length; x++) {
+                    assertEquals((byte) (k + x), entry.data[x]);
+                }
+                after = entry.time;
+                held++;
+            }
+            assertEquals(n, first + held - 1);
+            assertEquals(buffer.getCount(), held);
+        }
+        System.out.println(buffer);
+    }
+
+    @Test
+    public void oldFrames_dropped() {
+        PreEventBuffer buffer = new PreEventBuffer(1024 * 1024, 512, 1000);
+
+        for (int n = 0; n < 90; n++) {
+            buffer.add(frame(n, 100), 100, n * FRAME_NANOS);
+        }
+
+        //one second at 30 fps, both ends included
+        assertEquals(31, buffer.getCount());
+        assertEquals(30 * FRAME_NANOS / 1000000L, buffer.getSpanMillis());
+
+        buffer.add(frame(0, 2 * 1024 * 1024), 2 * 1024 * 1024, 90 * FRAME_NANOS);
+        assertEquals(31, buffer.getCount());
+
+        buffer.clear();
+        assertEquals(0, buffer.getCount());
+        assertFalse(buffer.copyAfter(Long.MIN_VALUE, new PreEventBuffer.Entry()));
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records jpeg frames in passthrough mode and checks the timeline and segments of the files.
+ */
+public class RecorderTest {
+
+    private static final long FRAME_NANOS = 1000000000L / 30;
+
+    @Test
+    public void pause_cutsPausedTimeOut() throws Exception {
+        File root = Files.createTempDirectory("recorder").toFile();
+
+        Recorder recorder = new Recorder(8, new SegmentStore(root, Long.MAX_VALUE, 0), 60000);
+        recorder.start("paused", 30);
+
+        byte[] jpeg = MjpegAviWriterTest.jpeg(64, 48, 500);
+        long now = System.nanoTime();
+
+        for (int n = 0; n < 5; n++) {
+            assertTrue(recorder.submit(frame(jpeg, now + n * FRAME_NANOS)));
+            Thread.sleep(5);
+        }
+
+        recorder.pause();
+        assertEquals(Recorder.State.PAUSED, recorder.getState());
+        assertFalse(recorder.submit(frame(jpeg, System.nanoTime())));
+        Thread.sleep(300);
+        recorder.resume();
+
+        //frames after the pause carry on from where the timeline stopped, not 300ms later
+        long resumed = System.nanoTime();
+        for (int n = 0; n < 5; n++) {
+            assertTrue(recorder.submit(frame(jpeg, resumed + n * FRAME_NANOS)));
+            Thread.sleep(5);
+        }
+
+        recorder.stop();
+        assertTrue(recorder.awaitWritten(5000)); //the segment is closed by the writer, after stop returns
+
+        File file = new File(root, "paused/seg_0000.avi");
+        ByteBuffer avi = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int total = avi.getInt(48);
+        System.out.println(recorder + " ticks=" + total);
+
+        assertEquals(10, recorder.getWritten());
+        assertTrue("paused time kept in the file, " + total + " ticks", total < 10 + 3);
+    }
+
+    @Test
+    public void longRecording_splitIntoListedSegments() throws Exception {
+        File root = Files.createTempDirectory("recorder").toFile();
+
+        //a segment is cut on the first frame 90ms past its start, so 3 frames each at 30 fps
+        Recorder recorder = new Recorder(8, new SegmentStore(root, Long.MAX_VALUE, 0), 90);
+        recorder.start("long", 30);
+
+        byte[] jpeg = MjpegAviWriterTest.jpeg(64, 48, 500);
+        long now = System.nanoTime();
+        for (int n = 0; n < 12; n++) {
+            assertTrue(recorder.submit(frame(jpeg, now + n * FRAME_NANOS)));
+            Thread.sleep(5);
+        }
+
+        recorder.stop();
+        assertTrue(recorder.awaitWritten(5000));
+        System.out.println(recorder);
+
+        assertEquals(4, recorder.getSegments());
+
+        //every segment is a complete file with its own index, and listed in the manifest
+        File folder = new File(root, "long");
+        List<String> manifest = Files.readAllLines(new File(folder, SegmentStore.MANIFEST).toPath());
+        assertEquals(1 + 4, manifest.size());
+        for (int n = 0; n < 4; n++) {
+            File segment = new File(folder, "seg_000" + n + ".avi");
+            ByteBuffer avi = ByteBuffer.wrap(Files.readAllBytes(segment.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(avi.limit() - 8, avi.getInt(4));
+            assertEquals(3, avi.getInt(48));
+            assertTrue(manifest.get(1 + n), manifest.get(1 + n).startsWith(segment.getName() + " "));
+            assertTrue(manifest.get(1 + n), manifest.get(1 + n).contains(" frames=3 "));
+        }
+    }
+
+    @Test
+    public void restart_takesFramesWhileLastIsWritten() throws Exception {
+        File root = Files.createTempDirectory("recorder").toFile();
+
+        Recorder recorder = new Recorder(16, new SegmentStore(root, Long.MAX_VALUE, 0), 60000);
+        byte[] jpeg = MjpegAviWriterTest.jpeg(64, 48, 500);
+        long now = System.nanoTime();
+
+        //the second start doesn't wait for the first file to be closed, each keeps its own frames
+        recorder.start("first", 30);
+        for (int n = 0; n < 6; n++) {
+            assertTrue(recorder.submit(frame(jpeg, now + n * FRAME_NANOS)));
+        }
+        recorder.stop();
+        recorder.start("second", 30);
+        for (int n = 6; n < 10; n++) {
+            assertTrue(recorder.submit(frame(jpeg, now + n * FRAME_NANOS)));
+        }
+        recorder.stop();
+        assertTrue(recorder.awaitWritten(5000));
+
+        assertEquals(10, recorder.getWritten());
+        assertEquals(0, recorder.getQueued());
+        for (String name : new String[]{"first", "second"}) {
+            File segment = new File(root, name + "/seg_0000.avi");
+            ByteBuffer avi = ByteBuffer.wrap(Files.readAllBytes(segment.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(name.equals("first") ? 6 : 4, avi.getInt(48));
+        }
+    }
+
+    @Test
+    public void preroll_writtenBeforeLiveFrames() throws Exception {
+        File root = Files.createTempDirectory("recorder").toFile();
+        Recorder recorder = new Recorder(8, new SegmentStore(root, Long.MAX_VALUE, 0), 60000);
+        PreEventBuffer preEvent = new PreEventBuffer(1024 * 1024, 64, 5000);
+
+        byte[] jpeg = MjpegAviWriterTest.jpeg(64, 48, 500);
+        long start = System.nanoTime() - 20 * FRAME_NANOS;
+        for (int n = 0; n < 20; n++) {
+            preEvent.add(jpeg, jpeg.length, start + n * FRAME_NANOS);
+        }
+
+        //the last buffered frame is also queued live, as when recording starts between the two
+        recorder.start("preroll", 30, preEvent);
+        assertTrue(recorder.submit(frame(jpeg, start + 19 * FRAME_NANOS)));
+        for (int n = 20; n < 25; n++) {
+            assertTrue(recorder.submit(frame(jpeg, start + n * FRAME_NANOS)));
+            Thread.sleep(5);
+        }
+
+        recorder.stop();
+        assertTrue(recorder.awaitWritten(5000));
+
+        File file = new File(root, "preroll/seg_0000.avi");
+        ByteBuffer avi = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(25, recorder.getWritten());
+        assertEquals(25, avi.getInt(48));
+    }
+
+    @Test
+    public void preroll_fullQueueLosesNoLiveFrames() throws Exception {
+        File root = Files.createTempDirectory("recorder").toFile();
+        Recorder recorder = new Recorder(2, new SegmentStore(root, Long.MAX_VALUE, 0), 60000);
+        PreEventBuffer preEvent = new PreEventBuffer(4 * 1024 * 1024, 512, 60000);
+
+        byte[] jpeg = MjpegAviWriterTest.jpeg(64, 48, 500);
+        long start = System.nanoTime() - 200 * FRAME_NANOS;
+        for (int n = 0; n < 200; n++) {
+            preEvent.add(jpeg, jpeg.length, start + n * FRAME_NANOS);
+        }
+
+        //live frames go into the buffer and then the recorder, as DroneConnect does, far more than
+        //the queue holds while the replay is still writing
+        recorder.start("burst", 30, preEvent);
+        for (int n = 200; n < 220; n++) {
+            long received = Math.max(System.nanoTime(), start + n * FRAME_NANOS);
+            preEvent.add(jpeg, jpeg.length, received);
+            assertTrue(recorder.submit(frame(jpeg, received)));
+        }
+
+        Thread.sleep(200);
+        recorder.stop();
+        assertTrue(recorder.awaitWritten(5000));
+
+        assertEquals(220, recorder.getWritten());
+        assertEquals(0, recorder.getDropped());
+    }
+
+    @Test
+    public void segmentDuration_exactAtAnyRate() throws Exception {
+        File root = Files.createTempDirectory("recorder").toFile();
+        Recorder recorder = new Recorder(8, new SegmentStore(root, Long.MAX_VALUE, 0), 60000);
+        byte[] jpeg = MjpegAviWriterTest.jpeg(64, 48, 500);
+        long now = System.nanoTime();
+
+        //30 frames at 30 fps are a second, not 29 ticks truncated to ms plus 33ms
+        recorder.start("thirty", 30);
+        for (int n = 0; n < 30; n++) {
+            assertTrue(recorder.submit(frame(jpeg, now + n * FRAME_NANOS)));
+            Thread.sleep(2);
+        }
+        recorder.stop();
+
+        //a rate of 0 is recorded at 1 fps instead of failing on the tick length
+        recorder.start("zero", 0);
+        for (int n = 0; n < 3; n++) {
+            assertTrue(recorder.submit(frame(jpeg, now + n * 1000000000L)));
+        }
+        recorder.stop();
+        assertTrue(recorder.awaitWritten(5000));
+
+        assertTrue(manifestLine(root, "thirty").contains(" duration=1000 "));
+        assertTrue(manifestLine(root, "zero").contains(" duration=3000 "));
+    }
+
+    private static String manifestLine(File root, String name) throws Exception {
+        List<String> manifest = Files.readAllLines(new File(root, name + "/" + SegmentStore.MANIFEST).toPath());
+        return manifest.get(1);
+    }
+
+    private static Frame frame(byte[] jpeg, long received) {
+        Frame frame = new Frame(jpeg.length);
+        System.arraycopy(jpeg, 0, frame.data, 0, jpeg.length);
+        frame.length = jpeg.length;
+        frame.received = received;
+        return frame;
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Alternates whole frame runs with crops around the followed target.
+ */
+public class RoiSchedulerTest {
+
+    private static final long RUN_NANOS = 100 * 1000000L;
+
+    private static Detections person(long frameTime, float left, float top, float right, float bottom) {
+        Detections detections = new Detections(4);
+        detections.clear(frameTime, false);
+        detections.add(15, 0.9f, left, top, right, bottom, 0);
+        return detections;
+    }
+
+    @Test
+    public void next_cropsAroundSmallTarget() {
+        RoiScheduler scheduler = new RoiScheduler(4, 300);
+        int[] rect = new int[4];
+
+        //nothing followed yet
+        assertFalse(scheduler.next(0, 1920, 1080, rect));
+        assertArrayEquals(new int[]{0, 0, 1920, 1080}, rect);
+
+        //a 40x60 pixel person in the middle
+        scheduler.onDetections(person(0, 0.5f, 0.5f, 0.5f + 40 / 1920f, 0.5f + 60 / 1080f));
+
+        for (int run = 1; run < 4; run++) {
+            assertTrue(scheduler.next(run * RUN_NANOS, 1920, 1080, rect));
+            assertEquals(300, rect[2]);
+            assertEquals(300, rect[3]);
+            assertEquals(960 + 20 - 150, rect[0]);
+            assertEquals(540 + 30 - 150, rect[1]);
+        }
+
+        //every 4th run still looks at everything
+        assertFalse(scheduler.next(4 * RUN_NANOS, 1920, 1080, rect));
+    }
+
+    @Test
+    public void next_keepsCropInsideFrame() {
+        RoiScheduler scheduler = new RoiScheduler(4, 300);
+        int[] rect = new int[4];
+        scheduler.next(0, 1280, 720, rect);
+
+        //in the bottom right corner, 100 pixels high so the crop is 400
+        scheduler.onDetections(person(0, 0.95f, 0.9f, 0.99f, 0.9f + 100 / 720f));
+
+        assertTrue(scheduler.next(RUN_NANOS, 1280, 720, rect));
+        assertArrayEquals(new int[]{1280 - 400, 720 - 400, 400, 400}, rect);
+    }
+
+    @Test
+    public void next_wholeFrameForBigOrLostTarget() {
+        RoiScheduler scheduler = new RoiScheduler(4, 300);
+        int[] rect = new int[4];
+        scheduler.next(0, 1280, 720, rect);
+
+        //close by, a crop around it would not fit
+        scheduler.onDetections(person(0, 0.3f, 0.2f, 0.5f, 0.9f));
+        assertFalse(scheduler.next(RUN_NANOS, 1280, 720, rect));
+
+        //small again, then not seen for two seconds
+        scheduler.onDetections(person(RUN_NANOS, 0.3f, 0.2f, 0.32f, 0.25f));
+        assertTrue(scheduler.next(2 * RUN_NANOS, 1280, 720, rect));
+        assertFalse(scheduler.next(2 * RUN_NANOS + 2000 * 1000000L, 1280, 720, rect));
+        assertFalse(scheduler.hasTarget());
+    }
+
+    @Test
+    public void onDetections_followsNearestNotMostCertain() {
+        RoiScheduler scheduler = new RoiScheduler(4, 100);
+        int[] rect = new int[4];
+        scheduler.next(0, 1000, 1000, rect);
+        scheduler.onDetections(person(0, 0.1f, 0.1f, 0.12f, 0.14f));
+
+        Detections next = new Detections(4);
+        next.clear(RUN_NANOS, false);
+        next.add(15, 0.99f, 0.8f, 0.8f, 0.82f, 0.84f, 0);
+        next.add(15, 0.75f, 0.11f, 0.1f, 0.13f, 0.14f, 0);
+        scheduler.onDetections(next);
+
+        assertTrue(scheduler.next(RUN_NANOS, 1000, 1000, rect));
+        assertEquals(120 - 80, rect[0]);
+    }
+}
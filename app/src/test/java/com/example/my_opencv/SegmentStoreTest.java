@@ -0,0 +1,85 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fills a store past its quota with fake segments and checks which ones are evicted.
+ */
+public class SegmentStoreTest {
+
+    private static final long HOUR = 3600 * 1000;
+
+    @Test
+    public void overQuota_evictsOldestSegmentsFirst() throws Exception {
+        File root = Files.createTempDirectory("segments").toFile();
+        SegmentStore store = new SegmentStore(root, 2500, 0);
+        long old = System.currentTimeMillis() - 10 * HOUR;
+
+        //a finished recording, and a segment a crash left behind that never made the manifest
+        store.open("first");
+        File first = finish(store, 1000, old);
+        File lost = store.nextSegment();
+        write(lost, 1000, old + HOUR);
+
+        //a new recording pushes both out, oldest first
+        store.open("second");
+        File a = finish(store, 1000, old + 2 * HOUR);
+        assertFalse(first.exists());
+        assertTrue(lost.exists());
+
+        File b = finish(store, 1000, old + 3 * HOUR);
+        assertFalse(lost.exists());
+        assertTrue(a.exists() && b.exists());
+        assertEquals(2, store.getEvicted());
+        assertEquals(2000, store.getEvictedBytes());
+
+        //nothing of the first recording is left, so its folder is gone too
+        assertFalse(new File(root, "first").exists());
+
+        List<String> manifest = Files.readAllLines(new File(root, "second/" + SegmentStore.MANIFEST).toPath());
+        assertEquals(3, manifest.size());
+        assertTrue(manifest.get(0), manifest.get(0).startsWith("recording second started "));
+        assertTrue(manifest.get(1), manifest.get(1).startsWith("seg_0000.avi "));
+        assertTrue(manifest.get(1), manifest.get(1).endsWith(" frames=30 bytes=1000"));
+    }
+
+    @Test
+    public void segmentJustFinished_isKeptEvenOverQuota() throws Exception {
+        File root = Files.createTempDirectory("segments").toFile();
+        SegmentStore store = new SegmentStore(root, 500, 0);
+        store.open("small");
+
+        File a = finish(store, 1000, System.currentTimeMillis() - HOUR);
+        assertTrue(a.exists());
+
+        File b = finish(store, 1000, System.currentTimeMillis());
+        assertFalse(a.exists());
+        assertTrue(b.exists());
+
+        List<String> manifest = Files.readAllLines(new File(root, "small/" + SegmentStore.MANIFEST).toPath());
+        assertTrue(manifest.get(3), manifest.get(3).startsWith("evicted seg_0000.avi "));
+    }
+
+    private static File finish(SegmentStore store, int length, long modified) throws Exception {
+        File segment = store.nextSegment();
+        write(segment, length, modified);
+        store.finish(segment, modified, 1000, 30);
+        //finish syncs the file which may touch its time, keep the age the test gave it
+        segment.setLastModified(modified);
+        return segment;
+    }
+
+    private static void write(File file, int length, long modified) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        file.setLastModified(modified);
+    }
+}
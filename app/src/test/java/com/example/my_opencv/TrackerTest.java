@@ -0,0 +1,60 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how detections are matched to tracks by overlap.
+ */
+public class TrackerTest {
+
+    @Test
+    public void iou_ofOverlappingBoxes() {
+        float[] a = {0, 0, 0.4f, 0.4f};
+        float[] b = {0.2f, 0.2f, 0.6f, 0.6f, 0.5f, 0.5f, 0.9f, 0.9f};
+
+        assertEquals(1f, Tracker.iou(a, 0, a, 0), 1e-6);
+        assertEquals(0.04f / 0.28f, Tracker.iou(a, 0, b, 0), 1e-6);
+        assertEquals(0f, Tracker.iou(a, 0, b, 1), 1e-6);
+    }
+
+    @Test
+    public void match_takesBestOverlapFirst() {
+        //two people side by side who both moved a little, and someone new far right
+        float[] tracks = {
+                0.1f, 0.1f, 0.3f, 0.5f,
+                0.3f, 0.1f, 0.5f, 0.5f};
+        float[] detections = {
+                0.8f, 0.1f, 0.95f, 0.5f,
+                0.34f, 0.1f, 0.54f, 0.5f,
+                0.16f, 0.1f, 0.36f, 0.5f};
+        int[] assignment = new int[3];
+
+        Tracker.match(tracks, 2, detections, 3, 0.3f, assignment);
+
+        //the closest pair goes first, then the left track takes what is left near it
+        assertEquals(-1, assignment[0]);
+        assertEquals(1, assignment[1]);
+        assertEquals(0, assignment[2]);
+    }
+
+    @Test
+    public void match_leavesLowOverlapUnmatched() {
+        float[] tracks = {0.1f, 0.1f, 0.3f, 0.5f};
+        float[] detections = {0.25f, 0.1f, 0.45f, 0.5f};
+        int[] assignment = new int[1];
+
+        Tracker.match(tracks, 1, detections, 1, 0.3f, assignment);
+        assertEquals(-1, assignment[0]);
+
+        Tracker.match(tracks, 0, detections, 1, 0.3f, assignment);
+        assertEquals(-1, assignment[0]);
+    }
+
+    @Test
+    public void median_ignoresOutliers() {
+        assertEquals(2f, Tracker.median(new float[]{2, 50, 1, 3, -40}, 5), 0);
+        assertEquals(2.5f, Tracker.median(new float[]{3, 2, 100, 0}, 2), 0);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.my_opencv;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the video controller against a loopback drone whose link is capped in bandwidth and
+ * buffers like a congested Wi-Fi hop, then checks the controller backs off until latency is low.
+ */
+public class VideoControllerTest {
+
+    private static final int CAP_BYTES_PER_SECOND = 600 * 1024;
+    private static final long RUN_MS = 6000;
+    private static final long LATENCY_TARGET_MS = 300;
+    private static final int LINK_FRAMES = 8;
+
+    //synthetic jpeg size for a setting, roughly how size scales with quality and pixels
+    private static int frameSize(int quality, double scale) {
+        return (int) (quality * 1000 * scale * scale);
+    }
+
+    @Test
+    public void cappedLink_backsOffUntilLatencyIsLow() throws Exception {
+        VideoController controller = new VideoController(250, 1000);
+        final int[] setting = {90, 100, 30}; //quality, scale %, fps asked for by the app
+
+        controller.setHintSink((quality, scale, fps) -> {
+            synchronized (setting) {
+                setting[0] = quality;
+                setting[1] = (int) (scale * 100);
+                setting[2] = fps;
+            }
+        });
+
+        try (ServerSocket server = new ServerSocket(0)) {
+            Thread drone = new Thread(() -> serve(server, setting));
+            drone.setDaemon(true);
+            drone.start();
+
+            try (Socket socket = new Socket("127.0.0.1", server.getLocalPort())) {
+                DataInputStream input = new DataInputStream(socket.getInputStream());
+                byte[] frame = new byte[256 * 1024];
+
+                long start = System.nanoTime();
+                long worstEarly = 0;
+                long worstLate = 0;
+
+                while (System.nanoTime() - start < RUN_MS * 1000000L) {
+                    int size = input.readInt();
+                    input.readFully(frame, 0, size);
+                    long now = System.nanoTime();
+
+                    //the drone puts its capture time in the first 8 bytes
+                    long captured = 0;
+                    for (int x = 0; x < 8; x++) {
+                        captured = (captured << 8) | (frame[x] & 0xff);
+                    }
+                    long latencyMs = (now - captured) / 1000000L;
+
+                    controller.onArrival(now, size);
+
+                    if (now - start < 1000000000L) {
+                        worstEarly = Math.max(worstEarly, latencyMs);
+                    } else if (now - start > (RUN_MS - 1000) * 1000000L) {
+                        worstLate = Math.max(worstLate, latencyMs);
+                    }
+                }
+
+                System.out.println(controller + " latency first second " + worstEarly
+                        + "ms last second " + worstLate + "ms");
+
+                assertTrue("controller never backed off", controller.getLevel() > 0);
+                assertTrue("latency still " + worstLate + "ms", worstLate < LATENCY_TARGET_MS);
+                assertTrue(frameSize(controller.getQuality(), controller.getScale()) * controller.getFps()
+                        <= CAP_BYTES_PER_SECOND * 1.2);
+            }
+        }
+    }
+
+    @Test
+    public void slowDecode_backsOff() {
+        VideoController controller = new VideoController(100, 1000);
+        long now = 0;
+
+        //steady 30 fps but every frame takes 40ms to decode
+        for (int n = 0; n < 10; n++) {
+            now += 33333333L;
+            controller.onDecoded(40000000L);
+            controller.onArrival(now, 10000);
+        }
+
+        assertTrue(controller.getLevel() > 0);
+    }
+
+    @Test
+    public void stableLink_staysAtBest() {
+        VideoController controller = new VideoController(100, 1000);
+        long now = 0;
+
+        for (int n = 0; n < 300; n++) {
+            now += 33333333L;
+            controller.onDecoded(5000000L);
+            controller.onArrival(now, 10000);
+        }
+
+        assertEquals(0, controller.getLevel());
+    }
+
+    //drone side: capture at the asked fps into a buffered link drained at the capped rate,
+    //the link holds a few frames like a socket buffer and blocks the drone once full
+    private static void serve(ServerSocket server, int[] setting) {
+        LinkedBlockingQueue<byte[]> link = new LinkedBlockingQueue<>(LINK_FRAMES);
+
+        try (Socket c = server.accept()) {
+            OutputStream raw = c.getOutputStream();
+
+            Thread drain = new Thread(() -> {
+                try {
+                    while (true) {
+                        byte[] packet = link.take();
+                        for (int offset = 0; offset < packet.length; offset += 4096) {
+                            int length = Math.min(4096, packet.length - offset);
+                            raw.write(packet, offset, length);
+                            long nanos = length * 1000000000L / CAP_BYTES_PER_SECOND;
+                            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    //test over
+                }
+            });
+            drain.setDaemon(true);
+            drain.start();
+
+            while (true) {
+                int quality;
+                double scale;
+                int fps;
+                synchronized (setting) {
+                    quality = setting[0];
+                    scale = setting[1] / 100.0;
+                    fps = setting[2];
+                }
+
+                int size = frameSize(quality, scale);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 4);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(size);
+                out.writeLong(System.nanoTime());
+                out.write(new byte[size - 8]);
+                link.put(bytes.toByteArray());
+
+                Thread.sleep(1000 / fps);
+            }
+        } catch (IOException | InterruptedException e) {
+            //test over
+        }
+    }
+}